@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Helpers for compact binary formats: unsigned varints (7 bits per byte, least significant group first), zigzag
+ * encoding of signed ints for varints, and UTF-8 strings written without intermediate byte arrays.
+ */
+public final class BinaryEncoding {
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  private BinaryEncoding() {
+  }
+
+  /**
+   * @return number of bytes {@link #writeVarInt(byte[], int, int)} takes for the given non-negative value
+   */
+  public static int varIntSize(int value) {
+    int size = 1;
+    while ((value & ~0x7F) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * @return position after the written value
+   */
+  public static int writeVarInt(byte[] buf, int pos, int value) {
+    while ((value & ~0x7F) != 0) {
+      buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    buf[pos++] = (byte) value;
+    return pos;
+  }
+
+  /**
+   * @return the value mapped to a non-negative int, so that values close to zero take few bytes as varints
+   */
+  public static int zigZag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  /**
+   * @return value mapped with {@link #zigZag(int)}
+   */
+  public static int unZigZag(int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  /**
+   * @return number of bytes the given string takes in UTF-8
+   */
+  public static int utf8Length(String value) {
+    int length = value.length();
+    int size = length;
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= 0x800) {
+        if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+          // 4 bytes for 2 chars
+          size += 2;
+          i++;
+        } else {
+          size += 2;
+        }
+      } else if (c >= 0x80) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Writes UTF-8 bytes of the string, {@link #utf8Length(String)} tells how many.
+   * @return position after the written value
+   */
+  public static int writeUtf8(byte[] buf, int pos, String value) {
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xC0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buf[pos++] = (byte) (0xF0 | (codePoint >> 18));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        buf[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+      } else {
+        buf[pos++] = (byte) (0xE0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+    return pos;
+  }
+
+  /**
+   * @return lowercase hex representation of the bytes, safe to be passed around in urls
+   */
+  public static String toHex(byte[] bytes) {
+    char[] chars = new char[bytes.length * 2];
+    for (int i = 0; i < bytes.length; i++) {
+      chars[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+      chars[2 * i + 1] = HEX[bytes[i] & 0xF];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * @throws IllegalArgumentException if the string is not a valid hex representation
+   */
+  public static byte[] fromHex(String hex) {
+    if (hex.length() % 2 != 0) {
+      throw new IllegalArgumentException("Odd number of hex digits: " + hex);
+    }
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      int high = Character.digit(hex.charAt(2 * i), 16);
+      int low = Character.digit(hex.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        throw new IllegalArgumentException("Not a hex string: " + hex);
+      }
+      bytes[i] = (byte) ((high << 4) | low);
+    }
+    return bytes;
+  }
+
+  /**
+   * Reads values written with {@link BinaryEncoding} from a byte array.
+   */
+  public static final class Reader {
+    private final byte[] buf;
+    private final int limit;
+    private int pos;
+
+    public Reader(byte[] buf) {
+      this(buf, 0, buf.length);
+    }
+
+    public Reader(byte[] buf, int offset, int length) {
+      this.buf = buf;
+      this.pos = offset;
+      this.limit = offset + length;
+    }
+
+    public boolean hasRemaining() {
+      return pos < limit;
+    }
+
+    public int getPosition() {
+      return pos;
+    }
+
+    public byte readByte() {
+      checkAvailable(1);
+      return buf[pos++];
+    }
+
+    public int readVarInt() {
+      int value = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+        byte b = readByte();
+        value |= (b & 0x7F) << shift;
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+      throw new IllegalArgumentException("Malformed varint at position " + pos);
+    }
+
+    /**
+     * Reads UTF-8 string prefixed with its length as varint.
+     */
+    public String readString() {
+      int length = readVarInt();
+      checkAvailable(length);
+      String value = new String(buf, pos, length, Charsets.UTF_8);
+      pos += length;
+      return value;
+    }
+
+    public void skip(int length) {
+      checkAvailable(length);
+      pos += length;
+    }
+
+    private void checkAvailable(int length) {
+      if (length < 0 || pos + length > limit) {
+        throw new IllegalArgumentException("Unexpected end of data at position " + pos);
+      }
+    }
+  }
+}
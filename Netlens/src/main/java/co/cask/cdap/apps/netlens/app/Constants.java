@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -25,4 +25,17 @@ import java.util.concurrent.TimeUnit;
 public class Constants {
   public static final long AGG_INTERVAL_SIZE = TimeUnit.SECONDS.toMillis(5);
   public static final long TOPN_AGG_INTERVAL_SIZE = TimeUnit.MINUTES.toMillis(1);
+  // size of the window top N values are reported for, made of TOPN_AGG_INTERVAL_SIZE buckets
+  public static final long TOPN_WINDOW_SIZE = TOPN_AGG_INTERVAL_SIZE * 10;
+  // max size of the window top N values can be queried for
+  public static final long TOPN_MAX_WINDOW_SIZE = TimeUnit.DAYS.toMillis(1);
+  // values are not counted in top N anymore once their bucket is over for this long, by the wall clock
+  public static final long TOPN_MAX_LATENESS = TimeUnit.MINUTES.toMillis(10);
+  // size of the intervals distributions of numeric dimensions are sketched in
+  public static final long QUANTILE_INTERVAL_SIZE = TimeUnit.MINUTES.toMillis(1);
+  // size of the window of distributions numeric dimensions are categorized by, made of QUANTILE_INTERVAL_SIZE ones
+  public static final long CATEGORIZATION_WINDOW_SIZE = QUANTILE_INTERVAL_SIZE * 10;
+
+  // number of facts dequeued in one transaction by the flowlets that update counters, which coalesce all of them
+  public static final int BATCH_SIZE = 100;
 }
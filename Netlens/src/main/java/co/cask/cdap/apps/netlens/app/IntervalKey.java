@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app;
+
+/**
+ * Value and start of the interval it was seen in. Used to group facts of a batch that update same counters.
+ * @param <T> type of the value
+ */
+public final class IntervalKey<T> {
+  private final T value;
+  private final long ts;
+  private final int hash;
+
+  public IntervalKey(T value, long ts) {
+    this.value = value;
+    this.ts = ts;
+    this.hash = 31 * value.hashCode() + (int) (ts ^ (ts >>> 32));
+  }
+
+  public T getValue() {
+    return value;
+  }
+
+  public long getTs() {
+    return ts;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    IntervalKey other = (IntervalKey) o;
+    return ts == other.ts && value.equals(other.value);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return value + "@" + ts;
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -50,21 +50,34 @@ public class NetlensApp extends AbstractApplication {
     // "anomalies" dataset keeps detected anomalies
     TimeseriesTables.createTable(getConfigurer(), "anomalies", (int) TimeUnit.MINUTES.toMillis(5));
 
-    // "anomalyCounters" dataset keeps time-aggregated counters of detected anomalies
-    TimeseriesTables.createTable(getConfigurer(), "anomalyCounters", (int) TimeUnit.MINUTES.toMillis(5));
+    // "anomalyCounts" dataset keeps counters of detected anomalies per time interval
+    createDataset("anomalyCounts", Table.class);
 
     // "trafficCounters" dataset keeps traffic stats
     createDataset("trafficCounters", Table.class);
 
-    // "uniqueCounters" dataset keeps time-aggregated counters for unique ips seen in network traffic
+    // "uniqueCounters" dataset keeps HyperLogLog sketches of unique ips with anomalies per time interval
     createDataset("uniqueCounters", Table.class);
 
     // "topN" dataset keeps topN indexes for most frequent ips and ips that have most anomalies detected
     createDataset("topN", Table.class);
 
-    // "counters" dataset keeps aggregated counters for different combinations of
+    // "seriesCounts" dataset keeps counts of the data series of different combinations of dimensions, hour blocks
+    // of a series in a row
+    createDataset("seriesCounts", Table.class);
+
+    // "counters" dataset keeps counts of the data series written before "seriesCounts", only read
     TimeseriesTables.createTable(getConfigurer(), "counters", (int) TimeUnit.MINUTES.toMillis(5));
 
+    // "detectorStates" dataset keeps state of the anomaly detector of every series, see AnomalyDetector
+    createDataset("detectorStates", Table.class);
+
+    // "histogramStates" dataset keeps checkpoints of the histograms used to categorize numbers
+    createDataset("histogramStates", Table.class);
+
+    // "quantiles" dataset keeps sketches of the distributions of numeric dimensions per time interval
+    createDataset("quantiles", Table.class);
+
     // Service to serve anomalies stats
     addService(ANOMALIES_COUNT_SERVICE_NAME, new AnomaliesCountServiceHandler());
     // Service to serve anomalies details
@@ -16,20 +16,22 @@
 
 package co.cask.cdap.apps.netlens.app.anomaly;
 
+import co.cask.cdap.api.Transactional;
+import co.cask.cdap.api.TxRunnable;
 import co.cask.cdap.api.annotation.UseDataSet;
 import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.data.DatasetContext;
 import co.cask.cdap.api.dataset.lib.TimeseriesTable;
 import co.cask.cdap.api.service.http.AbstractHttpServiceHandler;
+import co.cask.cdap.api.service.http.HttpContentProducer;
 import co.cask.cdap.api.service.http.HttpServiceRequest;
 import co.cask.cdap.api.service.http.HttpServiceResponder;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.gson.Gson;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.Iterator;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import javax.annotation.Nullable;
@@ -44,131 +46,135 @@ import javax.ws.rs.QueryParam;
  */
 public class AnomaliesServiceHandler extends AbstractHttpServiceHandler {
 
-  private static final Gson GSON = new Gson();
-
-  @UseDataSet("anomalies")
-  private TimeseriesTable anomalies;
-
+  private static final Gson GSON = FactTypeAdapter.createGson();
+  // max number of anomalies read and written in one chunk of the response
+  private static final int CHUNK_SIZE = 500;
+
+  /**
+   * Returns anomalies in the time range, the most recent first. Only anomalies with all the dimension values given
+   * with <code>src</code> and <code>filter</code> (<code>dimension:value</code>, can be repeated) are returned.
+   *
+   * Without <code>limit</code>, all anomalies are returned as a JSON array. With it, at most <code>limit</code>
+   * anomalies are returned as <code>{"anomalies": [...], "cursor": "..."}</code>, where the cursor, if not null, is
+   * given as <code>cursor</code> to get the next page of the same query. Either way, the response is streamed in
+   * chunks, each of them read in its own transaction, so that big ranges are not read into memory at once.
+   */
   @GET
   @Path("timeRange/{startTs}/{endTs}")
   public void timeRange(HttpServiceRequest request, HttpServiceResponder responder, @PathParam("startTs") Long startTs,
                         @PathParam("endTs") Long endTs, @QueryParam("groupFor") String groupFor,
-                        @QueryParam("src") String src) throws IOException {
-    Map<String, String> filterBy = src == null ? null : ImmutableMap.of("src", src);
-    if ("none".equals(groupFor)) {
-      groupFor = null;
+                        @QueryParam("src") String src, @QueryParam("filter") List<String> filters,
+                        @QueryParam("limit") Integer limit, @QueryParam("cursor") String cursor) throws IOException {
+    Map<String, String> filterBy = Maps.newHashMap();
+    if (src != null) {
+      filterBy.put(DimensionDictionary.SRC, src);
     }
-    List<Anomaly> anomalies = getAnomalies(endTs, startTs, filterBy, groupFor);
-    // we want most recent on top
-    Collections.reverse(anomalies);
-    responder.sendJson(anomalies);
-  }
-
-  private List<Anomaly> getAnomalies(long endTs, long startTs, String groupFor) {
-    Iterator<TimeseriesTable.Entry> entries = anomalies.read(AnomalyDetectionFlowlet.ANOMALY_KEY, startTs, endTs);
-    if (groupFor == null) {
-      return getAnomalies(entries);
-    } else {
-      return getAnomalies(entries, groupFor);
+    if (filters != null) {
+      for (String filter : filters) {
+        int separator = filter.indexOf(':');
+        if (separator <= 0) {
+          responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Filter must be dimension:value: " + filter);
+          return;
+        }
+        filterBy.put(filter.substring(0, separator), filter.substring(separator + 1));
+      }
     }
-  }
-
-  // filter is dim:value "AND" "exact match"
-  private List<Anomaly> getAnomalies(long endTs, long startTs, @Nullable Map<String, String> filter, String groupFor) {
-    List<Anomaly> anomalies = getAnomalies(endTs, startTs, groupFor);
-
-    if (filter == null) {
-      return anomalies;
+    if (limit != null && limit < 1) {
+      responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Limit must be positive: " + limit);
+      return;
     }
-
-    List<Anomaly> filtered = Lists.newArrayList();
-    for (Anomaly anomaly : anomalies) {
-      for (Map.Entry<String, String> filterByField : filter.entrySet()) {
-        if (filterByField.getValue().equals(anomaly.fact.getDimensions().get(filterByField.getKey()))) {
-          filtered.add(anomaly);
-        }
+    if ("none".equals(groupFor)) {
+      groupFor = null;
+    }
+    AnomalyReader reader = new AnomalyReader(GSON, startTs, endTs, filterBy, groupFor);
+    if (cursor != null) {
+      try {
+        reader.setCursor(cursor);
+      } catch (IllegalArgumentException e) {
+        responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+        return;
       }
     }
-
-    return filtered;
+    responder.send(HttpURLConnection.HTTP_OK, new AnomaliesProducer(reader, limit), "application/json");
   }
 
-  private List<Anomaly> getAnomalies(Iterator<TimeseriesTable.Entry> entries) {
-    List<Anomaly> facts = Lists.newArrayList();
-    while (entries.hasNext()) {
-      TimeseriesTable.Entry entry = entries.next();
-      Fact fact = GSON.fromJson(Bytes.toString(entry.getTags()[0]), Fact.class);
-      String key = Bytes.toStringBinary(entry.getValue());
-      facts.add(new Anomaly(key, fact));
+  /**
+   * Writes anomalies as they are read, a chunk at a time.
+   */
+  private static final class AnomaliesProducer extends HttpContentProducer {
+    private final AnomalyReader reader;
+    private final Integer limit;
+    private int written;
+    private boolean started;
+    private boolean finished;
+
+    private AnomaliesProducer(AnomalyReader reader, @Nullable Integer limit) {
+      this.reader = reader;
+      this.limit = limit;
     }
-    return facts;
-  }
 
-  private List<Anomaly> getAnomalies(Iterator<TimeseriesTable.Entry> entries, String groupFor) {
-    // map of ts -> anomaly group -> anomaly details
-    // NOTE: has to be a sorted map to keep order by time
-    Map<Long, Map<String, Anomaly>> facts = Maps.newTreeMap();
-    while (entries.hasNext()) {
-      TimeseriesTable.Entry entry = entries.next();
-      Fact fact = GSON.fromJson(Bytes.toString(entry.getTags()[0]), Fact.class);
-      String key = Bytes.toStringBinary(entry.getValue());
-
-      String groupingValue = fact.getDimensions().get(groupFor);
-      if (groupingValue == null) {
-        continue;
+    @Override
+    public ByteBuffer nextChunk(Transactional transactional) throws Exception {
+      if (finished) {
+        return ByteBuffer.allocate(0);
       }
-
-      // groups for timestamp
-      Map<String, Anomaly> groups = facts.get(fact.getTs());
-      if (groups == null) {
-        groups = Maps.newHashMap();
-        facts.put(fact.getTs(), groups);
+      final StringBuilder chunk = new StringBuilder();
+      if (!started) {
+        chunk.append(limit == null ? "[" : "{\"anomalies\":[");
       }
-
-      Anomaly group = groups.get(groupingValue);
-      if (group == null) {
-        groups.put(groupingValue, new Anomaly(key, fact));
-        continue;
+      final int max = limit == null ? CHUNK_SIZE : Math.min(CHUNK_SIZE, limit - written);
+      transactional.execute(new TxRunnable() {
+        @Override
+        public void run(DatasetContext context) throws Exception {
+          TimeseriesTable anomalies = context.getDataset("anomalies");
+          for (Anomaly anomaly : reader.read(anomalies, max)) {
+            if (written > 0) {
+              chunk.append(',');
+            }
+            GSON.toJson(anomaly, chunk);
+            written++;
+          }
+        }
+      });
+      started = true;
+      if (reader.isDone() || (limit != null && written >= limit)) {
+        finished = true;
+        chunk.append(']');
+        if (limit != null) {
+          chunk.append(",\"cursor\":").append(reader.isDone() ? "null" : GSON.toJson(reader.getCursor())).append('}');
+        }
       }
-
-      merge(group.fact, fact, groupFor);
+      return ByteBuffer.wrap(Bytes.toBytes(chunk.toString()));
     }
 
-    // we need to return time ordered list of anomalies
-    List<Anomaly> result = Lists.newArrayList();
-    for (Map.Entry<Long, Map<String, Anomaly>> groups : facts.entrySet()) {
-      for (Anomaly anomaly : groups.getValue().values()) {
-        result.add(anomaly);
-      }
+    @Override
+    public void onFinish() throws Exception {
+      // nothing to release
     }
 
-    return result;
-  }
-
-  private void merge(Fact existing, Fact toApply, String skipGrouping) {
-    for (Map.Entry<String, String> field : toApply.getDimensions().entrySet()) {
-      if (skipGrouping.equals(field.getKey())) {
-        continue;
-      }
-      // grouping (merging) logic is the simplest: we fill fact fields with value if there's single value for it in the
-      // whole group, otherwise we put "[grouped]" as a value
-      String existingValue = existing.getDimensions().get(field.getKey());
-      if (existingValue != null && !existingValue.equals(field.getValue())) {
-        existing.getDimensions().put(field.getKey(), "[grouped]");
-      } else {
-        existing.getDimensions().put(field.getKey(), field.getValue());
-      }
+    @Override
+    public void onError(Throwable failureCause) {
+      // nothing to release
     }
   }
 
   // defines the format of response
   public static class Anomaly {
+    // hex of the series key, see SeriesKey#toHex()
     private String dataSeriesKey;
     private Fact fact;
 
-    private Anomaly(String dataSeriesKey, Fact fact) {
+    Anomaly(String dataSeriesKey, Fact fact) {
       this.dataSeriesKey = dataSeriesKey;
       this.fact = fact;
     }
+
+    Fact getFact() {
+      return fact;
+    }
+
+    void setFact(Fact fact) {
+      this.fact = fact;
+    }
   }
 }
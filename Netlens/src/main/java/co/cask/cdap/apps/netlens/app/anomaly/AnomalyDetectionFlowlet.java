@@ -17,101 +17,336 @@
 package co.cask.cdap.apps.netlens.app.anomaly;
 
 import co.cask.cdap.api.annotation.Batch;
+import co.cask.cdap.api.annotation.HashPartition;
 import co.cask.cdap.api.annotation.ProcessInput;
+import co.cask.cdap.api.annotation.Tick;
 import co.cask.cdap.api.annotation.UseDataSet;
 import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.lib.TimeseriesTable;
+import co.cask.cdap.api.dataset.table.Table;
 import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.FailurePolicy;
+import co.cask.cdap.api.flow.flowlet.FailureReason;
 import co.cask.cdap.api.flow.flowlet.FlowletContext;
 import co.cask.cdap.api.flow.flowlet.FlowletException;
+import co.cask.cdap.api.flow.flowlet.InputContext;
 import co.cask.cdap.api.flow.flowlet.OutputEmitter;
+import co.cask.cdap.api.metrics.Metrics;
 import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.IntervalKey;
+import co.cask.cdap.apps.netlens.app.anomaly.detector.AnomalyDetector;
+import co.cask.cdap.apps.netlens.app.anomaly.detector.AnomalyDetectors;
+import co.cask.cdap.apps.netlens.app.cache.LongFlowletCache;
+import co.cask.cdap.apps.netlens.app.counter.SeriesCountTableUtil;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.collect.Sets;
-import com.google.gson.Gson;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
 
+import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  */
 public class AnomalyDetectionFlowlet extends AbstractFlowlet {
-  // todo: make configurable, move out of this class
-  public static final byte[] ANOMALY_KEY = Bytes.toBytes("a");
-
-  private static final Gson GSON = new Gson();
+  // runtime argument: series with mean count per interval not above it are never anomalies
+  public static final String MEAN_THRESHOLD = "meanThreshold";
+  public static final double DEFAULT_MEAN_THRESHOLD = 2.0;
+  // runtime argument: how many standard deviations above the expected count is anomaly
+  public static final String SENSITIVITY = "sensitivity";
+  public static final double DEFAULT_SENSITIVITY = 2.0;
+  // number of previous intervals to compare the current one with
+  public static final int INTERVALS_TO_COMPARE = 10;
+  // max number of intervals without facts to add to the detector state at once
+  public static final int MAX_MISSED_INTERVALS = 720;
+  // runtime argument: max number of series to keep the last intervals of in memory
+  public static final String WINDOW_CACHE_SIZE = "windowCacheSize";
+  // facts have to be partitioned by series, as every instance caches counts of its series
+  public static final String SERIES_KEY_PARTITION = "seriesKey";
+  // how often blocks of counts nobody sealed are looked for
+  private static final long SWEEP_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+  // max number of such blocks to seal in a transaction, once per tick until all are sealed
+  private static final int MAX_SWEPT_BLOCKS = 50;
 
   private OutputEmitter<Fact> output;
 
+  @UseDataSet("seriesCounts")
+  private Table seriesCounts;
+
+  // counts of series written before they were kept in seriesCounts
   @UseDataSet("counters")
   private TimeseriesTable counters;
 
   @UseDataSet("anomalies")
   private TimeseriesTable anomalies;
 
-  private long cachedTs;
-  private Set<String> cachedAnomalies;
+  @UseDataSet("detectorStates")
+  private Table detectorStates;
+
+  private Metrics metrics;
+
+  private double meanThreshold;
+  private double sensitivity;
+  // null for the check of the last intervals, see isLastPointAnomaly()
+  private AnomalyDetector detector;
+  private byte[] detectorColumn;
+  private SeriesWindowCache windows;
+  private int[] counts;
+  // series hash -> start of the last interval the series was reported anomaly in
+  private LongFlowletCache<Long> reportedAnomalies;
+  // series and start of their blocks of counts that are over, to be sealed on flush
+  private List<IntervalKey<SeriesKey>> closedBlocks;
+  private int instanceId;
+  private int instanceCount;
+  private long nextSweepTs;
 
   @Override
   public void initialize(FlowletContext context) throws FlowletException {
-    cachedAnomalies = Sets.newHashSet();
+    meanThreshold = getMeanThreshold(context.getRuntimeArguments());
+    String sensitivityArg = context.getRuntimeArguments().get(SENSITIVITY);
+    sensitivity = sensitivityArg == null ? DEFAULT_SENSITIVITY : Double.parseDouble(sensitivityArg);
+    detector = AnomalyDetectors.create(context.getRuntimeArguments(), meanThreshold, sensitivity);
+    if (detector != null) {
+      detectorColumn = Bytes.toBytes(detector.getName());
+    }
+    String cacheSizeArg = context.getRuntimeArguments().get(WINDOW_CACHE_SIZE);
+    int cacheSize = cacheSizeArg == null ? 50000 : Integer.parseInt(cacheSizeArg);
+    windows = new SeriesWindowCache(INTERVALS_TO_COMPARE + 1, Constants.AGG_INTERVAL_SIZE, cacheSize);
+    counts = new int[INTERVALS_TO_COMPARE + 1];
+    // anomalies are only checked in the newest interval of a series, so older ones are not needed
+    reportedAnomalies = new LongFlowletCache<Long>("anomaly.cache", cacheSize,
+                                                   Constants.AGG_INTERVAL_SIZE * (INTERVALS_TO_COMPARE + 1));
+    closedBlocks = Lists.newArrayList();
+    instanceId = context.getInstanceId();
+    instanceCount = context.getInstanceCount();
+  }
+
+  static double getMeanThreshold(Map<String, String> runtimeArguments) {
+    String value = runtimeArguments.get(MEAN_THRESHOLD);
+    return value == null ? DEFAULT_MEAN_THRESHOLD : Double.parseDouble(value);
   }
 
-  @Batch(100)
+  @Batch(Constants.BATCH_SIZE)
+  @HashPartition(SERIES_KEY_PARTITION)
   @ProcessInput
   public void process(Iterator<Fact> facts) {
-    while (facts.hasNext()) {
-      process(facts.next());
+    // facts of the same series and interval are counted at once and checked for anomaly once
+    Multiset<IntervalKey<SeriesKey>> groupSizes = HashMultiset.create();
+    for (Map.Entry<IntervalKey<SeriesKey>, Fact> group : groupBySeries(facts, groupSizes).entrySet()) {
+      process(group.getValue(), group.getKey().getTs(), groupSizes.count(group.getKey()));
     }
+    flush();
+  }
+
+  @Override
+  public FailurePolicy onFailure(Object input, InputContext inputContext, FailureReason reason) {
+    // cached counts and reported anomalies may have changes that were rolled back with the transaction
+    windows.invalidateAll();
+    reportedAnomalies.invalidateAll();
+    closedBlocks.clear();
+    nextSweepTs = 0;
+    return super.onFailure(input, inputContext, reason);
   }
 
-  private void process(Fact fact) {
-    int lastToCompareWith = 10;
+  /**
+   * Groups facts by series and interval.
+   * @param groupSizes gets the number of facts of every group
+   * @return first fact of every group, by series and start of the interval, in order of the facts
+   */
+  @VisibleForTesting
+  static Map<IntervalKey<SeriesKey>, Fact> groupBySeries(Iterator<Fact> facts,
+                                                        Multiset<IntervalKey<SeriesKey>> groupSizes) {
+    Map<IntervalKey<SeriesKey>, Fact> firstFacts = Maps.newLinkedHashMap();
+    while (facts.hasNext()) {
+      Fact fact = facts.next();
+      // round up
+      long ts = (fact.getTs() / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE;
+      IntervalKey<SeriesKey> key = new IntervalKey<SeriesKey>(fact.getSeriesKey(), ts);
+      if (groupSizes.add(key, 1) == 0) {
+        firstFacts.put(key, fact);
+      }
+    }
+    return firstFacts;
+  }
 
-    // First, fetch last <lastToCompareWith> data points.
+  /**
+   * @param fact first fact of the series in the interval
+   * @param ts start of the interval
+   * @param count number of facts of the series in the interval
+   */
+  private void process(Fact fact, long ts, int count) {
+    // First, get last <INTERVALS_TO_COMPARE> data points and the current one, from the table only if not cached
     // Second, increment current data point
     // Third, figure out if current data point is anomaly
-
-    // round up
-    long ts = (fact.getTs() / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE;
+    SeriesKey seriesKey = fact.getSeriesKey();
+    byte[] key = seriesKey.getBytes();
 
     // 1)
-    // fetching <lastToCompareWith + 1> including current data point so that we can increment without round-trip to
-    // table
-    byte[] key = fact.buildKey();
-
-    long previousStartTs = ts - Constants.AGG_INTERVAL_SIZE * (lastToCompareWith);
-
-    Iterator<TimeseriesTable.Entry> lastEntries = counters.read(key, previousStartTs, ts);
-
-    int[] counts = getCounts(lastEntries, previousStartTs, Constants.AGG_INTERVAL_SIZE, lastToCompareWith + 1);
+    SeriesWindowCache.Window window = windows.get(seriesKey);
+    if (window == null) {
+      long previousStartTs = ts - Constants.AGG_INTERVAL_SIZE * INTERVALS_TO_COMPARE;
+      int[] lastCounts = SeriesCountTableUtil.getCounts(seriesCounts, key, previousStartTs, INTERVALS_TO_COMPARE + 1);
+      if (isEmpty(lastCounts)) {
+        // e.g. right after the upgrade, so that busy series are not compared with intervals without counts
+        addLegacyCounts(key, previousStartTs, ts, lastCounts);
+      }
+      window = windows.put(seriesKey, ts, lastCounts);
+      if (detector != null) {
+        loadDetectorState(window, ts);
+      }
+    }
 
     // 2)
-    // last one is current data point
-    int currentCount = counts[counts.length - 1] + 1;
-    TimeseriesTable.Entry incremented = new TimeseriesTable.Entry(key, Bytes.toBytes(currentCount), ts);
-    counters.write(incremented);
+    if (detector != null) {
+      updateDetector(window, ts);
+    }
+    long lastBlockTs = SeriesCountTableUtil.getBlockTs(window.getLastTs());
+    if (!window.add(ts, count)) {
+      // older than the cached window, too late to be checked
+      int currentCount = SeriesCountTableUtil.getCounts(seriesCounts, key, ts, 1)[0] + count;
+      SeriesCountTableUtil.put(seriesCounts, key, ts, currentCount);
+      // its block may be sealed already
+      SeriesCountTableUtil.listUnsealed(seriesCounts, key, SeriesCountTableUtil.getBlockTs(ts));
+      return;
+    }
+    if (SeriesCountTableUtil.getBlockTs(window.getLastTs()) > lastBlockTs) {
+      // counts of the series moved to the next block, facts of the previous one would be too late to be checked
+      closedBlocks.add(new IntervalKey<SeriesKey>(seriesKey, lastBlockTs));
+    }
+    if (ts != window.getLastTs()) {
+      // late fact, its interval was checked when it was the current one
+      return;
+    }
 
     // 3)
-    if (isLastPointAnomaly(counts, 2.0, 2.0)) {
+    boolean anomaly;
+    if (detector == null) {
+      anomaly = isLastPointAnomaly(window.getCounts(counts), meanThreshold, sensitivity);
+    } else {
+      anomaly = detector.isAnomaly(window.getDetectorState(), ts / Constants.AGG_INTERVAL_SIZE, window.getCount(ts));
+    }
+    if (anomaly) {
       fact.setTs(ts);
-      if (!isDuplicate(fact, ts)) {
-        anomalies.write(new TimeseriesTable.Entry(ANOMALY_KEY, key, fact.getTs(), Bytes.toBytes(GSON.toJson(fact))));
+      if (!isDuplicate(seriesKey, ts)) {
+        AnomalyTableUtil.write(anomalies, fact, key, AnomalyRecord.encode(fact));
         output.emit(fact);
       }
     }
   }
 
-  private int[] getCounts(Iterator<TimeseriesTable.Entry> entries, long startTs, long intervalSize, int count) {
-    int[] counters = new int[count];
+  private void loadDetectorState(SeriesWindowCache.Window window, long ts) {
+    byte[] value = detectorStates.get(window.getKey().getBytes(), detectorColumn);
+    int stateSize = detector.getStateSize();
+    if (value != null && value.length == Bytes.SIZEOF_LONG + stateSize * 8) {
+      ByteBuffer buffer = ByteBuffer.wrap(value);
+      long stateTs = buffer.getLong();
+      double[] state = new double[stateSize];
+      buffer.asDoubleBuffer().get(state);
+      window.setDetectorState(state, stateTs);
+    } else {
+      // new series or state of the detector with different parameters: start with the counts in the window
+      window.setDetectorState(new double[stateSize], ts - (INTERVALS_TO_COMPARE + 1) * Constants.AGG_INTERVAL_SIZE);
+    }
+  }
+
+  /**
+   * Adds counts of the intervals of the range written to the "counters" dataset, before the counts of series were
+   * kept in "seriesCounts". The interval being counted when it was replaced has counts in both.
+   */
+  private void addLegacyCounts(byte[] key, long startTs, long endTs, int[] counts) {
+    Iterator<TimeseriesTable.Entry> entries = counters.read(key, startTs, endTs);
     while (entries.hasNext()) {
       TimeseriesTable.Entry entry = entries.next();
-      int index = (int) ((entry.getTimestamp() - startTs) / intervalSize);
-      counters[index] = Bytes.toInt(entry.getValue());
+      int index = (int) ((entry.getTimestamp() - startTs) / Constants.AGG_INTERVAL_SIZE);
+      if (index >= 0 && index < counts.length) {
+        counts[index] += Bytes.toInt(entry.getValue());
+      }
+    }
+  }
+
+  private static boolean isEmpty(int[] counts) {
+    for (int count : counts) {
+      if (count != 0) {
+        return false;
+      }
     }
+    return true;
+  }
 
-    return counters;
+  /**
+   * Adds intervals before the given one that are not in the detector state yet.
+   */
+  private void updateDetector(SeriesWindowCache.Window window, long ts) {
+    long from = Math.max(window.getDetectorTs() + Constants.AGG_INTERVAL_SIZE,
+                         ts - MAX_MISSED_INTERVALS * Constants.AGG_INTERVAL_SIZE);
+    if (from >= ts) {
+      return;
+    }
+    double[] state = window.getDetectorState();
+    for (long intervalTs = from; intervalTs < ts; intervalTs += Constants.AGG_INTERVAL_SIZE) {
+      // intervals which are not in the window had no facts
+      detector.update(state, intervalTs / Constants.AGG_INTERVAL_SIZE, window.getCount(intervalTs));
+    }
+    window.setDetectorTs(ts - Constants.AGG_INTERVAL_SIZE);
+  }
+
+  /**
+   * Writes counts and detector states changed in the batch to the tables.
+   */
+  private void flush() {
+    for (SeriesWindowCache.Window window : windows.getChanged()) {
+      byte[] key = window.getKey().getBytes();
+      for (Map.Entry<Long, Integer> count : window.getChangedCounts().entrySet()) {
+        SeriesCountTableUtil.put(seriesCounts, key, count.getKey(), count.getValue());
+        // once per block of the window, but every time for the older ones, which may be sealed already
+        long blockTs = SeriesCountTableUtil.getBlockTs(count.getKey());
+        if (blockTs != window.getListedBlockTs()) {
+          SeriesCountTableUtil.listUnsealed(seriesCounts, key, blockTs);
+          window.setListedBlockTs(Math.max(blockTs, window.getListedBlockTs()));
+        }
+      }
+      double[] state = window.getDetectorState();
+      if (state != null) {
+        ByteBuffer buffer = ByteBuffer.allocate(Bytes.SIZEOF_LONG + state.length * 8);
+        buffer.putLong(window.getDetectorTs());
+        buffer.asDoubleBuffer().put(state);
+        detectorStates.put(key, detectorColumn, buffer.array());
+      }
+    }
+    // after the changed counts are written, so that they are sealed too
+    for (IntervalKey<SeriesKey> block : closedBlocks) {
+      SeriesCountTableUtil.seal(seriesCounts, block.getValue().getBytes(), block.getTs());
+    }
+    closedBlocks.clear();
+    windows.flush();
+    reportedAnomalies.cleanUp();
+    windows.reportMetrics(metrics);
+    reportedAnomalies.reportMetrics(metrics);
+  }
+
+  /**
+   * Seals blocks of counts that ended more than a block ago and were not sealed when the window of their series moved
+   * on, e.g. of series that went quiet or were evicted from the cache, or of facts which came too late. Runs in its own
+   * transaction, as the blocks are not partitioned like the facts and may conflict with the writes of other instances.
+   */
+  @Tick(delay = 1, unit = TimeUnit.SECONDS)
+  public void sweep() {
+    long now = System.currentTimeMillis();
+    if (now < nextSweepTs) {
+      return;
+    }
+    int sealed = SeriesCountTableUtil.sweep(seriesCounts, instanceId, instanceCount,
+                                            now - SeriesCountTableUtil.BLOCK_SIZE, MAX_SWEPT_BLOCKS);
+    // keep sweeping with every tick until all are sealed
+    nextSweepTs = sealed < MAX_SWEPT_BLOCKS ? now + SWEEP_INTERVAL : 0;
+    if (sealed > 0) {
+      metrics.count("counts.blocks.swept", sealed);
+    }
   }
 
   @VisibleForTesting
@@ -145,20 +380,13 @@ public class AnomalyDetectionFlowlet extends AbstractFlowlet {
     return count == 0 ? 0 : Math.sqrt(stdDev / count);
   }
 
-  private boolean isDuplicate(Fact fact, long ts) {
-    String key = Bytes.toStringBinary(fact.buildKey());
-    if (cachedTs != ts) {
-      cachedAnomalies.clear();
-      cachedAnomalies.add(key);
-      cachedTs = ts;
-      return false;
-    }
-
-    if (cachedAnomalies.contains(key)) {
+  private boolean isDuplicate(SeriesKey key, long ts) {
+    long hash = key.getLongHash();
+    Long reportedTs = reportedAnomalies.get(hash);
+    if (reportedTs != null && reportedTs == ts) {
       return true;
-    } else {
-      cachedAnomalies.add(key);
-      return false;
     }
+    reportedAnomalies.put(hash, ts);
+    return false;
   }
 }
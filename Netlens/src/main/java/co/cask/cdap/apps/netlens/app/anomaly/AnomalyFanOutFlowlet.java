@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -17,16 +17,21 @@
 package co.cask.cdap.apps.netlens.app.anomaly;
 
 import co.cask.cdap.api.annotation.Batch;
+import co.cask.cdap.api.annotation.HashPartition;
 import co.cask.cdap.api.annotation.Output;
 import co.cask.cdap.api.annotation.ProcessInput;
 import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.FailurePolicy;
+import co.cask.cdap.api.flow.flowlet.FailureReason;
 import co.cask.cdap.api.flow.flowlet.FlowletContext;
 import co.cask.cdap.api.flow.flowlet.FlowletException;
+import co.cask.cdap.api.flow.flowlet.InputContext;
 import co.cask.cdap.api.flow.flowlet.OutputEmitter;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.apps.netlens.app.Constants;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
@@ -42,22 +47,40 @@ import java.util.Set;
  *
  */
 public class AnomalyFanOutFlowlet extends AbstractFlowlet {
+  // properties and runtime arguments, runtime arguments take precedence
   public static final String ACCEPTED_DIMENSIONS = "acceptDims";
+  public static final String MAX_SUBSET_SIZE = "maxSubsetSize";
+  public static final String PRUNING = "pruning";
+  public static final String PRUNING_SKETCH_WIDTH = "pruning.sketchWidth";
+  public static final String PRUNING_MAX_HELD = "pruning.maxHeld";
+  // facts are partitioned by the required dimension, so that all facts of a series reach the same instance
+  public static final String SOURCE_PARTITION = "src";
   private static final Logger LOG = LoggerFactory.getLogger(AnomalyFanOutFlowlet.class);
+  private static final Gson GSON = new Gson();
 
   @Output("out")
   private OutputEmitter<Fact> output;
 
+  private Metrics metrics;
+
   private Set<String> requiredDimensions;
-  // TODO: these are not used
   private Set<String> acceptedDimensions;
+  private SubsetFanOut fanOut;
+  private List<Fact> subsets;
+  private List<Fact> released;
+  // null if pruning is off
+  private SubsetPruner pruner;
 
   @Override
   public void configure() {
     setName("fanout");
     setDescription("Fanout flowlet");
     setProperties(ImmutableMap.of(ACCEPTED_DIMENSIONS,
-                                  new Gson().toJson(ImmutableSet.of("src", "rt", "app", "dst", "atz", "ahost"))));
+                                  GSON.toJson(ImmutableSet.of("src", "rt", "app", "dst", "atz", "ahost", "rl", "rs")),
+                                  MAX_SUBSET_SIZE, "2",
+                                  PRUNING, "false",
+                                  PRUNING_SKETCH_WIDTH, String.valueOf(1 << 16),
+                                  PRUNING_MAX_HELD, String.valueOf(1 << 20)));
   }
 
   @Override
@@ -69,22 +92,50 @@ public class AnomalyFanOutFlowlet extends AbstractFlowlet {
     acceptedDimensions = Sets.newHashSet();
     acceptedDimensions.addAll(requiredDimensions);
 
-    Set<String> propertyDims = new Gson().fromJson(context.getSpecification().getProperty(ACCEPTED_DIMENSIONS),
-                                                   new TypeToken<Set<String>>() {}.getType());
+    Set<String> propertyDims = GSON.fromJson(context.getSpecification().getProperty(ACCEPTED_DIMENSIONS),
+                                             new TypeToken<Set<String>>() {}.getType());
 
     acceptedDimensions.addAll(propertyDims);
 
-    propertyDims = new Gson().fromJson(context.getRuntimeArguments().get(ACCEPTED_DIMENSIONS),
-                                       new TypeToken<Set<String>>() {}.getType());
+    propertyDims = GSON.fromJson(context.getRuntimeArguments().get(ACCEPTED_DIMENSIONS),
+                                 new TypeToken<Set<String>>() {}.getType());
     if (propertyDims != null) {
       acceptedDimensions.addAll(propertyDims);
     }
 
+    int maxSubsetSize = Integer.parseInt(getConfig(context, MAX_SUBSET_SIZE, "2"));
+
     LOG.info("Required Dimensions {}", requiredDimensions);
     LOG.info("Accepted Dimensions {}", acceptedDimensions);
+    LOG.info("Max subset size {}", maxSubsetSize);
+
+    fanOut = new SubsetFanOut(requiredDimensions, acceptedDimensions, maxSubsetSize);
+    subsets = Lists.newArrayList();
+    released = Lists.newArrayList();
+
+    if (Boolean.parseBoolean(getConfig(context, PRUNING, "false"))) {
+      // series with mean count per interval over the detection window not above the threshold are never anomalies.
+      // Facts are partitioned by source, so every instance sees all facts of its series.
+      int intervals = AnomalyDetectionFlowlet.INTERVALS_TO_COMPARE + 1;
+      double meanThreshold = AnomalyDetectionFlowlet.getMeanThreshold(context.getRuntimeArguments());
+      double minSupport = meanThreshold * intervals;
+      int sketchWidth = Integer.parseInt(getConfig(context, PRUNING_SKETCH_WIDTH, String.valueOf(1 << 16)));
+      int maxHeld = Integer.parseInt(getConfig(context, PRUNING_MAX_HELD, String.valueOf(1 << 20)));
+      pruner = new SubsetPruner(Constants.AGG_INTERVAL_SIZE * intervals, minSupport, sketchWidth, maxHeld);
+      LOG.info("Pruning subsets with support not above {}", minSupport);
+    }
+  }
+
+  private static String getConfig(FlowletContext context, String name, String defaultValue) {
+    String value = context.getRuntimeArguments().get(name);
+    if (value == null) {
+      value = context.getSpecification().getProperty(name);
+    }
+    return value == null ? defaultValue : value;
   }
 
   @Batch(100)
+  @HashPartition(SOURCE_PARTITION)
   @ProcessInput
   public void process(Iterator<Fact> facts) {
     while (facts.hasNext()) {
@@ -92,54 +143,55 @@ public class AnomalyFanOutFlowlet extends AbstractFlowlet {
     }
   }
 
-  private void process(Fact fact) {
-    Map<String, String> required = Maps.newTreeMap();
-    Map<String, String> notRequired = Maps.newTreeMap();
-    for (Map.Entry<String, String> dimVal: fact.getDimensions().entrySet()) {
-      if (requiredDimensions.contains(dimVal.getKey())) {
-        required.put(dimVal.getKey(), dimVal.getValue());
-      } else {
-        notRequired.put(dimVal.getKey(), dimVal.getValue());
-      }
+  @Override
+  public void onSuccess(Object input, InputContext inputContext) {
+    if (pruner != null) {
+      pruner.commit();
+      metrics.gauge("subsets.held.size", pruner.getNumHeld());
     }
+    super.onSuccess(input, inputContext);
+  }
 
-    // todo: make dim set size limit configurable
-    List<Map<String, String>> subsetsOfNonRequired = getAllSubsets(notRequired, 2);
-
-    for (Map<String, String> subsetOfNonRequired : subsetsOfNonRequired) {
-      subsetOfNonRequired.putAll(required);
-      Fact toEmit = new Fact(fact.getTs(), subsetOfNonRequired);
-      output.emit(toEmit);
+  @Override
+  public FailurePolicy onFailure(Object input, InputContext inputContext, FailureReason reason) {
+    // facts held back or released in the failed transaction are offered again when it is retried
+    if (pruner != null) {
+      pruner.rollback();
     }
+    return super.onFailure(input, inputContext, reason);
   }
 
-  static List<Map<String, String>> getAllSubsets(Map<String, String> original, int maxSubsetSize) {
-    // start with empty
-    List<Map<String, String>> subsets = Lists.newArrayList();
-
-    for (Map.Entry<String, String> item : original.entrySet()) {
-      // adding all same as existing subsets but with new item
-      List<Map<String, String>> newSubsets = Lists.newArrayList();
-      for (Map<String, String> subset : subsets) {
-        if (subset.size() == maxSubsetSize) {
-          continue;
+  private void process(Fact fact) {
+    subsets.clear();
+    fanOut.fanOut(fact, subsets);
+    int held = 0;
+    for (Fact subset : subsets) {
+      if (pruner == null || pruner.offer(subset, released)) {
+        for (Fact releasedSubset : released) {
+          emit(releasedSubset);
         }
-        Map<String, String> copy = Maps.newTreeMap();
-        copy.putAll(subset);
-        copy.put(item.getKey(), item.getValue());
-        newSubsets.add(copy);
+        released.clear();
+        emit(subset);
+      } else {
+        held++;
       }
-      subsets.addAll(newSubsets);
-
-      // adding another one with only new item
-      Map<String, String> withItem = Maps.newTreeMap();
-      withItem.put(item.getKey(), item.getValue());
-      subsets.add(withItem);
     }
+    if (held > 0) {
+      metrics.count("subsets.held", held);
+    }
+  }
 
-    // adding empty one - also a subset, right? ;)
-    subsets.add(Maps.<String, String>newTreeMap());
+  private void emit(Fact subset) {
+    output.emit(subset, AnomalyDetectionFlowlet.SERIES_KEY_PARTITION, subset.getSeriesKey().hashCode());
+  }
 
+  static List<Map<String, String>> getAllSubsets(Map<String, String> original, int maxSubsetSize) {
+    List<Fact> facts = Lists.newArrayList();
+    new SubsetFanOut(ImmutableSet.<String>of(), null, maxSubsetSize).fanOut(new Fact(0L, original), facts);
+    List<Map<String, String>> subsets = Lists.newArrayList();
+    for (Fact fact : facts) {
+      subsets.add(fact.getDimensions());
+    }
     return subsets;
   }
 }
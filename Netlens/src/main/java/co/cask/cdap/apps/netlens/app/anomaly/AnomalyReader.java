@@ -0,0 +1,184 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.dataset.lib.TimeseriesTable;
+import co.cask.cdap.apps.netlens.app.anomaly.AnomaliesServiceHandler.Anomaly;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.PeekingIterator;
+import com.google.gson.Gson;
+
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Reads anomalies of a time range page by page, the most recent first, optionally grouping the anomalies of the same
+ * time by a dimension.
+ *
+ * Where the reader stopped is kept as a cursor, which does not depend on the transaction, so every page can be read
+ * in a different one, and a new reader can continue from the cursor of another one, e.g. of the previous request.
+ */
+final class AnomalyReader {
+  private final AnomalyRecord.Decoder decoder;
+  private final long startTs;
+  private final Map<String, String> filter;
+  private final String groupFor;
+  // anomalies not read yet are the ones at or before this time, except the first <skip> ones at exactly this time
+  private long ts;
+  private int skip;
+
+  /**
+   * @param filter dimension values all returned anomalies must have
+   * @param groupFor dimension to group the anomalies of the same time by, or null to not group
+   */
+  AnomalyReader(Gson gson, long startTs, long endTs, Map<String, String> filter, @Nullable String groupFor) {
+    this.decoder = new AnomalyRecord.Decoder(gson);
+    this.startTs = startTs;
+    this.filter = filter;
+    this.groupFor = groupFor;
+    this.ts = endTs;
+  }
+
+  /**
+   * @return cursor to continue reading from, see {@link #setCursor(String)}
+   */
+  String getCursor() {
+    return ts + ":" + skip;
+  }
+
+  /**
+   * Makes the reader continue from the cursor of the same or another reader of the same range.
+   * @throws IllegalArgumentException if the cursor is not valid
+   */
+  void setCursor(String cursor) {
+    int separator = cursor.indexOf(':');
+    try {
+      long cursorTs = Long.parseLong(cursor.substring(0, Math.max(separator, 0)));
+      int cursorSkip = Integer.parseInt(cursor.substring(separator + 1));
+      if (cursorSkip < 0 || cursorTs > ts) {
+        throw new IllegalArgumentException("Invalid cursor: " + cursor);
+      }
+      ts = cursorTs;
+      skip = cursorSkip;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+    }
+  }
+
+  /**
+   * @return true if all anomalies of the range were read
+   */
+  boolean isDone() {
+    return ts < startTs;
+  }
+
+  /**
+   * Reads the next anomalies and moves the cursor past them.
+   * @return at most <code>max</code> anomalies, fewer only if there are no more
+   */
+  List<Anomaly> read(TimeseriesTable table, int max) {
+    List<Anomaly> result = Lists.newArrayList();
+    if (isDone()) {
+      return result;
+    }
+    PeekingIterator<TimeseriesTable.Entry> entries =
+      Iterators.peekingIterator(AnomalyTableUtil.readReverse(table, startTs, ts, filter));
+    while (result.size() < max && entries.hasNext()) {
+      long entriesTs = entries.peek().getTimestamp();
+      List<Anomaly> anomalies = readAt(entries, entriesTs);
+      int from = entriesTs == ts ? skip : 0;
+      int to = Math.min(anomalies.size(), from + max - result.size());
+      if (from < to) {
+        result.addAll(anomalies.subList(from, to));
+      }
+      if (to < anomalies.size()) {
+        ts = entriesTs;
+        skip = to;
+        return result;
+      }
+      ts = entriesTs - 1;
+      skip = 0;
+    }
+    if (!entries.hasNext()) {
+      ts = startTs - 1;
+    }
+    return result;
+  }
+
+  // reads all anomalies of the given time, in the same order every time
+  private List<Anomaly> readAt(PeekingIterator<TimeseriesTable.Entry> entries, long entriesTs) {
+    List<Anomaly> anomalies = Lists.newArrayList();
+    Map<String, Anomaly> groups = groupFor == null ? null : Maps.<String, Anomaly>newLinkedHashMap();
+    while (entries.hasNext() && entries.peek().getTimestamp() == entriesTs) {
+      TimeseriesTable.Entry entry = entries.next();
+      // only the dimensions filtered and grouped by are decoded until the anomaly is known to be returned
+      AnomalyRecord record = decoder.decode(entry.getTimestamp(), entry.getTags()[0]);
+      if (!matches(record)) {
+        continue;
+      }
+      String key = SeriesKey.wrap(entry.getValue()).toHex();
+      if (groups == null) {
+        anomalies.add(new Anomaly(key, record.toFact()));
+        continue;
+      }
+
+      String groupingValue = record.getValue(groupFor);
+      if (groupingValue == null) {
+        continue;
+      }
+      Anomaly group = groups.get(groupingValue);
+      if (group == null) {
+        group = new Anomaly(key, record.toFact());
+        groups.put(groupingValue, group);
+        anomalies.add(group);
+      } else {
+        group.setFact(merge(group.getFact(), record.toFact(), groupFor));
+      }
+    }
+    return anomalies;
+  }
+
+  private boolean matches(AnomalyRecord record) {
+    for (Map.Entry<String, String> filterByField : filter.entrySet()) {
+      if (!filterByField.getValue().equals(record.getValue(filterByField.getKey()))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Fact merge(Fact existing, Fact toApply, String skipGrouping) {
+    for (int i = 0; i < toApply.size(); i++) {
+      String name = toApply.getName(i);
+      if (skipGrouping.equals(name)) {
+        continue;
+      }
+      // grouping (merging) logic is the simplest: we fill fact fields with value if there's single value for it in the
+      // whole group, otherwise we put "[grouped]" as a value
+      String existingValue = existing.getValue(name);
+      if (existingValue == null) {
+        existing = existing.with(name, toApply.getValue(i));
+      } else if (!existingValue.equals(toApply.getValue(i))) {
+        existing = existing.with(name, "[grouped]");
+      }
+    }
+    return existing;
+  }
+}
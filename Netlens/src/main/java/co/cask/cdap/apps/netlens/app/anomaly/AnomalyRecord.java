@@ -0,0 +1,192 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.apps.netlens.app.BinaryEncoding;
+import com.google.common.base.Charsets;
+import com.google.gson.Gson;
+
+import javax.annotation.Nullable;
+
+/**
+ * Anomaly as stored in the tag of its entry in the "anomalies" dataset, see {@link AnomalyTableUtil}.
+ *
+ * Format is a {@link #FORMAT_V1} byte followed by the dimensions of the anomaly, written the same way as in
+ * {@link SeriesKey}: dimension id and the length prefixed value, with the name too for dimensions which are not in
+ * {@link DimensionDictionary}. Timestamp is not written, it is the timestamp of the entry.
+ *
+ * Records are decoded lazily: a value is only decoded when asked for, so that anomalies which do not pass a filter
+ * are dropped without decoding the rest of their dimensions. Anomalies written before this format are JSON of the
+ * fact (see {@link FactTypeAdapter}), which is still understood.
+ */
+public final class AnomalyRecord {
+  public static final byte FORMAT_V1 = 1;
+
+  private final long ts;
+  // binary record, null if it was JSON
+  private final byte[] bytes;
+  private final Decoder decoder;
+  // decoded fact, if already known
+  private Fact fact;
+
+  private AnomalyRecord(long ts, @Nullable byte[] bytes, Decoder decoder, @Nullable Fact fact) {
+    this.ts = ts;
+    this.bytes = bytes;
+    this.decoder = decoder;
+    this.fact = fact;
+  }
+
+  /**
+   * @return the anomaly in the {@link #FORMAT_V1} format
+   */
+  public static byte[] encode(Fact anomaly) {
+    int size = 1;
+    for (int i = 0; i < anomaly.size(); i++) {
+      size += SeriesKey.dimensionSize(anomaly, i);
+    }
+    byte[] bytes = new byte[size];
+    bytes[0] = FORMAT_V1;
+    int pos = 1;
+    for (int i = 0; i < anomaly.size(); i++) {
+      pos = SeriesKey.writeDimension(bytes, pos, anomaly, i);
+    }
+    return bytes;
+  }
+
+  public long getTs() {
+    return ts;
+  }
+
+  /**
+   * @return value of the given dimension, or {@code null} if the anomaly does not have it
+   * @throws IllegalArgumentException if the record is malformed
+   */
+  @Nullable
+  public String getValue(String name) {
+    if (fact != null) {
+      return fact.getValue(name);
+    }
+    int id = DimensionDictionary.getId(name);
+    byte[] nameBytes = id < 0 ? Bytes.toBytes(name) : null;
+    BinaryEncoding.Reader reader = new BinaryEncoding.Reader(bytes, 1, bytes.length - 1);
+    while (reader.hasRemaining()) {
+      int dimensionId = reader.readVarInt();
+      boolean found;
+      if (dimensionId == DimensionDictionary.FIRST_CUSTOM_ID) {
+        int nameLength = reader.readVarInt();
+        int nameStart = reader.getPosition();
+        reader.skip(nameLength);
+        found = nameBytes != null && Bytes.equals(nameBytes, 0, nameBytes.length, bytes, nameStart, nameLength);
+      } else {
+        found = dimensionId == id;
+      }
+      int valueLength = reader.readVarInt();
+      int valueStart = reader.getPosition();
+      reader.skip(valueLength);
+      if (found) {
+        return decoder.decodeValue(bytes, valueStart, valueLength);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return all dimensions of the anomaly
+   * @throws IllegalArgumentException if the record is malformed
+   */
+  public Fact toFact() {
+    if (fact != null) {
+      return fact;
+    }
+    FactBuilder builder = decoder.builder.reset();
+    BinaryEncoding.Reader reader = new BinaryEncoding.Reader(bytes, 1, bytes.length - 1);
+    while (reader.hasRemaining()) {
+      int id = reader.readVarInt();
+      if (id == DimensionDictionary.FIRST_CUSTOM_ID) {
+        String name = reader.readString();
+        builder.addCustom(name, readValue(reader));
+      } else if (DimensionDictionary.isKnown(id)) {
+        builder.add(id, readValue(reader));
+      } else {
+        throw new IllegalArgumentException("Unknown dimension id " + id + " in " + Bytes.toStringBinary(bytes));
+      }
+    }
+    fact = builder.build(ts);
+    return fact;
+  }
+
+  private String readValue(BinaryEncoding.Reader reader) {
+    int length = reader.readVarInt();
+    int start = reader.getPosition();
+    reader.skip(length);
+    return decoder.decodeValue(bytes, start, length);
+  }
+
+  /**
+   * Decodes records. Values are interned by the decoder, so that values repeated in many anomalies, like app names
+   * and categories, are decoded once and share one instance. Not thread safe.
+   */
+  public static final class Decoder {
+    // number of cached values, power of 2
+    private static final int CACHE_SIZE = 1024;
+    // longer values, e.g. of custom dimensions, are not worth caching
+    private static final int MAX_CACHED_LENGTH = 64;
+
+    private final Gson gson;
+    private final FactBuilder builder = new FactBuilder();
+    private final byte[][] cachedBytes = new byte[CACHE_SIZE][];
+    private final String[] cachedValues = new String[CACHE_SIZE];
+
+    /**
+     * @param gson to read the anomalies written as JSON, see {@link FactTypeAdapter#createGson()}
+     */
+    public Decoder(Gson gson) {
+      this.gson = gson;
+    }
+
+    /**
+     * @param ts timestamp of the entry of the record
+     * @param bytes tag of the entry of the record
+     * @throws IllegalArgumentException if the record is neither in a known format nor JSON
+     */
+    public AnomalyRecord decode(long ts, byte[] bytes) {
+      if (bytes.length > 0 && bytes[0] == FORMAT_V1) {
+        return new AnomalyRecord(ts, bytes, this, null);
+      }
+      if (bytes.length > 0 && bytes[0] == '{') {
+        return new AnomalyRecord(ts, null, this, gson.fromJson(Bytes.toString(bytes), Fact.class));
+      }
+      throw new IllegalArgumentException("Unknown anomaly record format: " + Bytes.toStringBinary(bytes));
+    }
+
+    private String decodeValue(byte[] bytes, int start, int length) {
+      if (length > MAX_CACHED_LENGTH) {
+        return new String(bytes, start, length, Charsets.UTF_8);
+      }
+      int slot = Bytes.hashCode(bytes, start, length) & (CACHE_SIZE - 1);
+      byte[] cached = cachedBytes[slot];
+      if (cached != null && Bytes.equals(cached, 0, cached.length, bytes, start, length)) {
+        return cachedValues[slot];
+      }
+      String value = new String(bytes, start, length, Charsets.UTF_8);
+      cachedBytes[slot] = Bytes.copy(bytes, start, length);
+      cachedValues[slot] = value;
+      return value;
+    }
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.lib.TimeseriesTable;
+import co.cask.lib.sketch.Hashes;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Provides utility methods for keeping detected anomalies in a {@link TimeseriesTable}. Anomalies are spread over
+ * {@link #SHARDS} keys by the hash of their source ip, so that the writes of all flowlet instances don't go to the
+ * same rows, and are read back by merging the shards in time order, together with the anomalies written under the
+ * {@link #LEGACY_KEY} before. Anomalies of a source ip are all in its shard, so only that shard is read for them.
+ *
+ * Anomalies are also written under an index key of their value of each of the {@link #INDEXED_DIMENSIONS}, so that
+ * anomalies with a given value are read without reading all others. Index entries are full copies of the anomaly
+ * entry rather than references to it, as entries of a timeseries cannot be looked up one by one. Only dimensions of
+ * many distinct values are indexed: an index of few values would take as many writes as the shards, on keys as hot
+ * as the unsharded one, and would save little reading.
+ *
+ * {@link TimeseriesTable} can only be read forward, so anomalies are read the most recent first by reading the range
+ * in slices from its end, see {@link #readReverse(TimeseriesTable, long, long, Map)}.
+ */
+public final class AnomalyTableUtil {
+  // prefix of the keys of all shards, followed by the shard number byte
+  public static final byte[] ANOMALY_KEY_PREFIX = Bytes.toBytes("a");
+  // NOTE: anomalies are not found after changing the number of shards
+  public static final int SHARDS = 16;
+  // key all anomalies were written under before they were sharded, still read for the earlier ranges
+  public static final byte[] LEGACY_KEY = Bytes.toBytes("a");
+  // prefix of the index keys, followed by dimension name, zero byte and value
+  public static final byte[] INDEX_KEY_PREFIX = Bytes.toBytes("i");
+  // dimensions anomalies are indexed by, besides the source ip which they are sharded by
+  public static final Set<String> INDEXED_DIMENSIONS = ImmutableSet.of(DimensionDictionary.DST);
+
+  // time range read at once by the reverse read, same as the row partition interval of the "anomalies" dataset
+  private static final long SLICE_SIZE = TimeUnit.MINUTES.toMillis(5);
+  // max time range read at once by the reverse read after empty slices
+  private static final long MAX_SLICE_SIZE = TimeUnit.DAYS.toMillis(1);
+
+  private static final Comparator<TimeseriesTable.Entry> BY_TIMESTAMP = new Comparator<TimeseriesTable.Entry>() {
+    @Override
+    public int compare(TimeseriesTable.Entry entry1, TimeseriesTable.Entry entry2) {
+      long ts1 = entry1.getTimestamp();
+      long ts2 = entry2.getTimestamp();
+      if (ts1 != ts2) {
+        return ts1 < ts2 ? -1 : 1;
+      }
+      // so that anomalies of the same time are always read in the same order, which paging relies on
+      return Bytes.compareTo(entry1.getKey(), entry2.getKey());
+    }
+  };
+
+  private AnomalyTableUtil() {
+  }
+
+  /**
+   * Writes the anomaly into the shard of its source ip and into the index of its value of every indexed dimension.
+   * @param value value of the entry, key of the series of the anomaly
+   * @param details tag of the entry, anomaly encoded with {@link AnomalyRecord#encode(Fact)}
+   */
+  public static void write(TimeseriesTable table, Fact anomaly, byte[] value, byte[] details) {
+    byte[] key = getKey(anomaly.getValue(DimensionDictionary.SRC));
+    table.write(new TimeseriesTable.Entry(key, value, anomaly.getTs(), details));
+    for (String name : INDEXED_DIMENSIONS) {
+      String indexed = anomaly.getValue(name);
+      if (indexed != null) {
+        table.write(new TimeseriesTable.Entry(getIndexKey(name, indexed), value, anomaly.getTs(), details));
+      }
+    }
+  }
+
+  /**
+   * @param filter dimension values the anomalies must have, can be empty. Only the shard of the source ip or the index
+   *               of one indexed value is read, so the anomalies returned are only known to have that one value, and
+   *               may have none of them if neither is given.
+   * @return anomalies in the time range, in time order
+   */
+  public static Iterator<TimeseriesTable.Entry> read(TimeseriesTable table, long startTs, long endTs,
+                                                     Map<String, String> filter) {
+    List<Iterator<TimeseriesTable.Entry>> sources = Lists.newArrayListWithCapacity(SHARDS + 1);
+    String src = filter.get(DimensionDictionary.SRC);
+    String indexed = null;
+    for (String name : INDEXED_DIMENSIONS) {
+      if (filter.containsKey(name)) {
+        indexed = name;
+      }
+    }
+    if (src != null) {
+      sources.add(table.read(getKey(src), startTs, endTs));
+    } else if (indexed != null) {
+      sources.add(table.read(getIndexKey(indexed, filter.get(indexed)), startTs, endTs));
+    } else {
+      for (int shard = 0; shard < SHARDS; shard++) {
+        sources.add(table.read(getShardKey(shard), startTs, endTs));
+      }
+    }
+    // anomalies written before they were sharded are neither in a shard nor indexed
+    sources.add(table.read(LEGACY_KEY, startTs, endTs));
+    return Iterators.mergeSorted(sources, BY_TIMESTAMP);
+  }
+
+  /**
+   * Same as {@link #read(TimeseriesTable, long, long, Map)}, but the most recent anomalies first. The range is read in
+   * slices from its end, each of them reversed in memory, so that only one slice is kept in memory at a time and
+   * reading can stop after the most recent anomalies. Slices grow while they are empty, so that sparse ranges take
+   * few reads.
+   */
+  public static Iterator<TimeseriesTable.Entry> readReverse(final TimeseriesTable table, final long startTs,
+                                                            final long endTs, final Map<String, String> filter) {
+    return new AbstractIterator<TimeseriesTable.Entry>() {
+      private long sliceEndTs = endTs;
+      private long sliceSize = SLICE_SIZE;
+      private Iterator<TimeseriesTable.Entry> slice = Collections.<TimeseriesTable.Entry>emptyList().iterator();
+
+      @Override
+      protected TimeseriesTable.Entry computeNext() {
+        while (!slice.hasNext()) {
+          if (sliceEndTs < startTs) {
+            return endOfData();
+          }
+          long sliceStartTs = Math.max(startTs, sliceEndTs - sliceSize + 1);
+          List<TimeseriesTable.Entry> entries = Lists.newArrayList(read(table, sliceStartTs, sliceEndTs, filter));
+          sliceSize = entries.isEmpty() ? Math.min(sliceSize * 2, MAX_SLICE_SIZE) : SLICE_SIZE;
+          sliceEndTs = sliceStartTs - 1;
+          slice = Lists.reverse(entries).iterator();
+        }
+        return slice.next();
+      }
+    };
+  }
+
+  static byte[] getIndexKey(String name, String value) {
+    return Bytes.add(INDEX_KEY_PREFIX, Bytes.add(Bytes.toBytes(name), new byte[1], Bytes.toBytes(value)));
+  }
+
+  static byte[] getKey(@Nullable String src) {
+    if (src == null) {
+      return getShardKey(0);
+    }
+    return getShardKey((int) ((Hashes.hash(Bytes.toBytes(src)) >>> 1) % SHARDS));
+  }
+
+  private static byte[] getShardKey(int shard) {
+    return Bytes.add(ANOMALY_KEY_PREFIX, new byte[] {(byte) shard});
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import com.google.common.base.Charsets;
+
+import java.util.Arrays;
+
+/**
+ * Dictionary of the packet dimension names known to Netlens (see {@link FactParser} for their meaning).
+ *
+ * Every known name has a fixed int id. Ids follow the alphabetical order of names, so facts sorted by dimension id
+ * have the same order as when they were sorted by name. Names that are not in the dictionary get ids starting from
+ * {@link #FIRST_CUSTOM_ID} which are local to a {@link Fact} (see {@link Fact#getName(int)}).
+ *
+ * Facts hold ids instead of names, so that facts parsed from packets do not allocate dimension names at all.
+ */
+public final class DimensionDictionary {
+  public static final String APP = "app";
+  public static final String ATZ = "atz";
+  public static final String DPT = "dpt";
+  public static final String DST = "dst";
+  public static final String DTZ = "dtz";
+  public static final String IPV = "ipv";
+  public static final String RL = "rl";
+  public static final String RS = "rs";
+  public static final String RT = "rt";
+  public static final String SPT = "spt";
+  public static final String SRC = "src";
+
+  /**
+   * Ids of names which are not in the dictionary start from this one. Leaves space for adding more known names.
+   */
+  public static final int FIRST_CUSTOM_ID = 64;
+
+  // NOTE: has to be sorted, index is the id of the dimension
+  private static final String[] KNOWN = {APP, ATZ, DPT, DST, DTZ, IPV, RL, RS, RT, SPT, SRC};
+  private static final byte[][] KNOWN_BYTES = new byte[KNOWN.length][];
+
+  static {
+    for (int i = 0; i < KNOWN.length; i++) {
+      KNOWN_BYTES[i] = KNOWN[i].getBytes(Charsets.UTF_8);
+    }
+  }
+
+  private DimensionDictionary() {
+  }
+
+  /**
+   * @return id of the known dimension name, or -1 if the name is not in the dictionary
+   */
+  public static int getId(String name) {
+    int id = Arrays.binarySearch(KNOWN, name);
+    return id < 0 ? -1 : id;
+  }
+
+  /**
+   * @return id of the known dimension with the UTF-8 encoded name in the given buffer range, or -1 if the name is not
+   *         in the dictionary
+   */
+  public static int getId(byte[] buf, int offset, int length) {
+    for (int i = 0; i < KNOWN_BYTES.length; i++) {
+      if (equals(KNOWN_BYTES[i], buf, offset, length)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return true if the given id is an id of a known dimension
+   */
+  public static boolean isKnown(int id) {
+    return id >= 0 && id < KNOWN.length;
+  }
+
+  /**
+   * @return name of the known dimension with the given id
+   */
+  public static String getName(int id) {
+    return KNOWN[id];
+  }
+
+  private static boolean equals(byte[] known, byte[] buf, int offset, int length) {
+    if (known.length != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (known[i] != buf[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -16,29 +16,186 @@
 
 package co.cask.cdap.apps.netlens.app.anomaly;
 
-import co.cask.cdap.api.common.Bytes;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableSortedMap;
 
+import java.util.Arrays;
 import java.util.Map;
-import java.util.SortedMap;
+import javax.annotation.Nullable;
 
 /**
  * Represents fact.
+ *
+ * Dimensions are kept as ids from {@link DimensionDictionary} sorted in ascending order, with values in a parallel
+ * array. Names of dimensions which are not in the dictionary are carried by the fact itself. This layout is also what
+ * gets serialized when facts are emitted between flowlets, so it is kept compact.
+ *
+ * Fact never changes its dimensions: methods like {@link #with(String, String)} return a new fact which shares
+ * unchanged arrays with this one.
  */
 public class Fact {
-  // map dimension name -> value
-  private SortedMap<String, String> dimensions;
+  static final String[] NO_CUSTOM_NAMES = new String[0];
+
   private long ts;
+  // ids of dimensions, sorted
+  private int[] dimensionIds;
+  // values of dimensions, same order as ids
+  private String[] values;
+  // names of dimensions that are not in the dictionary, id is FIRST_CUSTOM_ID + index
+  private String[] customNames;
+
+  // depends on dimensions only, so it is computed at most once
+  private transient SeriesKey seriesKey;
 
   public Fact(long ts, Map<String, String> dimensions) {
-    // todo: avoid copying maps
-    this.dimensions = ImmutableSortedMap.copyOf(dimensions);
+    FactBuilder builder = new FactBuilder();
+    for (Map.Entry<String, String> dimValue : dimensions.entrySet()) {
+      builder.add(dimValue.getKey(), dimValue.getValue());
+    }
+    Fact fact = builder.build(ts);
     this.ts = ts;
+    this.dimensionIds = fact.dimensionIds;
+    this.values = fact.values;
+    this.customNames = fact.customNames;
   }
 
+  // NOTE: given arrays are used as is, they must follow the layout described in class javadoc
+  Fact(long ts, int[] dimensionIds, String[] values, String[] customNames) {
+    this.ts = ts;
+    this.dimensionIds = dimensionIds;
+    this.values = values;
+    this.customNames = customNames;
+  }
+
+  /**
+   * @return copy of the dimensions sorted by name
+   */
   public Map<String, String> getDimensions() {
-    return dimensions;
+    ImmutableSortedMap.Builder<String, String> dimensions = ImmutableSortedMap.naturalOrder();
+    for (int i = 0; i < values.length; i++) {
+      dimensions.put(getName(i), values[i]);
+    }
+    return dimensions.build();
+  }
+
+  /**
+   * @return number of dimensions
+   */
+  public int size() {
+    return values.length;
+  }
+
+  /**
+   * @return id of the dimension at the given position
+   */
+  public int getDimensionId(int index) {
+    return dimensionIds[index];
+  }
+
+  /**
+   * @return name of the dimension at the given position
+   */
+  public String getName(int index) {
+    int id = dimensionIds[index];
+    return id < DimensionDictionary.FIRST_CUSTOM_ID ?
+      DimensionDictionary.getName(id) : customNames[id - DimensionDictionary.FIRST_CUSTOM_ID];
+  }
+
+  /**
+   * @return value of the dimension at the given position
+   */
+  public String getValue(int index) {
+    return values[index];
+  }
+
+  /**
+   * @return value of the given dimension, or {@code null} if fact does not have it
+   */
+  @Nullable
+  public String getValue(String name) {
+    int index = indexOf(name);
+    return index < 0 ? null : values[index];
+  }
+
+  /**
+   * @return position of the given dimension, or a negative number if fact does not have it
+   */
+  public int indexOf(String name) {
+    int id = DimensionDictionary.getId(name);
+    if (id >= 0) {
+      return Arrays.binarySearch(dimensionIds, id);
+    }
+    for (int i = 0; i < customNames.length; i++) {
+      if (customNames[i].equals(name)) {
+        return Arrays.binarySearch(dimensionIds, DimensionDictionary.FIRST_CUSTOM_ID + i);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return fact with same timestamp and dimensions plus the given one, replacing the existing value if any
+   */
+  public Fact with(String name, String value) {
+    int index = indexOf(name);
+    if (index >= 0) {
+      String[] newValues = values.clone();
+      newValues[index] = value;
+      return new Fact(ts, dimensionIds, newValues, customNames);
+    }
+    FactBuilder builder = toBuilder();
+    builder.add(name, value);
+    return builder.build(ts);
+  }
+
+  /**
+   * @return fact with same timestamp and dimensions except the given one
+   */
+  public Fact without(String name) {
+    int index = indexOf(name);
+    if (index < 0) {
+      return this;
+    }
+    int[] newIds = new int[values.length - 1];
+    String[] newValues = new String[values.length - 1];
+    System.arraycopy(dimensionIds, 0, newIds, 0, index);
+    System.arraycopy(values, 0, newValues, 0, index);
+    System.arraycopy(dimensionIds, index + 1, newIds, index, newIds.length - index);
+    System.arraycopy(values, index + 1, newValues, index, newValues.length - index);
+    return new Fact(ts, newIds, newValues, customNames);
+  }
+
+  /**
+   * @param positions bit mask of positions of the dimensions to keep, the lowest bit is for the first dimension. Only
+   *                  first 64 dimensions can be selected this way.
+   * @return fact with same timestamp and only the selected dimensions
+   */
+  public Fact subset(long positions) {
+    return subset(positions, null);
+  }
+
+  /**
+   * Same as {@link #subset(long)}, but also sets series key of the subset if it is already known.
+   */
+  Fact subset(long positions, @Nullable SeriesKey subsetKey) {
+    if (values.length < 64) {
+      // ignore bits of positions past the last dimension
+      positions &= (1L << values.length) - 1;
+    }
+    int size = Long.bitCount(positions);
+    int[] newIds = new int[size];
+    String[] newValues = new String[size];
+    int j = 0;
+    for (int i = 0; i < values.length && j < size; i++) {
+      if ((positions & (1L << i)) != 0) {
+        newIds[j] = dimensionIds[i];
+        newValues[j] = values[i];
+        j++;
+      }
+    }
+    Fact subset = new Fact(ts, newIds, newValues, customNames);
+    subset.seriesKey = subsetKey;
+    return subset;
   }
 
   public long getTs() {
@@ -50,21 +207,34 @@ public class Fact {
     this.ts = ts;
   }
 
-  public byte[] buildKey() {
-    // todo: optimize
-    StringBuilder sb = new StringBuilder();
-    for (Map.Entry<String, String> dimValue : dimensions.entrySet()) {
-      sb.append(dimValue.getKey().length()).append(dimValue.getKey());
-      sb.append(dimValue.getValue().length()).append(dimValue.getValue());
+  /**
+   * @return key of the data series this fact belongs to
+   */
+  public SeriesKey getSeriesKey() {
+    if (seriesKey == null) {
+      seriesKey = SeriesKey.of(this);
+    }
+    return seriesKey;
+  }
+
+  private FactBuilder toBuilder() {
+    FactBuilder builder = new FactBuilder();
+    for (int i = 0; i < values.length; i++) {
+      int id = dimensionIds[i];
+      if (id < DimensionDictionary.FIRST_CUSTOM_ID) {
+        builder.add(id, values[i]);
+      } else {
+        builder.addCustom(customNames[id - DimensionDictionary.FIRST_CUSTOM_ID], values[i]);
+      }
     }
-    return Bytes.toBytes(sb.toString());
+    return builder;
   }
 
   @Override
   public String toString() {
     return Objects.toStringHelper(Fact.class)
       .add("ts", ts)
-      .add("dimensions", dimensions)
+      .add("dimensions", getDimensions())
       .toString();
   }
 }
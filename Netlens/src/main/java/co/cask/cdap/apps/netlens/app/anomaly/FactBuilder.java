@@ -0,0 +1,131 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+/**
+ * Collects dimensions in any order and builds {@link Fact} storage out of them. Can be re-used for building many
+ * facts, not thread-safe.
+ */
+final class FactBuilder {
+  private static final int INITIAL_CAPACITY = 16;
+
+  // known dimensions
+  private int[] ids = new int[INITIAL_CAPACITY];
+  private String[] values = new String[INITIAL_CAPACITY];
+  private int size;
+
+  // dimensions which are not in the dictionary
+  private String[] customNames = new String[4];
+  private String[] customValues = new String[4];
+  private int customSize;
+
+  FactBuilder reset() {
+    size = 0;
+    customSize = 0;
+    return this;
+  }
+
+  FactBuilder add(String name, String value) {
+    int id = DimensionDictionary.getId(name);
+    if (id < 0) {
+      return addCustom(name, value);
+    }
+    return add(id, value);
+  }
+
+  FactBuilder add(int id, String value) {
+    if (size == ids.length) {
+      int[] newIds = new int[size * 2];
+      String[] newValues = new String[size * 2];
+      System.arraycopy(ids, 0, newIds, 0, size);
+      System.arraycopy(values, 0, newValues, 0, size);
+      ids = newIds;
+      values = newValues;
+    }
+    ids[size] = id;
+    values[size] = value;
+    size++;
+    return this;
+  }
+
+  FactBuilder addCustom(String name, String value) {
+    if (customSize == customNames.length) {
+      String[] newNames = new String[customSize * 2];
+      String[] newValues = new String[customSize * 2];
+      System.arraycopy(customNames, 0, newNames, 0, customSize);
+      System.arraycopy(customValues, 0, newValues, 0, customSize);
+      customNames = newNames;
+      customValues = newValues;
+    }
+    customNames[customSize] = name;
+    customValues[customSize] = value;
+    customSize++;
+    return this;
+  }
+
+  /**
+   * @throws IllegalArgumentException if same dimension was added more than once
+   */
+  Fact build(long ts) {
+    int total = size + customSize;
+    int[] factIds = new int[total];
+    String[] factValues = new String[total];
+
+    // insertion sort: there are only a handful of dimensions
+    for (int i = 0; i < size; i++) {
+      int id = ids[i];
+      String value = values[i];
+      int j = i - 1;
+      while (j >= 0 && factIds[j] > id) {
+        factIds[j + 1] = factIds[j];
+        factValues[j + 1] = factValues[j];
+        j--;
+      }
+      if (j >= 0 && factIds[j] == id) {
+        throw new IllegalArgumentException("Duplicate dimension " + DimensionDictionary.getName(id));
+      }
+      factIds[j + 1] = id;
+      factValues[j + 1] = value;
+    }
+
+    String[] factCustomNames = Fact.NO_CUSTOM_NAMES;
+    if (customSize > 0) {
+      // custom dimensions go after known ones, sorted by name
+      factCustomNames = new String[customSize];
+      for (int i = 0; i < customSize; i++) {
+        String name = customNames[i];
+        String value = customValues[i];
+        int j = i - 1;
+        while (j >= 0 && factCustomNames[j].compareTo(name) > 0) {
+          factCustomNames[j + 1] = factCustomNames[j];
+          factValues[size + j + 1] = factValues[size + j];
+          j--;
+        }
+        if (j >= 0 && factCustomNames[j].equals(name)) {
+          throw new IllegalArgumentException("Duplicate dimension " + name);
+        }
+        factCustomNames[j + 1] = name;
+        factValues[size + j + 1] = value;
+      }
+      for (int i = 0; i < customSize; i++) {
+        factIds[size + i] = DimensionDictionary.FIRST_CUSTOM_ID + i;
+      }
+    }
+
+    return new Fact(ts, factIds, factValues, factCustomNames);
+  }
+}
@@ -19,15 +19,10 @@ package co.cask.cdap.apps.netlens.app.anomaly;
 import co.cask.cdap.api.annotation.Batch;
 import co.cask.cdap.api.annotation.ProcessInput;
 import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.FlowletContext;
+import co.cask.cdap.api.flow.flowlet.FlowletException;
 import co.cask.cdap.api.flow.flowlet.OutputEmitter;
 import co.cask.cdap.api.flow.flowlet.StreamEvent;
-import com.google.common.base.Charsets;
-import com.google.common.io.LineReader;
-import com.google.common.reflect.TypeToken;
-import com.google.gson.Gson;
-
-import java.io.StringReader;
-import java.util.Map;
 
 /**
  * Parses stream data, outputs {@link Fact}s.
@@ -44,26 +39,27 @@ import java.util.Map;
  *
  * atz: source timezone
  * dtz: destination timezone
+ *
+ * Packets are parsed with {@link PacketParser} straight from the event body.
  */
 public class FactParser extends AbstractFlowlet {
-  private static final Gson GSON = new Gson();
-
   private OutputEmitter<Fact> output;
 
+  private PacketParser parser;
+
+  @Override
+  public void initialize(FlowletContext context) throws FlowletException {
+    parser = new PacketParser();
+  }
+
   @Batch(100)
   @ProcessInput
   public void processFromStream(StreamEvent event) throws Exception {
-    LineReader reader = new LineReader(new StringReader(Charsets.UTF_8.decode(event.getBody()).toString()));
-    String line = reader.readLine();
-    while (line != null) {
-      Fact fact = parseStream(line);
+    parser.reset(event.getBody());
+    Fact fact = parser.next(System.currentTimeMillis());
+    while (fact != null) {
       output.emit(fact);
-      line = reader.readLine();
+      fact = parser.next(System.currentTimeMillis());
     }
   }
-
-  private Fact parseStream(String line) {
-    Map<String, String> map = GSON.fromJson(line, new TypeToken<Map<String, String>>(){}.getType());
-    return new Fact(System.currentTimeMillis(), map);
-  }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Gson adapter for {@link Fact}. Keeps JSON format of a fact as it was when dimensions were kept in a map, i.e.
+ * <code>{"ts":1400000000000,"dimensions":{"app":"UDP","src":"1.1.1.1"}}</code>, which is what the stored anomalies
+ * and the web UI use.
+ */
+public final class FactTypeAdapter extends TypeAdapter<Fact> {
+
+  /**
+   * @return {@link Gson} that serializes facts with this adapter
+   */
+  public static Gson createGson() {
+    return new GsonBuilder().registerTypeAdapter(Fact.class, new FactTypeAdapter()).create();
+  }
+
+  @Override
+  public void write(JsonWriter out, Fact fact) throws IOException {
+    if (fact == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name("ts").value(fact.getTs());
+    out.name("dimensions").beginObject();
+    for (int i = 0; i < fact.size(); i++) {
+      out.name(fact.getName(i)).value(fact.getValue(i));
+    }
+    out.endObject();
+    out.endObject();
+  }
+
+  @Override
+  public Fact read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    long ts = 0;
+    FactBuilder builder = new FactBuilder();
+    in.beginObject();
+    while (in.hasNext()) {
+      String field = in.nextName();
+      if ("ts".equals(field)) {
+        ts = in.nextLong();
+      } else if ("dimensions".equals(field)) {
+        in.beginObject();
+        while (in.hasNext()) {
+          String name = in.nextName();
+          if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+          } else {
+            builder.add(name, in.nextString());
+          }
+        }
+        in.endObject();
+      } else {
+        in.skipValue();
+      }
+    }
+    in.endObject();
+    return builder.build(ts);
+  }
+}
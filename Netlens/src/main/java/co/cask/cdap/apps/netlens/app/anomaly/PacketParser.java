@@ -0,0 +1,266 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import com.google.common.base.Charsets;
+
+import java.nio.ByteBuffer;
+import javax.annotation.Nullable;
+
+/**
+ * Streaming parser of packet records into {@link Fact}s.
+ *
+ * Reads UTF-8 bytes of a stream event directly, without decoding the whole body into a string first. Every record is
+ * a flat object of string values, e.g. <code>{ 'src':'84.3.114.100', 'spt':'8784', 'app':'UDP' }</code>. Same as
+ * lenient JSON parsing it accepts single and double quoted strings, unquoted literals and any whitespace (including
+ * line breaks) between records. Dimensions with <code>null</code> value are skipped.
+ *
+ * Known dimension names are resolved to ids of {@link DimensionDictionary} straight from the bytes, and the fact
+ * storage is built in one pass. Instances are not thread-safe and are meant to be re-used for all events processed by
+ * a flowlet.
+ */
+public final class PacketParser {
+  private byte[] buf;
+  private int pos;
+  private int limit;
+
+  // dimensions of the record being parsed
+  private final FactBuilder builder = new FactBuilder();
+  // name of the last read dimension, if it is not in the dictionary
+  private String customName;
+
+  // used only for strings with escape sequences
+  private final StringBuilder unescaped = new StringBuilder();
+
+  /**
+   * Starts parsing of the given buffer. The buffer position is not changed.
+   */
+  public void reset(ByteBuffer body) {
+    if (body.hasArray()) {
+      buf = body.array();
+      pos = body.arrayOffset() + body.position();
+      limit = body.arrayOffset() + body.limit();
+    } else {
+      buf = new byte[body.remaining()];
+      body.duplicate().get(buf);
+      pos = 0;
+      limit = buf.length;
+    }
+  }
+
+  /**
+   * @param ts timestamp to assign to the parsed fact
+   * @return next fact in the buffer, or {@code null} if there are no more records
+   * @throws IllegalArgumentException if the record is malformed
+   */
+  @Nullable
+  public Fact next(long ts) {
+    skipWhitespace();
+    if (pos >= limit) {
+      return null;
+    }
+
+    expect('{');
+    builder.reset();
+    skipWhitespace();
+    if (peek() == '}') {
+      pos++;
+      return builder.build(ts);
+    }
+
+    while (true) {
+      skipWhitespace();
+      int id = readName();
+      skipWhitespace();
+      expect(':');
+      skipWhitespace();
+      String value = readValue();
+      if (value != null) {
+        if (id < 0) {
+          builder.addCustom(customName, value);
+        } else {
+          builder.add(id, value);
+        }
+      }
+      skipWhitespace();
+      byte c = read();
+      if (c == '}') {
+        return builder.build(ts);
+      }
+      if (c != ',') {
+        throw error("Expected ',' or '}'");
+      }
+    }
+  }
+
+  /**
+   * @return id of the dimension, or -1 if the name is not in the dictionary, in which case it is set to customName
+   */
+  private int readName() {
+    byte c = peek();
+    int start;
+    int end;
+    if (c == '\'' || c == '"') {
+      pos++;
+      start = pos;
+      end = findClosingQuote(c);
+      if (end < 0) {
+        customName = readEscaped(c, start);
+        return DimensionDictionary.getId(customName);
+      }
+      pos = end + 1;
+    } else {
+      start = pos;
+      end = skipLiteral();
+    }
+    int id = DimensionDictionary.getId(buf, start, end - start);
+    customName = id < 0 ? new String(buf, start, end - start, Charsets.UTF_8) : null;
+    return id;
+  }
+
+  @Nullable
+  private String readValue() {
+    byte c = peek();
+    if (c == '\'' || c == '"') {
+      pos++;
+      int start = pos;
+      int end = findClosingQuote(c);
+      if (end < 0) {
+        return readEscaped(c, start);
+      }
+      pos = end + 1;
+      return new String(buf, start, end - start, Charsets.UTF_8);
+    }
+    int start = pos;
+    int end = skipLiteral();
+    String literal = new String(buf, start, end - start, Charsets.UTF_8);
+    return "null".equals(literal) ? null : literal;
+  }
+
+  /**
+   * @return position of the closing quote, or -1 if the string contains escape sequences
+   */
+  private int findClosingQuote(byte quote) {
+    for (int i = pos; i < limit; i++) {
+      byte c = buf[i];
+      if (c == quote) {
+        return i;
+      }
+      if (c == '\\') {
+        return -1;
+      }
+    }
+    throw error("Unterminated string");
+  }
+
+  private String readEscaped(byte quote, int start) {
+    unescaped.setLength(0);
+    int runStart = start;
+    pos = start;
+    while (true) {
+      byte c = read();
+      if (c == quote) {
+        unescaped.append(new String(buf, runStart, pos - 1 - runStart, Charsets.UTF_8));
+        return unescaped.toString();
+      }
+      if (c != '\\') {
+        continue;
+      }
+      unescaped.append(new String(buf, runStart, pos - 1 - runStart, Charsets.UTF_8));
+      c = read();
+      switch (c) {
+        case 'b':
+          unescaped.append('\b');
+          break;
+        case 'f':
+          unescaped.append('\f');
+          break;
+        case 'n':
+          unescaped.append('\n');
+          break;
+        case 'r':
+          unescaped.append('\r');
+          break;
+        case 't':
+          unescaped.append('\t');
+          break;
+        case 'u':
+          if (pos + 4 > limit) {
+            throw error("Unterminated escape sequence");
+          }
+          unescaped.append((char) Integer.parseInt(new String(buf, pos, 4, Charsets.US_ASCII), 16));
+          pos += 4;
+          break;
+        default:
+          // \', \", \\, \/ and any other escaped char stand for themselves
+          unescaped.append((char) c);
+      }
+      runStart = pos;
+    }
+  }
+
+  /**
+   * @return end (exclusive) of the unquoted literal that starts at the current position
+   */
+  private int skipLiteral() {
+    int start = pos;
+    while (pos < limit) {
+      byte c = buf[pos];
+      if (c == ',' || c == ':' || c == '}' || c == '{' || isWhitespace(c)) {
+        break;
+      }
+      pos++;
+    }
+    if (pos == start) {
+      throw error("Expected value");
+    }
+    return pos;
+  }
+
+  private void skipWhitespace() {
+    while (pos < limit && isWhitespace(buf[pos])) {
+      pos++;
+    }
+  }
+
+  private static boolean isWhitespace(byte c) {
+    return c == ' ' || c == '\n' || c == '\r' || c == '\t';
+  }
+
+  private void expect(char expected) {
+    if (read() != expected) {
+      throw error("Expected '" + expected + "'");
+    }
+  }
+
+  private byte peek() {
+    if (pos >= limit) {
+      throw error("Unexpected end of input");
+    }
+    return buf[pos];
+  }
+
+  private byte read() {
+    byte c = peek();
+    pos++;
+    return c;
+  }
+
+  private IllegalArgumentException error(String message) {
+    return new IllegalArgumentException(message + " at position " + pos);
+  }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.apps.netlens.app.BinaryEncoding;
+import co.cask.lib.sketch.Hashes;
+
+/**
+ * Key of the data series of a {@link Fact}, i.e. of its set of dimension values. Used as a row key for the counters
+ * of a series.
+ *
+ * Format is a {@link #FORMAT_V1} byte followed by the dimensions in fact order. Every dimension is written as its id
+ * and the value prefixed with the value length, all numbers are varints (see {@link BinaryEncoding}). Dimensions which
+ * are not in {@link DimensionDictionary} are written as {@link DimensionDictionary#FIRST_CUSTOM_ID} followed by the
+ * length prefixed name.
+ *
+ * Instances keep hash code precomputed, so they are cheap to use as keys of hash maps.
+ */
+public final class SeriesKey {
+  public static final byte FORMAT_V1 = 1;
+
+  private final byte[] bytes;
+  private final int hash;
+
+  private SeriesKey(byte[] bytes) {
+    this.bytes = bytes;
+    this.hash = Bytes.hashCode(bytes);
+  }
+
+  /**
+   * @return series key for the given bytes, e.g. read from a table
+   */
+  public static SeriesKey wrap(byte[] bytes) {
+    return new SeriesKey(bytes);
+  }
+
+  /**
+   * @return series key of the given hex string, see {@link #toHex()}
+   * @throws IllegalArgumentException if the string is not valid hex
+   */
+  public static SeriesKey fromHex(String hex) {
+    return new SeriesKey(BinaryEncoding.fromHex(hex));
+  }
+
+  /**
+   * Builds series key of the fact. Use {@link Fact#getSeriesKey()} which caches the result.
+   */
+  static SeriesKey of(Fact fact) {
+    int size = 1;
+    for (int i = 0; i < fact.size(); i++) {
+      size += dimensionSize(fact, i);
+    }
+    byte[] bytes = new byte[size];
+    bytes[0] = FORMAT_V1;
+    int pos = 1;
+    for (int i = 0; i < fact.size(); i++) {
+      pos = writeDimension(bytes, pos, fact, i);
+    }
+    return new SeriesKey(bytes);
+  }
+
+  /**
+   * @return number of bytes the dimension at the given position takes in the key
+   */
+  static int dimensionSize(Fact fact, int index) {
+    int id = fact.getDimensionId(index);
+    int size;
+    if (id < DimensionDictionary.FIRST_CUSTOM_ID) {
+      size = BinaryEncoding.varIntSize(id);
+    } else {
+      int nameLength = BinaryEncoding.utf8Length(fact.getName(index));
+      size = BinaryEncoding.varIntSize(DimensionDictionary.FIRST_CUSTOM_ID) +
+        BinaryEncoding.varIntSize(nameLength) + nameLength;
+    }
+    int valueLength = BinaryEncoding.utf8Length(fact.getValue(index));
+    return size + BinaryEncoding.varIntSize(valueLength) + valueLength;
+  }
+
+  /**
+   * Writes the dimension at the given position of the fact.
+   * @return position after the written dimension
+   */
+  static int writeDimension(byte[] buf, int pos, Fact fact, int index) {
+    int id = fact.getDimensionId(index);
+    if (id < DimensionDictionary.FIRST_CUSTOM_ID) {
+      pos = BinaryEncoding.writeVarInt(buf, pos, id);
+    } else {
+      pos = BinaryEncoding.writeVarInt(buf, pos, DimensionDictionary.FIRST_CUSTOM_ID);
+      pos = writeString(buf, pos, fact.getName(index));
+    }
+    return writeString(buf, pos, fact.getValue(index));
+  }
+
+  /**
+   * Finds where every dimension of the fact is in its key.
+   * @param starts filled with start offsets of the dimensions in {@link Fact#getSeriesKey()} bytes
+   * @param lengths filled with lengths of the dimensions in {@link Fact#getSeriesKey()} bytes
+   */
+  static void locateDimensions(Fact fact, int[] starts, int[] lengths) {
+    int pos = 1;
+    for (int i = 0; i < fact.size(); i++) {
+      starts[i] = pos;
+      lengths[i] = dimensionSize(fact, i);
+      pos += lengths[i];
+    }
+  }
+
+  /**
+   * Builds key of a subset of dimensions by copying them from this key, without encoding them again.
+   * @param positions bit mask of positions of the dimensions in the subset, see {@link Fact#subset(long)}
+   * @param starts start offsets of the dimensions, see {@link #locateDimensions(Fact, int[], int[])}
+   * @param lengths lengths of the dimensions, see {@link #locateDimensions(Fact, int[], int[])}
+   * @param length total length of the dimensions in the subset
+   */
+  SeriesKey subset(long positions, int[] starts, int[] lengths, int length) {
+    byte[] subset = new byte[1 + length];
+    subset[0] = FORMAT_V1;
+    int pos = 1;
+    for (long remaining = positions; remaining != 0; remaining &= remaining - 1) {
+      int position = Long.numberOfTrailingZeros(remaining);
+      System.arraycopy(bytes, starts[position], subset, pos, lengths[position]);
+      pos += lengths[position];
+    }
+    return new SeriesKey(subset);
+  }
+
+  private static int writeString(byte[] buf, int pos, String value) {
+    pos = BinaryEncoding.writeVarInt(buf, pos, BinaryEncoding.utf8Length(value));
+    return BinaryEncoding.writeUtf8(buf, pos, value);
+  }
+
+  /**
+   * @return bytes of the key. NOTE: returned array must not be modified
+   */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  /**
+   * @return key as a hex string, safe to be passed around in urls
+   */
+  public String toHex() {
+    return BinaryEncoding.toHex(bytes);
+  }
+
+  /**
+   * Decodes dimensions of the series, e.g. for service handlers given a key returned with anomalies. Only keys in the
+   * {@link #FORMAT_V1} format are accepted. Keys written before it, as strings of length prefixed names and values,
+   * are rejected.
+   * @param ts timestamp to assign to the returned fact
+   * @return fact with the dimensions of this series
+   * @throws IllegalArgumentException if the key is not in the {@link #FORMAT_V1} format or is malformed
+   */
+  public Fact decode(long ts) {
+    BinaryEncoding.Reader reader = new BinaryEncoding.Reader(bytes);
+    if (!reader.hasRemaining() || reader.readByte() != FORMAT_V1) {
+      throw new IllegalArgumentException("Unknown series key format: " + Bytes.toStringBinary(bytes));
+    }
+    FactBuilder builder = new FactBuilder();
+    while (reader.hasRemaining()) {
+      int id = reader.readVarInt();
+      if (id == DimensionDictionary.FIRST_CUSTOM_ID) {
+        String name = reader.readString();
+        builder.addCustom(name, reader.readString());
+      } else if (DimensionDictionary.isKnown(id)) {
+        builder.add(id, reader.readString());
+      } else {
+        throw new IllegalArgumentException("Unknown dimension id " + id + " in " + Bytes.toStringBinary(bytes));
+      }
+    }
+    return builder.build(ts);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (o == null || getClass() != o.getClass()) {
+      return false;
+    }
+    SeriesKey other = (SeriesKey) o;
+    return hash == other.hash && Bytes.equals(bytes, other.bytes);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  /**
+   * @return 64 bit hash of the key, for when a series is identified by its hash alone and collisions must be rare
+   */
+  public long getLongHash() {
+    return Hashes.hash(bytes);
+  }
+
+  @Override
+  public String toString() {
+    return Bytes.toStringBinary(bytes);
+  }
+}
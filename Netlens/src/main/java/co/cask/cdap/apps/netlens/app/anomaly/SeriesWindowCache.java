@@ -0,0 +1,253 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.apps.netlens.app.cache.FlowletCache;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Keeps counts of the last intervals of the recently seen series, so that they don't have to be read from the
+ * counters table for every fact. The least recently used series are evicted when there are more than the max number
+ * of them.
+ *
+ * Changed counts are collected until {@link #flush()}, and windows are only evicted on flush, so that no change is
+ * lost. The cache is correct only as long as it is the only writer of the counts of its series.
+ */
+final class SeriesWindowCache {
+  private final int size;
+  private final long intervalSize;
+  private final FlowletCache<SeriesKey, Window> windows;
+  private final List<Window> changed;
+
+  /**
+   * @param size number of intervals in a window, at most 32
+   * @param intervalSize size of an interval in ms
+   * @param maxSeries max number of series to keep after {@link #flush()}
+   */
+  SeriesWindowCache(int size, long intervalSize, int maxSeries) {
+    Preconditions.checkArgument(size > 0 && size <= 32, "Window size must be between 1 and 32: %s", size);
+    this.size = size;
+    this.intervalSize = intervalSize;
+    this.windows = new FlowletCache<SeriesKey, Window>("window.cache", maxSeries, 0);
+    this.changed = Lists.newArrayList();
+  }
+
+  /**
+   * @return window of the series or null if it is not cached
+   */
+  @Nullable
+  Window get(SeriesKey key) {
+    return windows.get(key);
+  }
+
+  /**
+   * Caches window of the series loaded from the table.
+   * @param ts start of the newest interval in the window
+   * @param counts counts of the intervals, from the oldest to the newest one
+   */
+  Window put(SeriesKey key, long ts, int[] counts) {
+    Preconditions.checkArgument(counts.length == size, "Expected %s counts, got %s", size, counts.length);
+    Window window = new Window(key, ts, counts.clone());
+    windows.put(key, window);
+    return window;
+  }
+
+  /**
+   * @return windows with counts changed since the last flush. They have to be written to the table before
+   *         the next {@link #flush()}
+   */
+  List<Window> getChanged() {
+    return changed;
+  }
+
+  /**
+   * Marks all changes as written and evicts the least recently used windows over the max number of series.
+   * @return number of evicted windows
+   */
+  int flush() {
+    for (Window window : changed) {
+      window.changed = 0;
+      window.dropped = null;
+      window.pending = false;
+    }
+    changed.clear();
+    return windows.cleanUp();
+  }
+
+  /**
+   * Drops all windows, e.g. when changes were not persisted because of a failed transaction.
+   */
+  void invalidateAll() {
+    windows.invalidateAll();
+    changed.clear();
+  }
+
+  int getSeriesCount() {
+    return windows.size();
+  }
+
+  /**
+   * Emits hits, misses and evictions of the cache, see {@link FlowletCache#reportMetrics(Metrics)}.
+   */
+  void reportMetrics(Metrics metrics) {
+    windows.reportMetrics(metrics);
+  }
+
+  /**
+   * Counts of the last intervals of a series, kept in a ring buffer.
+   */
+  final class Window {
+    private final SeriesKey key;
+    private final int[] counts;
+    // start of the newest interval and its position in the ring
+    private long lastTs;
+    private int last;
+    // bit mask of positions with counts changed since the last flush
+    private int changed;
+    // changed counts that went out of the window before the flush
+    private Map<Long, Integer> dropped;
+    private boolean pending;
+    // state of the anomaly detector, if any, and start of the last interval added to it
+    private double[] detectorState;
+    private long detectorTs;
+    // start of the newest block of counts listed to be sealed, see SeriesCountTableUtil
+    private long listedBlockTs;
+
+    private Window(SeriesKey key, long lastTs, int[] counts) {
+      this.key = key;
+      this.counts = counts;
+      this.lastTs = lastTs;
+      this.last = size - 1;
+      this.listedBlockTs = -1;
+    }
+
+    SeriesKey getKey() {
+      return key;
+    }
+
+    long getLastTs() {
+      return lastTs;
+    }
+
+    @Nullable
+    double[] getDetectorState() {
+      return detectorState;
+    }
+
+    long getDetectorTs() {
+      return detectorTs;
+    }
+
+    void setDetectorState(double[] state, long ts) {
+      this.detectorState = state;
+      this.detectorTs = ts;
+    }
+
+    void setDetectorTs(long ts) {
+      this.detectorTs = ts;
+    }
+
+    long getListedBlockTs() {
+      return listedBlockTs;
+    }
+
+    void setListedBlockTs(long ts) {
+      this.listedBlockTs = ts;
+    }
+
+    /**
+     * @return count of the interval, or 0 if it is not in the window
+     */
+    int getCount(long ts) {
+      long age = (lastTs - ts) / intervalSize;
+      if (ts > lastTs || age >= size) {
+        return 0;
+      }
+      return counts[(int) ((last - age + size) % size)];
+    }
+
+    /**
+     * Adds to the count of the interval, moving the window forward if the interval is newer than the newest one.
+     * @param ts start of the interval
+     * @return false if the interval is older than the window, in which case nothing is changed
+     */
+    boolean add(long ts, int delta) {
+      if (ts > lastTs) {
+        long shift = (ts - lastTs) / intervalSize;
+        for (int i = 0; i < Math.min(shift, size); i++) {
+          int oldest = (last + 1) % size;
+          if ((changed & (1 << oldest)) != 0) {
+            if (dropped == null) {
+              dropped = new LinkedHashMap<Long, Integer>();
+            }
+            dropped.put(lastTs - (size - 1 - i) * intervalSize, counts[oldest]);
+            changed &= ~(1 << oldest);
+          }
+          last = oldest;
+          counts[last] = 0;
+        }
+        lastTs = ts;
+      }
+      long age = (lastTs - ts) / intervalSize;
+      if (age >= size) {
+        return false;
+      }
+      int position = (int) ((last - age + size) % size);
+      counts[position] += delta;
+      if (!pending) {
+        SeriesWindowCache.this.changed.add(this);
+        pending = true;
+      }
+      changed |= 1 << position;
+      return true;
+    }
+
+    /**
+     * Copies counts of the intervals to the given array, from the oldest to the newest one.
+     */
+    int[] getCounts(int[] dest) {
+      for (int i = 0; i < size; i++) {
+        dest[i] = counts[(last + 1 + i) % size];
+      }
+      return dest;
+    }
+
+    /**
+     * @return counts changed since the last flush, keyed by start of the interval
+     */
+    Map<Long, Integer> getChangedCounts() {
+      Map<Long, Integer> result = new LinkedHashMap<Long, Integer>();
+      if (dropped != null) {
+        result.putAll(dropped);
+      }
+      for (int i = 0; i < size; i++) {
+        int position = (last + 1 + i) % size;
+        if ((changed & (1 << position)) != 0) {
+          result.put(lastTs - (size - 1 - i) * intervalSize, counts[position]);
+        }
+      }
+      return result;
+    }
+  }
+}
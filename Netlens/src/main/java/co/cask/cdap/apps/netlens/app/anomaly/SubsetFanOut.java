@@ -0,0 +1,145 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Produces subsets of the fact dimensions: every subset has all required dimensions plus up to the max subset size of
+ * the other accepted ones. Dimensions which are neither required nor accepted are left out of all subsets.
+ *
+ * Subsets are enumerated as bit masks over the fact positions, with no intermediate maps. Subset facts share the
+ * dimension values of the original fact, and their series keys are put together from the parts of the original key
+ * instead of encoding the dimensions again. Not thread-safe: keeps scratch arrays between calls.
+ */
+final class SubsetFanOut {
+  private static final int MAX_DIMENSIONS = 62;
+
+  private final long requiredIds;
+  private final Set<String> requiredCustomNames;
+  private final long acceptedIds;
+  private final Set<String> acceptedCustomNames;
+  private final int maxSubsetSize;
+
+  private final int[] starts = new int[MAX_DIMENSIONS];
+  private final int[] lengths = new int[MAX_DIMENSIONS];
+  private final int[] optionalPositions = new int[MAX_DIMENSIONS];
+
+  /**
+   * @param requiredDimensions dimensions to keep in all subsets
+   * @param acceptedDimensions dimensions to combine in the subsets, null means all
+   * @param maxSubsetSize max number of not required dimensions in a subset
+   */
+  SubsetFanOut(Set<String> requiredDimensions, @Nullable Set<String> acceptedDimensions, int maxSubsetSize) {
+    Preconditions.checkArgument(maxSubsetSize >= 0, "Max subset size must not be negative: %s", maxSubsetSize);
+    ImmutableSet.Builder<String> customNames = ImmutableSet.builder();
+    this.requiredIds = toIds(requiredDimensions, customNames);
+    this.requiredCustomNames = customNames.build();
+    if (acceptedDimensions == null) {
+      this.acceptedIds = -1L;
+      this.acceptedCustomNames = null;
+    } else {
+      customNames = ImmutableSet.builder();
+      this.acceptedIds = toIds(acceptedDimensions, customNames);
+      this.acceptedCustomNames = customNames.build();
+    }
+    this.maxSubsetSize = maxSubsetSize;
+  }
+
+  /**
+   * @return bit mask of ids of known dimensions, the other names are added to the custom names
+   */
+  private static long toIds(Set<String> names, ImmutableSet.Builder<String> customNames) {
+    long ids = 0;
+    for (String name : names) {
+      int id = DimensionDictionary.getId(name);
+      if (id < 0) {
+        customNames.add(name);
+      } else {
+        ids |= 1L << id;
+      }
+    }
+    return ids;
+  }
+
+  /**
+   * Adds subsets of the fact to the given list.
+   * @return number of added subsets
+   */
+  int fanOut(Fact fact, List<Fact> subsets) {
+    int size = fact.size();
+    Preconditions.checkArgument(size <= MAX_DIMENSIONS, "Too many dimensions in %s", fact);
+
+    SeriesKey key = fact.getSeriesKey();
+    SeriesKey.locateDimensions(fact, starts, lengths);
+    long required = 0;
+    int requiredLength = 0;
+    int optionalCount = 0;
+    for (int i = 0; i < size; i++) {
+      if (contains(requiredIds, requiredCustomNames, fact, i)) {
+        required |= 1L << i;
+        requiredLength += lengths[i];
+      } else if (acceptedCustomNames == null || contains(acceptedIds, acceptedCustomNames, fact, i)) {
+        optionalPositions[optionalCount++] = i;
+      }
+    }
+
+    int added = 0;
+    int maxSize = Math.min(maxSubsetSize, optionalCount);
+    for (int k = 0; k <= maxSize; k++) {
+      // all k-bit masks over the optional dimensions in increasing order, see "Gosper's hack"
+      long limit = 1L << optionalCount;
+      for (long combination = (1L << k) - 1; combination < limit; combination = next(combination)) {
+        long positions = required;
+        int length = requiredLength;
+        for (long bits = combination; bits != 0; bits &= bits - 1) {
+          int position = optionalPositions[Long.numberOfTrailingZeros(bits)];
+          positions |= 1L << position;
+          length += lengths[position];
+        }
+        subsets.add(fact.subset(positions, key.subset(positions, starts, lengths, length)));
+        added++;
+        if (combination == 0) {
+          break;
+        }
+      }
+    }
+    return added;
+  }
+
+  private static boolean contains(long ids, Set<String> customNames, Fact fact, int index) {
+    int id = fact.getDimensionId(index);
+    if (id < DimensionDictionary.FIRST_CUSTOM_ID) {
+      return (ids & (1L << id)) != 0;
+    }
+    return !customNames.isEmpty() && customNames.contains(fact.getName(index));
+  }
+
+  /**
+   * @return next bigger number with the same number of bits set
+   */
+  private static long next(long combination) {
+    long lowest = combination & -combination;
+    long ripple = combination + lowest;
+    return (((ripple ^ combination) >>> 2) / lowest) | ripple;
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.lib.sketch.CountMinSketch;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tells which fact subsets are frequent enough to be worth counting, in the spirit of iceberg cubes: a series can only
+ * be an anomaly if its mean count per interval over the detection window is above the mean threshold, so series which
+ * stay below it do not need to reach the {@link AnomalyDetectionFlowlet} at all.
+ *
+ * Support of the series is estimated with Count-Min sketches over the current and the previous window. As the
+ * estimates never go below the real counts, a series that could be an anomaly is never pruned. Facts of a series are
+ * held back while its support is not above the min support, and released together with the fact that takes it above,
+ * so series which reach the min support are counted in full, in the intervals of their facts. Facts held back for
+ * longer than the previous window are dropped: their series never reached the min support and are not counted.
+ *
+ * Changes since the last {@link #commit()} are undone by {@link #rollback()}, so that facts released or held back in
+ * a failed transaction are neither lost nor held twice when the transaction is retried. Only the sketches are not
+ * rolled back, replayed facts are counted twice in them, which may only let more facts through.
+ */
+final class SubsetPruner {
+  private final long windowSize;
+  private final double minSupport;
+  private final int sketchWidth;
+  private final int maxHeld;
+
+  private long windowStart;
+  private CountMinSketch current;
+  private CountMinSketch previous;
+  // facts held back, by series, of the current and of the previous window
+  private Map<SeriesKey, List<Fact>> currentHeld;
+  private Map<SeriesKey, List<Fact>> previousHeld;
+  private int numHeld;
+
+  // state at the last commit, lists of held facts are never changed in place so that they can be restored
+  private long committedWindowStart;
+  private CountMinSketch committedCurrent;
+  private CountMinSketch committedPrevious;
+  private Map<SeriesKey, List<Fact>> committedCurrentHeld;
+  private Map<SeriesKey, List<Fact>> committedPreviousHeld;
+  private final List<Change> changes;
+
+  /**
+   * @param windowSize size of the window to estimate support over, in ms
+   * @param minSupport series with estimated support over the last window not above this are pruned
+   * @param sketchWidth width of the sketches, bigger means less series that should be pruned pass through
+   * @param maxHeld max number of facts to hold back, facts are let through when there are more
+   */
+  SubsetPruner(long windowSize, double minSupport, int sketchWidth, int maxHeld) {
+    this.windowSize = windowSize;
+    this.minSupport = minSupport;
+    this.sketchWidth = sketchWidth;
+    this.maxHeld = maxHeld;
+    this.current = new CountMinSketch(sketchWidth, 4);
+    this.previous = new CountMinSketch(sketchWidth, 4);
+    this.currentHeld = Maps.newHashMap();
+    this.previousHeld = Maps.newHashMap();
+    this.changes = Lists.newArrayList();
+    commit();
+  }
+
+  /**
+   * Counts occurrence of the series of the fact.
+   * @param released gets the facts of the series held back before, if the fact is to be emitted
+   * @return true if the fact should be emitted, false if it is held back
+   */
+  boolean offer(Fact fact, Collection<Fact> released) {
+    long start = (fact.getTs() / windowSize) * windowSize;
+    if (start > windowStart) {
+      startWindow(start);
+    }
+    SeriesKey key = fact.getSeriesKey();
+    byte[] bytes = key.getBytes();
+    if (current.add(bytes, 1) + previous.estimate(bytes) <= minSupport && numHeld < maxHeld) {
+      List<Fact> held = currentHeld.get(key);
+      List<Fact> newHeld = held == null ? Lists.<Fact>newArrayListWithCapacity(4) : Lists.newArrayList(held);
+      newHeld.add(fact);
+      changes.add(new Change(currentHeld, key, held));
+      currentHeld.put(key, newHeld);
+      numHeld++;
+      return false;
+    }
+    release(previousHeld, key, released);
+    release(currentHeld, key, released);
+    return true;
+  }
+
+  /**
+   * @return number of facts held back
+   */
+  int getNumHeld() {
+    return numHeld;
+  }
+
+  /**
+   * Makes changes since the last commit permanent.
+   */
+  void commit() {
+    committedWindowStart = windowStart;
+    committedCurrent = current;
+    committedPrevious = previous;
+    committedCurrentHeld = currentHeld;
+    committedPreviousHeld = previousHeld;
+    changes.clear();
+  }
+
+  /**
+   * Undoes changes to the held facts since the last commit.
+   */
+  void rollback() {
+    for (Change change : Lists.reverse(changes)) {
+      if (change.held == null) {
+        change.map.remove(change.key);
+      } else {
+        change.map.put(change.key, change.held);
+      }
+    }
+    windowStart = committedWindowStart;
+    current = committedCurrent;
+    previous = committedPrevious;
+    currentHeld = committedCurrentHeld;
+    previousHeld = committedPreviousHeld;
+    numHeld = 0;
+    for (List<Fact> held : currentHeld.values()) {
+      numHeld += held.size();
+    }
+    for (List<Fact> held : previousHeld.values()) {
+      numHeld += held.size();
+    }
+    changes.clear();
+  }
+
+  private void release(Map<SeriesKey, List<Fact>> map, SeriesKey key, Collection<Fact> released) {
+    List<Fact> held = map.remove(key);
+    if (held != null) {
+      changes.add(new Change(map, key, held));
+      released.addAll(held);
+      numHeld -= held.size();
+    }
+  }
+
+  // new sketches and maps rather than recycled ones, the committed ones are restored on rollback
+  private void startWindow(long start) {
+    for (List<Fact> held : previousHeld.values()) {
+      numHeld -= held.size();
+    }
+    if (start == windowStart + windowSize) {
+      previous = current;
+      previousHeld = currentHeld;
+    } else {
+      // nothing seen in the last window
+      for (List<Fact> held : currentHeld.values()) {
+        numHeld -= held.size();
+      }
+      previous = new CountMinSketch(sketchWidth, 4);
+      previousHeld = Maps.newHashMap();
+    }
+    current = new CountMinSketch(sketchWidth, 4);
+    currentHeld = Maps.newHashMap();
+    windowStart = start;
+  }
+
+  // held facts of the series in the map before a change
+  private static final class Change {
+    private final Map<SeriesKey, List<Fact>> map;
+    private final SeriesKey key;
+    private final List<Fact> held;
+
+    private Change(Map<SeriesKey, List<Fact>> map, SeriesKey key, List<Fact> held) {
+      this.map = map;
+      this.key = key;
+      this.held = held;
+    }
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly.detector;
+
+/**
+ * Detects anomalies in the counts of a series, one interval at a time.
+ *
+ * Implementations keep no per-series data themselves: everything they know about a series is in a state array of
+ * {@link #getStateSize()} doubles, which is kept by the caller and can be persisted. Both methods take constant time,
+ * independent of how much history the state covers.
+ */
+public interface AnomalyDetector {
+
+  /**
+   * @return name of the detector, also used to tell persisted states of different detectors apart
+   */
+  String getName();
+
+  /**
+   * @return number of doubles in the state of a series. State of a new series is all zeros.
+   */
+  int getStateSize();
+
+  /**
+   * Adds the final count of an interval to the state.
+   * @param interval index of the interval, i.e. start of the interval divided by the interval size
+   */
+  void update(double[] state, long interval, double count);
+
+  /**
+   * @param interval index of the interval, i.e. start of the interval divided by the interval size
+   * @param count count of the interval so far
+   * @return true if count of the interval following the ones added to the state is anomaly
+   */
+  boolean isAnomaly(double[] state, long interval, double count);
+}
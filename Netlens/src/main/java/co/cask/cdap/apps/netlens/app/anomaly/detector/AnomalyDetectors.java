@@ -0,0 +1,80 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package co.cask.cdap.apps.netlens.app.anomaly.detector;
+
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Creates {@link AnomalyDetector} selected with runtime arguments.
+ */
+public final class AnomalyDetectors {
+  // runtime arguments
+  public static final String DETECTOR = "detector";
+  public static final String ALPHA = "detector.alpha";
+  public static final String BETA = "detector.beta";
+  public static final String GAMMA = "detector.gamma";
+  public static final String SEASON_LENGTH = "detector.season";
+  public static final String RATE = "detector.rate";
+  public static final String MIN_POINTS = "detector.minPoints";
+
+  // compares the current interval with the last ones, see AnomalyDetectionFlowlet
+  public static final String WINDOW = "window";
+
+  private AnomalyDetectors() {
+  }
+
+  /**
+   * @param meanThreshold series with mean count per interval not above it are never anomalies
+   * @param sensitivity how many standard deviations above the expected count is anomaly
+   * @return detector selected with the {@link #DETECTOR} runtime argument, or null for the {@link #WINDOW} one
+   * @throws IllegalArgumentException if the detector is unknown or its parameters are invalid
+   */
+  @Nullable
+  public static AnomalyDetector create(Map<String, String> runtimeArguments, double meanThreshold,
+                                       double sensitivity) {
+    String name = get(runtimeArguments, DETECTOR, WINDOW);
+    int minPoints = Integer.parseInt(get(runtimeArguments, MIN_POINTS, "10"));
+    if (WINDOW.equals(name)) {
+      return null;
+    }
+    if (WelfordDetector.NAME.equals(name)) {
+      return new WelfordDetector(meanThreshold, sensitivity, minPoints);
+    }
+    if (EwmaDetector.NAME.equals(name)) {
+      double alpha = Double.parseDouble(get(runtimeArguments, ALPHA, "0.2"));
+      return new EwmaDetector(alpha, meanThreshold, sensitivity, minPoints);
+    }
+    if (HoltWintersDetector.NAME.equals(name)) {
+      // five minutes of 5 seconds intervals; the state keeps a double for every interval of the season
+      int seasonLength = Integer.parseInt(get(runtimeArguments, SEASON_LENGTH, "60"));
+      double alpha = Double.parseDouble(get(runtimeArguments, ALPHA, "0.2"));
+      double beta = Double.parseDouble(get(runtimeArguments, BETA, "0.01"));
+      double gamma = Double.parseDouble(get(runtimeArguments, GAMMA, "0.1"));
+      return new HoltWintersDetector(seasonLength, alpha, beta, gamma, meanThreshold, sensitivity, minPoints);
+    }
+    if (MadDetector.NAME.equals(name)) {
+      double rate = Double.parseDouble(get(runtimeArguments, RATE, "0.1"));
+      return new MadDetector(rate, meanThreshold, sensitivity, minPoints);
+    }
+    throw new IllegalArgumentException("Unknown anomaly detector: " + name);
+  }
+
+  private static String get(Map<String, String> runtimeArguments, String name, String defaultValue) {
+    String value = runtimeArguments.get(name);
+    return value == null ? defaultValue : value;
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package co.cask.cdap.apps.netlens.app.anomaly.detector;
+
+/**
+ * Compares the count with exponentially weighted moving mean and standard deviation of the previous counts, so that
+ * recent counts matter more than the old ones.
+ */
+public final class EwmaDetector implements AnomalyDetector {
+  public static final String NAME = "ewma";
+
+  private static final int N = 0;
+  private static final int MEAN = 1;
+  private static final int VARIANCE = 2;
+
+  private final double alpha;
+  private final double meanThreshold;
+  private final double sensitivity;
+  private final int minPoints;
+
+  /**
+   * @param alpha weight of the newest count, between 0 and 1. Weight of 2 / (N + 1) is close to the mean of the last
+   *              N counts
+   * @param meanThreshold series with mean not above it are never anomalies
+   * @param sensitivity how many standard deviations above the mean the count has to be to be anomaly
+   * @param minPoints number of counts to see before reporting anomalies
+   */
+  public EwmaDetector(double alpha, double meanThreshold, double sensitivity, int minPoints) {
+    if (alpha <= 0 || alpha > 1) {
+      throw new IllegalArgumentException("Alpha must be in (0, 1]: " + alpha);
+    }
+    this.alpha = alpha;
+    this.meanThreshold = meanThreshold;
+    this.sensitivity = sensitivity;
+    this.minPoints = minPoints;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public int getStateSize() {
+    return 3;
+  }
+
+  @Override
+  public void update(double[] state, long interval, double count) {
+    if (state[N] == 0) {
+      state[MEAN] = count;
+    } else {
+      double diff = count - state[MEAN];
+      double increment = alpha * diff;
+      state[MEAN] += increment;
+      state[VARIANCE] = (1 - alpha) * (state[VARIANCE] + diff * increment);
+    }
+    state[N]++;
+  }
+
+  @Override
+  public boolean isAnomaly(double[] state, long interval, double count) {
+    if (state[N] < minPoints || state[MEAN] <= meanThreshold) {
+      return false;
+    }
+    return count - state[MEAN] > sensitivity * Math.sqrt(state[VARIANCE]);
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package co.cask.cdap.apps.netlens.app.anomaly.detector;
+
+/**
+ * Predicts the count with additive Holt-Winters (triple exponential) smoothing: level, trend and a seasonal component
+ * for every interval of the season, e.g. of an hour. Count is anomaly if it is above the prediction by more than the
+ * given number of standard deviations of the prediction error.
+ *
+ * Seasonal components are indexed by the interval index modulo season length, so that they stay aligned with time when
+ * there are gaps. The first season of counts is used to initialize the level and the seasonal components.
+ */
+public final class HoltWintersDetector implements AnomalyDetector {
+  public static final String NAME = "holt-winters";
+
+  private static final int N = 0;
+  private static final int LEVEL = 1;
+  private static final int TREND = 2;
+  private static final int VARIANCE = 3;
+  private static final int SEASON = 4;
+
+  private final int seasonLength;
+  private final double alpha;
+  private final double beta;
+  private final double gamma;
+  private final double meanThreshold;
+  private final double sensitivity;
+  private final int minPoints;
+
+  /**
+   * @param seasonLength number of intervals in a season
+   * @param alpha smoothing factor of the level and of the prediction error, between 0 and 1
+   * @param beta smoothing factor of the trend, between 0 and 1
+   * @param gamma smoothing factor of the seasonal components, between 0 and 1
+   * @param meanThreshold series with level not above it are never anomalies
+   * @param sensitivity how many standard deviations above the prediction the count has to be to be anomaly
+   * @param minPoints number of counts to see after the first season before reporting anomalies
+   */
+  public HoltWintersDetector(int seasonLength, double alpha, double beta, double gamma,
+                             double meanThreshold, double sensitivity, int minPoints) {
+    if (seasonLength < 1) {
+      throw new IllegalArgumentException("Season length must be positive: " + seasonLength);
+    }
+    checkFactor("Alpha", alpha);
+    checkFactor("Beta", beta);
+    checkFactor("Gamma", gamma);
+    this.seasonLength = seasonLength;
+    this.alpha = alpha;
+    this.beta = beta;
+    this.gamma = gamma;
+    this.meanThreshold = meanThreshold;
+    this.sensitivity = sensitivity;
+    this.minPoints = minPoints;
+  }
+
+  private static void checkFactor(String name, double value) {
+    if (value < 0 || value > 1) {
+      throw new IllegalArgumentException(name + " must be in [0, 1]: " + value);
+    }
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public int getStateSize() {
+    return SEASON + seasonLength;
+  }
+
+  @Override
+  public void update(double[] state, long interval, double count) {
+    int season = SEASON + seasonIndex(interval);
+    if (state[N] < seasonLength) {
+      // first season: level is the mean, seasonal components are the counts until the season is over
+      state[season] = count;
+      state[LEVEL] += (count - state[LEVEL]) / (state[N] + 1);
+      state[N]++;
+      if (state[N] == seasonLength) {
+        for (int i = SEASON; i < SEASON + seasonLength; i++) {
+          state[i] -= state[LEVEL];
+        }
+      }
+      return;
+    }
+
+    double error = count - (state[LEVEL] + state[TREND] + state[season]);
+    state[VARIANCE] = alpha * error * error + (1 - alpha) * state[VARIANCE];
+    double level = alpha * (count - state[season]) + (1 - alpha) * (state[LEVEL] + state[TREND]);
+    state[TREND] = beta * (level - state[LEVEL]) + (1 - beta) * state[TREND];
+    state[season] = gamma * (count - level) + (1 - gamma) * state[season];
+    state[LEVEL] = level;
+    state[N]++;
+  }
+
+  @Override
+  public boolean isAnomaly(double[] state, long interval, double count) {
+    if (state[N] < seasonLength + minPoints || state[LEVEL] <= meanThreshold) {
+      return false;
+    }
+    double predicted = state[LEVEL] + state[TREND] + state[SEASON + seasonIndex(interval)];
+    return count - predicted > sensitivity * Math.sqrt(state[VARIANCE]);
+  }
+
+  private int seasonIndex(long interval) {
+    int index = (int) (interval % seasonLength);
+    return index < 0 ? index + seasonLength : index;
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package co.cask.cdap.apps.netlens.app.anomaly.detector;
+
+/**
+ * Robust detector: compares the count with the median of the previous counts, using median absolute deviation (MAD)
+ * instead of the standard deviation, so that a few big outliers do not hide the following ones.
+ *
+ * Median and MAD are tracked with stochastic approximation: every count moves the estimate towards itself by a step
+ * proportional to the current MAD. This keeps the state at a few numbers, at the cost of the estimates lagging behind
+ * abrupt level changes.
+ */
+public final class MadDetector implements AnomalyDetector {
+  public static final String NAME = "mad";
+
+  // makes MAD comparable with the standard deviation for normally distributed counts
+  private static final double MAD_TO_STD_DEV = 1.4826;
+
+  private static final int N = 0;
+  private static final int MEDIAN = 1;
+  private static final int MAD = 2;
+
+  private final double rate;
+  private final double meanThreshold;
+  private final double sensitivity;
+  private final int minPoints;
+
+  /**
+   * @param rate size of the step of the estimates relative to the MAD, between 0 and 1
+   * @param meanThreshold series with median not above it are never anomalies
+   * @param sensitivity how many standard deviations (estimated from MAD) above the median the count has to be to be
+   *                    anomaly
+   * @param minPoints number of counts to see before reporting anomalies
+   */
+  public MadDetector(double rate, double meanThreshold, double sensitivity, int minPoints) {
+    if (rate <= 0 || rate > 1) {
+      throw new IllegalArgumentException("Rate must be in (0, 1]: " + rate);
+    }
+    this.rate = rate;
+    this.meanThreshold = meanThreshold;
+    this.sensitivity = sensitivity;
+    this.minPoints = minPoints;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public int getStateSize() {
+    return 3;
+  }
+
+  @Override
+  public void update(double[] state, long interval, double count) {
+    if (state[N] == 0) {
+      state[MEDIAN] = count;
+    } else {
+      // counts are integers, so steps are at least a fraction of one
+      double step = rate * Math.max(state[MAD], 1);
+      state[MEDIAN] += step * Math.signum(count - state[MEDIAN]);
+      state[MAD] = Math.max(0, state[MAD] + step * Math.signum(Math.abs(count - state[MEDIAN]) - state[MAD]));
+    }
+    state[N]++;
+  }
+
+  @Override
+  public boolean isAnomaly(double[] state, long interval, double count) {
+    if (state[N] < minPoints || state[MEDIAN] <= meanThreshold) {
+      return false;
+    }
+    return count - state[MEDIAN] > sensitivity * MAD_TO_STD_DEV * state[MAD];
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package co.cask.cdap.apps.netlens.app.anomaly.detector;
+
+/**
+ * Compares the count with the mean and standard deviation of all previous counts of the series, kept with Welford's
+ * running variance algorithm.
+ */
+public final class WelfordDetector implements AnomalyDetector {
+  public static final String NAME = "welford";
+
+  private static final int N = 0;
+  private static final int MEAN = 1;
+  private static final int M2 = 2;
+
+  private final double meanThreshold;
+  private final double sensitivity;
+  private final int minPoints;
+
+  /**
+   * @param meanThreshold series with mean not above it are never anomalies
+   * @param sensitivity how many standard deviations above the mean the count has to be to be anomaly
+   * @param minPoints number of counts to see before reporting anomalies
+   */
+  public WelfordDetector(double meanThreshold, double sensitivity, int minPoints) {
+    this.meanThreshold = meanThreshold;
+    this.sensitivity = sensitivity;
+    this.minPoints = minPoints;
+  }
+
+  @Override
+  public String getName() {
+    return NAME;
+  }
+
+  @Override
+  public int getStateSize() {
+    return 3;
+  }
+
+  @Override
+  public void update(double[] state, long interval, double count) {
+    state[N]++;
+    double delta = count - state[MEAN];
+    state[MEAN] += delta / state[N];
+    state[M2] += delta * (count - state[MEAN]);
+  }
+
+  @Override
+  public boolean isAnomaly(double[] state, long interval, double count) {
+    if (state[N] < minPoints || state[MEAN] <= meanThreshold) {
+      return false;
+    }
+    double stdDev = Math.sqrt(state[M2] / state[N]);
+    return count - state[MEAN] > sensitivity * stdDev;
+  }
+}
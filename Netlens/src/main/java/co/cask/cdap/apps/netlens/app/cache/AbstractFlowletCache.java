@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.cache;
+
+import co.cask.cdap.api.metrics.Metrics;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base of the flowlet caches: size and TTL limits, and hit, miss and eviction statistics.
+ *
+ * Entries are only evicted by {@link #cleanUp()}, which a flowlet calls at the end of a transaction, or when an expired
+ * entry is looked up. Until then the cache may grow above the max size, but an entry with changes that are not
+ * persisted yet is never lost.
+ */
+abstract class AbstractFlowletCache {
+  private final String name;
+  protected final int maxSize;
+  // in nanoseconds, 0 if entries don't expire
+  protected final long ttl;
+  protected final Ticker ticker;
+
+  private int hits;
+  private int misses;
+  private int evictions;
+
+  /**
+   * @param name name of the cache, used as prefix of its metrics
+   * @param maxSize max number of entries to keep after {@link #cleanUp()}
+   * @param ttl time in ms an entry is kept after it was last accessed, 0 to keep entries until they are evicted
+   */
+  protected AbstractFlowletCache(String name, int maxSize, long ttl, Ticker ticker) {
+    Preconditions.checkArgument(maxSize >= 0, "Max size must not be negative: %s", maxSize);
+    Preconditions.checkArgument(ttl >= 0, "TTL must not be negative: %s", ttl);
+    this.name = name;
+    this.maxSize = maxSize;
+    this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+    this.ticker = ticker;
+  }
+
+  /**
+   * Evicts expired entries and the least recently used ones over the max size.
+   * @return number of evicted entries
+   */
+  public abstract int cleanUp();
+
+  /**
+   * @return number of entries in the cache, including the expired ones not evicted yet
+   */
+  public abstract int size();
+
+  /**
+   * Emits <code>&lt;name&gt;.hits</code>, <code>.misses</code> and <code>.evictions</code> since the last report, and
+   * <code>&lt;name&gt;.size</code> gauge.
+   */
+  public void reportMetrics(Metrics metrics) {
+    if (hits > 0) {
+      metrics.count(name + ".hits", hits);
+    }
+    if (misses > 0) {
+      metrics.count(name + ".misses", misses);
+    }
+    if (evictions > 0) {
+      metrics.count(name + ".evictions", evictions);
+    }
+    metrics.gauge(name + ".size", size());
+    hits = 0;
+    misses = 0;
+    evictions = 0;
+  }
+
+  protected final void recordHit() {
+    hits++;
+  }
+
+  protected final void recordMiss() {
+    misses++;
+  }
+
+  protected final void recordEvictions(int count) {
+    evictions += count;
+  }
+
+  protected final boolean isExpired(long accessTime, long now) {
+    return ttl > 0 && now - accessTime >= ttl;
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.cache;
+
+import com.google.common.base.Ticker;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Bounded cache of flowlet state with LRU eviction and optional TTL, see {@link AbstractFlowletCache}. Not thread
+ * safe: a flowlet instance processes one batch at a time.
+ * @param <K> type of the keys
+ * @param <V> type of the values
+ */
+public final class FlowletCache<K, V> extends AbstractFlowletCache {
+  // access order, for LRU eviction
+  private final LinkedHashMap<K, Entry<V>> entries;
+
+  /**
+   * @param name name of the cache, used as prefix of its metrics
+   * @param maxSize max number of entries to keep after {@link #cleanUp()}
+   * @param ttl time in ms an entry is kept after it was last accessed, 0 to keep entries until they are evicted
+   */
+  public FlowletCache(String name, int maxSize, long ttl) {
+    this(name, maxSize, ttl, Ticker.systemTicker());
+  }
+
+  FlowletCache(String name, int maxSize, long ttl, Ticker ticker) {
+    super(name, maxSize, ttl, ticker);
+    this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true);
+  }
+
+  /**
+   * @return cached value or null if there is none or it has expired
+   */
+  @Nullable
+  public V get(K key) {
+    Entry<V> entry = entries.get(key);
+    long now = ticker.read();
+    if (entry == null) {
+      recordMiss();
+      return null;
+    }
+    if (isExpired(entry.accessTime, now)) {
+      // it was not accessed in the current transaction, so it has no changes to lose
+      entries.remove(key);
+      recordEvictions(1);
+      recordMiss();
+      return null;
+    }
+    recordHit();
+    entry.accessTime = now;
+    return entry.value;
+  }
+
+  public void put(K key, V value) {
+    entries.put(key, new Entry<V>(value, ticker.read()));
+  }
+
+  @Nullable
+  public V remove(K key) {
+    Entry<V> entry = entries.remove(key);
+    return entry == null ? null : entry.value;
+  }
+
+  @Override
+  public int cleanUp() {
+    long now = ticker.read();
+    int evicted = 0;
+    // least recently accessed entries come first, so expired ones are at the beginning
+    Iterator<Entry<V>> it = entries.values().iterator();
+    while (it.hasNext()) {
+      Entry<V> entry = it.next();
+      if (entries.size() <= maxSize && !isExpired(entry.accessTime, now)) {
+        break;
+      }
+      it.remove();
+      evicted++;
+    }
+    recordEvictions(evicted);
+    return evicted;
+  }
+
+  /**
+   * Drops all entries, e.g. when changes were not persisted because of a failed transaction.
+   */
+  public void invalidateAll() {
+    entries.clear();
+  }
+
+  @Override
+  public int size() {
+    return entries.size();
+  }
+
+  private static final class Entry<V> {
+    private final V value;
+    private long accessTime;
+
+    private Entry(V value, long accessTime) {
+      this.value = value;
+      this.accessTime = accessTime;
+    }
+  }
+}
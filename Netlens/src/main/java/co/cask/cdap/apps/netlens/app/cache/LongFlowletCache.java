@@ -0,0 +1,251 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.cache;
+
+import com.google.common.base.Ticker;
+
+import java.util.Arrays;
+import javax.annotation.Nullable;
+
+/**
+ * Same as {@link FlowletCache}, but with primitive long keys, e.g. timestamps or 64 bit hashes, so that lookups don't
+ * box keys or allocate entries. Entries are kept in arrays, indexed by an open addressing hash table and linked in
+ * access order.
+ * @param <V> type of the values
+ */
+public final class LongFlowletCache<V> extends AbstractFlowletCache {
+  private static final int NONE = -1;
+
+  // entries
+  private long[] keys;
+  private Object[] values;
+  private long[] accessTimes;
+  // doubly linked list of the entries from the least recently accessed one, free entries are linked with next
+  private int[] previous;
+  private int[] next;
+  private int head = NONE;
+  private int tail = NONE;
+  private int free = NONE;
+  private int used;
+  private int size;
+  // hash table of entry indexes, linear probing
+  private int[] table;
+  private int mask;
+
+  /**
+   * @param name name of the cache, used as prefix of its metrics
+   * @param maxSize max number of entries to keep after {@link #cleanUp()}
+   * @param ttl time in ms an entry is kept after it was last accessed, 0 to keep entries until they are evicted
+   */
+  public LongFlowletCache(String name, int maxSize, long ttl) {
+    this(name, maxSize, ttl, Ticker.systemTicker());
+  }
+
+  LongFlowletCache(String name, int maxSize, long ttl, Ticker ticker) {
+    super(name, maxSize, ttl, ticker);
+    allocate(16);
+  }
+
+  /**
+   * @return cached value or null if there is none or it has expired
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int entry = find(key);
+    long now = ticker.read();
+    if (entry == NONE) {
+      recordMiss();
+      return null;
+    }
+    if (isExpired(accessTimes[entry], now)) {
+      // it was not accessed in the current transaction, so it has no changes to lose
+      delete(entry);
+      recordEvictions(1);
+      recordMiss();
+      return null;
+    }
+    recordHit();
+    touch(entry, now);
+    return (V) values[entry];
+  }
+
+  public void put(long key, V value) {
+    long now = ticker.read();
+    int entry = find(key);
+    if (entry != NONE) {
+      values[entry] = value;
+      touch(entry, now);
+      return;
+    }
+    if (free == NONE && used == keys.length) {
+      allocate(keys.length * 2);
+    }
+    if (free != NONE) {
+      entry = free;
+      free = next[entry];
+    } else {
+      entry = used++;
+    }
+    keys[entry] = key;
+    values[entry] = value;
+    accessTimes[entry] = now;
+    link(entry);
+    insert(entry);
+    size++;
+  }
+
+  @Nullable
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int entry = find(key);
+    if (entry == NONE) {
+      return null;
+    }
+    V value = (V) values[entry];
+    delete(entry);
+    return value;
+  }
+
+  @Override
+  public int cleanUp() {
+    long now = ticker.read();
+    int evicted = 0;
+    // least recently accessed entries come first, so expired ones are at the head
+    while (head != NONE && (size > maxSize || isExpired(accessTimes[head], now))) {
+      delete(head);
+      evicted++;
+    }
+    recordEvictions(evicted);
+    return evicted;
+  }
+
+  /**
+   * Drops all entries, e.g. when changes were not persisted because of a failed transaction.
+   */
+  public void invalidateAll() {
+    Arrays.fill(values, null);
+    Arrays.fill(table, NONE);
+    head = NONE;
+    tail = NONE;
+    free = NONE;
+    used = 0;
+    size = 0;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  private int find(long key) {
+    for (int slot = slot(key); table[slot] != NONE; slot = (slot + 1) & mask) {
+      if (keys[table[slot]] == key) {
+        return table[slot];
+      }
+    }
+    return NONE;
+  }
+
+  private void insert(int entry) {
+    int slot = slot(keys[entry]);
+    while (table[slot] != NONE) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = entry;
+  }
+
+  private void delete(int entry) {
+    // removing from the hash table, moving back entries of the same probe sequence
+    int slot = slot(keys[entry]);
+    while (table[slot] != entry) {
+      slot = (slot + 1) & mask;
+    }
+    int hole = slot;
+    table[hole] = NONE;
+    for (slot = (hole + 1) & mask; table[slot] != NONE; slot = (slot + 1) & mask) {
+      int home = slot(keys[table[slot]]);
+      // entry can fill the hole if its home slot is not cyclically in (hole, slot]
+      boolean stays = hole <= slot ? (hole < home && home <= slot) : (hole < home || home <= slot);
+      if (!stays) {
+        table[hole] = table[slot];
+        table[slot] = NONE;
+        hole = slot;
+      }
+    }
+    unlink(entry);
+    values[entry] = null;
+    next[entry] = free;
+    free = entry;
+    size--;
+  }
+
+  private void touch(int entry, long now) {
+    accessTimes[entry] = now;
+    if (entry != tail) {
+      unlink(entry);
+      link(entry);
+    }
+  }
+
+  private void link(int entry) {
+    previous[entry] = tail;
+    next[entry] = NONE;
+    if (tail == NONE) {
+      head = entry;
+    } else {
+      next[tail] = entry;
+    }
+    tail = entry;
+  }
+
+  private void unlink(int entry) {
+    if (previous[entry] == NONE) {
+      head = next[entry];
+    } else {
+      next[previous[entry]] = next[entry];
+    }
+    if (next[entry] == NONE) {
+      tail = previous[entry];
+    } else {
+      previous[next[entry]] = previous[entry];
+    }
+  }
+
+  private int slot(long key) {
+    // murmur3 finalizer, keys like timestamps are far from random
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    return (int) key & mask;
+  }
+
+  private void allocate(int capacity) {
+    keys = keys == null ? new long[capacity] : Arrays.copyOf(keys, capacity);
+    values = values == null ? new Object[capacity] : Arrays.copyOf(values, capacity);
+    accessTimes = accessTimes == null ? new long[capacity] : Arrays.copyOf(accessTimes, capacity);
+    previous = previous == null ? new int[capacity] : Arrays.copyOf(previous, capacity);
+    next = next == null ? new int[capacity] : Arrays.copyOf(next, capacity);
+    // table is kept at most half full
+    table = new int[capacity * 2];
+    mask = table.length - 1;
+    Arrays.fill(table, NONE);
+    for (int entry = 0; entry < used; entry++) {
+      insert(entry);
+    }
+  }
+}
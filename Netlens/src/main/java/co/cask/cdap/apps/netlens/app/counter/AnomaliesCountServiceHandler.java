@@ -18,19 +18,15 @@ package co.cask.cdap.apps.netlens.app.counter;
 
 import co.cask.cdap.api.annotation.UseDataSet;
 import co.cask.cdap.api.common.Bytes;
-import co.cask.cdap.api.dataset.lib.TimeseriesTable;
 import co.cask.cdap.api.dataset.table.Table;
 import co.cask.cdap.api.service.http.AbstractHttpServiceHandler;
 import co.cask.cdap.api.service.http.HttpServiceRequest;
 import co.cask.cdap.api.service.http.HttpServiceResponder;
 import co.cask.cdap.apps.netlens.app.Constants;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 
 import java.io.IOException;
-import java.util.Iterator;
+import java.net.HttpURLConnection;
 import java.util.List;
-import java.util.Map;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -43,8 +39,8 @@ import javax.ws.rs.QueryParam;
  */
 public class AnomaliesCountServiceHandler extends AbstractHttpServiceHandler {
 
-  @UseDataSet("anomalyCounters")
-  private TimeseriesTable anomalyCounters;
+  @UseDataSet("anomalyCounts")
+  private Table anomalyCounts;
 
   @UseDataSet("uniqueCounters")
   private Table uniqueCounters;
@@ -52,70 +48,79 @@ public class AnomaliesCountServiceHandler extends AbstractHttpServiceHandler {
   @UseDataSet("topN")
   private Table topNTable;
 
+  private final TopNWindowCache topNWindows =
+    new TopNWindowCache(AnomalyCounterFlowlet.TOPN_IP_WITH_ANOMALIES_KEY_PREFIX, Constants.TOPN_AGG_INTERVAL_SIZE, 100);
+
+  /**
+   * Returns number of anomalies in every interval of the range, of the given source ip if <code>src</code> is given.
+   * Intervals are of the given <code>resolution</code> (5s, 1m, 1h or 1d) or, by default, as fine as there are at
+   * most <code>maxPoints</code> (1000 by default) of them, see {@link Resolution}.
+   */
   @GET
   @Path("count/{startTs}/{endTs}")
   public void count(HttpServiceRequest request, HttpServiceResponder responder, @PathParam("startTs") Long startTs,
-                    @PathParam("endTs") Long endTs, @QueryParam("src") String src) throws IOException {
-    List<DataPoint> dataPoints;
+                    @PathParam("endTs") Long endTs, @QueryParam("src") String src,
+                    @QueryParam("resolution") String resolution,
+                    @QueryParam("maxPoints") Integer maxPoints) throws IOException {
+    Resolution pointResolution;
+    try {
+      pointResolution = Resolution.get(resolution, maxPoints, startTs, endTs, Resolution.INTERVAL_SIZES.length - 1);
+    } catch (IllegalArgumentException e) {
+      responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+      return;
+    }
+    byte[] prefix = AnomalyCounterFlowlet.TOTAL_COUNTER_KEY_PREFIX;
     if (src != null) {
-      dataPoints = getCounts(anomalyCounters, startTs, endTs,
-                             Bytes.add(AnomalyCounterFlowlet.IP_COUNTER_KEY_PREFIX, Bytes.toBytes(src)));
-    } else {
-      dataPoints = getCounts(anomalyCounters, startTs, endTs, AnomalyCounterFlowlet.TOTAL_COUNTER_KEY_PREFIX);
+      prefix = Bytes.add(AnomalyCounterFlowlet.IP_COUNTER_KEY_PREFIX, Bytes.toBytes(src));
     }
+    List<DataPoint> dataPoints = CounterTableUtil.getTimeline(anomalyCounts, prefix, AnomalyCounterFlowlet.COUNT_COLUMN,
+                                                              startTs, endTs, pointResolution);
     responder.sendJson(dataPoints);
   }
 
+  /**
+   * Returns estimated number of unique ips with anomalies in every interval of <code>intervalSize</code> ms (5 seconds
+   * by default) of the range. Pass size of the range as the interval size for a single count of the whole range.
+   */
   @GET
   @Path("uniqueIpsCount/{startTs}/{endTs}")
   public void uniquesCount(HttpServiceRequest request, HttpServiceResponder responder,
-                           @PathParam("startTs") Long startTs, @PathParam("endTs") Long endTs) throws IOException {
-    List<DataPoint> dataPoints = CounterTableUtil.getCounts(uniqueCounters,
-                                                            AnomalyCounterFlowlet.UNIQUE_IP_ANOMALY_COUNT_KEY_PREFIX,
-                                                            AnomalyCounterFlowlet.UNIQUE_IP_ANOMALY_COUNT_COLUMN,
-                                                            startTs, endTs);
+                           @PathParam("startTs") Long startTs, @PathParam("endTs") Long endTs,
+                           @QueryParam("intervalSize") Long intervalSize) throws IOException {
+    if (intervalSize == null) {
+      intervalSize = Constants.AGG_INTERVAL_SIZE;
+    } else if (intervalSize <= 0) {
+      responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, "Interval size must be positive: " + intervalSize);
+      return;
+    }
+    startTs = (startTs / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE;
+    // sketches are per 5 seconds interval, so bigger intervals are made of them
+    intervalSize = ((intervalSize + Constants.AGG_INTERVAL_SIZE - 1) / Constants.AGG_INTERVAL_SIZE) *
+      Constants.AGG_INTERVAL_SIZE;
+    byte[] prefix = AnomalyCounterFlowlet.UNIQUE_IP_ANOMALY_SKETCH_KEY_PREFIX;
+    List<DataPoint> dataPoints = UniqueCountTableUtil.getCounts(uniqueCounters, prefix, startTs, endTs, intervalSize);
     responder.sendJson(dataPoints);
   }
 
+  /**
+   * Returns ips with the highest counts in the window of <code>windowSize</code> ms (10 minutes by default) that
+   * starts at <code>startTs</code>.
+   */
   @GET
   @Path("topN/{startTs}")
   public void topN(HttpServiceRequest request, HttpServiceResponder responder, @PathParam("startTs") Long startTs,
-                   @DefaultValue("10") @QueryParam("limit") Long limit) throws IOException {
-    Table topNTable = this.topNTable;
-    byte[] prefix = AnomalyCounterFlowlet.TOPN_IP_WITH_ANOMALIES_KEY_PREFIX;
-    List<TopNTableUtil.TopNResult> result = TopNTableUtil.get(topNTable, prefix, startTs,
-                                                              Constants.TOPN_AGG_INTERVAL_SIZE, limit);
-    responder.sendJson(result);
-  }
-
-  private static List<DataPoint> getCounts(TimeseriesTable tsTable, long startTs, long endTs, byte[] seriesKey) {
-    // NOTE: inserting zeroes where value is absent
-    int pointsCount = (int) ((endTs - startTs) / Constants.AGG_INTERVAL_SIZE);
-    // normalizing startTs
-    startTs = (startTs / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE;
-    // ts -> # of entries
-    Map<Long, Integer> data = Maps.newTreeMap();
-    // we want zeroes to be filled
-    for (int i = 0; i < pointsCount; i++) {
-      long ts = startTs + i * Constants.AGG_INTERVAL_SIZE;
-      data.put(ts, 0);
-    }
-
-    // counting
-    Iterator<TimeseriesTable.Entry> entries = tsTable.read(seriesKey, startTs, endTs);
-    while (entries.hasNext()) {
-      TimeseriesTable.Entry entry = entries.next();
-      long ts = entry.getTimestamp();
-      Integer count = data.get(ts);
-      count = count == null ? 0 : count;
-      data.put(ts, count + 1);
+                   @DefaultValue("10") @QueryParam("limit") Long limit,
+                   @QueryParam("windowSize") Long windowSize) throws IOException {
+    if (windowSize == null) {
+      windowSize = Constants.TOPN_WINDOW_SIZE;
     }
-
-    // preparing output
-    List<DataPoint> dataPoints = Lists.newArrayList();
-    for (Map.Entry<Long, Integer> item : data.entrySet()) {
-      dataPoints.add(new DataPoint(item.getKey(), item.getValue()));
+    List<TopNTableUtil.TopNResult> result;
+    try {
+      result = topNWindows.get(topNTable, startTs, windowSize, limit, System.currentTimeMillis());
+    } catch (IllegalArgumentException e) {
+      responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+      return;
     }
-    return dataPoints;
+    responder.sendJson(result);
   }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -20,39 +20,49 @@ import co.cask.cdap.api.annotation.Batch;
 import co.cask.cdap.api.annotation.ProcessInput;
 import co.cask.cdap.api.annotation.UseDataSet;
 import co.cask.cdap.api.common.Bytes;
-import co.cask.cdap.api.dataset.lib.TimeseriesTable;
-import co.cask.cdap.api.dataset.table.Get;
-import co.cask.cdap.api.dataset.table.Put;
 import co.cask.cdap.api.dataset.table.Table;
 import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.FailurePolicy;
+import co.cask.cdap.api.flow.flowlet.FailureReason;
 import co.cask.cdap.api.flow.flowlet.FlowletContext;
 import co.cask.cdap.api.flow.flowlet.FlowletException;
+import co.cask.cdap.api.flow.flowlet.InputContext;
+import co.cask.cdap.api.metrics.Metrics;
 import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.IntervalKey;
+import co.cask.cdap.apps.netlens.app.anomaly.DimensionDictionary;
 import co.cask.cdap.apps.netlens.app.anomaly.Fact;
+import co.cask.cdap.apps.netlens.app.anomaly.SeriesKey;
+import com.google.common.collect.LinkedHashMultiset;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
 
 import java.util.Iterator;
 import java.util.Map;
 
 /**
+ * Counts detected anomalies: in total and per source ip for every interval, unique ips with anomalies, and top ips.
  *
+ * Anomaly counts are counters in the "anomalyCounts" dataset, incremented once per unique anomaly, so that reading
+ * them takes a row per interval rather than an entry per anomaly. Counters are prefixed with the ip for per ip
+ * counts, and rolled up into coarser intervals, see {@link CounterTableUtil}. Every counted anomaly is marked with the
+ * hash of its series in its interval, so that an anomaly delivered again, e.g. emitted again after a failure of the
+ * detection, is not counted twice.
  */
 public class AnomalyCounterFlowlet extends AbstractFlowlet {
   public static final byte[] TOTAL_COUNTER_KEY_PREFIX = Bytes.toBytes("T_");
   public static final byte[] IP_COUNTER_KEY_PREFIX = Bytes.toBytes("IC_");
+  public static final byte[] COUNT_COLUMN = Bytes.toBytes("c");
+  // prefix of the rows of the anomalies counted in an interval
+  public static final byte[] COUNTED_KEY_PREFIX = Bytes.toBytes("D_");
 
-  public static final byte[] IP_ANOMALY_LAST_SEEN_KEY_PREFIX = Bytes.toBytes("IS_");
-  public static final byte[] IP_ANOMALY_LAST_SEEN_COLUMN = Bytes.toBytes("ls");
-  public static final byte[] UNIQUE_IP_ANOMALY_COUNT_KEY_PREFIX = Bytes.toBytes("UI_");
-  public static final byte[] UNIQUE_IP_ANOMALY_COUNT_COLUMN = Bytes.toBytes("un");
+  public static final byte[] UNIQUE_IP_ANOMALY_SKETCH_KEY_PREFIX = Bytes.toBytes("UH_");
 
   // todo: move such constants of same dataset into one place?
   public static final byte[] TOPN_IP_WITH_ANOMALIES_KEY_PREFIX = Bytes.toBytes("atip_");
 
-  public static final byte[] FOO_VALUE = new byte[1];
-
-  @UseDataSet("anomalyCounters")
-  private TimeseriesTable anomalyCounters;
+  @UseDataSet("anomalyCounts")
+  private Table anomalyCounts;
 
   @UseDataSet("uniqueCounters")
   private Table uniqueCounters;
@@ -60,73 +70,97 @@ public class AnomalyCounterFlowlet extends AbstractFlowlet {
   @UseDataSet("topN")
   private Table topNTable;
 
+  private Metrics metrics;
+
+  private TopNCounter topN;
+  private UniqueCounter uniqueIps;
+
   @Override
   public void initialize(FlowletContext context) throws FlowletException {
-    lastSeenCache = Maps.newHashMap();
+    // buckets of the current window and of the previous minute, for late facts
+    int maxBuckets = (int) (Constants.TOPN_WINDOW_SIZE / Constants.TOPN_AGG_INTERVAL_SIZE) + 1;
+    topN = new TopNCounter(TOPN_IP_WITH_ANOMALIES_KEY_PREFIX, Constants.TOPN_AGG_INTERVAL_SIZE, maxBuckets,
+                           context.getInstanceId());
+    // intervals of the last minute, for late anomalies
+    int maxIntervals = (int) (Constants.TOPN_AGG_INTERVAL_SIZE / Constants.AGG_INTERVAL_SIZE);
+    uniqueIps = new UniqueCounter(UNIQUE_IP_ANOMALY_SKETCH_KEY_PREFIX, Constants.AGG_INTERVAL_SIZE, maxIntervals,
+                                  context.getInstanceId());
   }
 
-  @Batch(100)
+  @Batch(Constants.BATCH_SIZE)
   @ProcessInput
   public void process(Iterator<Fact> anomalies) {
-    while (anomalies.hasNext()) {
-      process(anomalies.next());
-    }
-  }
-
-  private void process(Fact anomaly) {
-    countAnomalies(anomaly);
-    countUniqueIps(anomaly);
-    countTopIps(anomaly);
+    count(anomalies);
+    topN.flush(topNTable);
+    uniqueIps.flush(uniqueCounters);
+    topN.reportMetrics(metrics);
+    uniqueIps.reportMetrics(metrics);
   }
 
-  private void countAnomalies(Fact anomaly) {
-    // placing key into a tag: simplest de-duping
-    byte[] tag = anomaly.buildKey();
-    // for totals
-    anomalyCounters.write(new TimeseriesTable.Entry(TOTAL_COUNTER_KEY_PREFIX, FOO_VALUE, anomaly.getTs(), tag));
-    // per ip
-    String ip = anomaly.getDimensions().get("src");
-    anomalyCounters.write(new TimeseriesTable.Entry(Bytes.add(IP_COUNTER_KEY_PREFIX, Bytes.toBytes(ip)),
-                                                    FOO_VALUE, anomaly.getTs(), tag));
+  @Override
+  public FailurePolicy onFailure(Object input, InputContext inputContext, FailureReason reason) {
+    // counted top N values and unique ips may have changes that were rolled back with the transaction
+    topN.invalidateAll();
+    uniqueIps.invalidateAll();
+    return super.onFailure(input, inputContext, reason);
   }
 
-  private void countTopIps(Fact fact) {
-    String src = fact.getDimensions().get("src");
-    if (src != null) {
-      TopNTableUtil.add(topNTable, TOPN_IP_WITH_ANOMALIES_KEY_PREFIX,
-                        Bytes.toBytes(src), fact.getTs(),
-                        Constants.TOPN_AGG_INTERVAL_SIZE * 10, Constants.TOPN_AGG_INTERVAL_SIZE);
+  private void count(Iterator<Fact> batch) {
+    // same anomaly is counted once
+    Map<IntervalKey<SeriesKey>, Fact> anomalies = Maps.newLinkedHashMap();
+    while (batch.hasNext()) {
+      Fact anomaly = batch.next();
+      anomalies.put(new IntervalKey<SeriesKey>(anomaly.getSeriesKey(), anomaly.getTs()), anomaly);
+      String src = anomaly.getValue(DimensionDictionary.SRC);
+      if (src != null) {
+        // unique ips sketch counts every ip once no matter how many times it is added
+        countUniqueIps(src, anomaly.getTs());
+      }
     }
-  }
-
-  // todo: move below methods into UniqCounterTable
-  private void countUniqueIps(Fact anomaly) {
-    String ip = anomaly.getDimensions().get("src");
-    if(!seenAt(ip, anomaly.getTs())) {
-      uniqueCounters.increment(Bytes.add(UNIQUE_IP_ANOMALY_COUNT_KEY_PREFIX, Bytes.toBytes(anomaly.getTs())),
-                               UNIQUE_IP_ANOMALY_COUNT_COLUMN, 1);
+    // anomalies of the same interval update the same counters, so they are counted at once
+    Multiset<Long> totals = LinkedHashMultiset.create();
+    Multiset<IntervalKey<String>> ipCounts = LinkedHashMultiset.create();
+    Multiset<IntervalKey<String>> topIps = LinkedHashMultiset.create();
+    int duplicates = 0;
+    for (Fact anomaly : anomalies.values()) {
+      long ts = (anomaly.getTs() / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE;
+      if (!CounterTableUtil.mark(anomalyCounts, COUNTED_KEY_PREFIX, ts, anomaly.getSeriesKey().getLongHash())) {
+        duplicates++;
+        continue;
+      }
+      totals.add(ts);
+      String src = anomaly.getValue(DimensionDictionary.SRC);
+      if (src != null) {
+        ipCounts.add(new IntervalKey<String>(src, ts));
+        long topNTs = (anomaly.getTs() / Constants.TOPN_AGG_INTERVAL_SIZE) * Constants.TOPN_AGG_INTERVAL_SIZE;
+        topIps.add(new IntervalKey<String>(src, topNTs));
+      }
     }
-  }
-
-  // todo: use txnl MemoryTable
-  private Map<String, Long> lastSeenCache;
-
-  private boolean seenAt(String ip, long ts) {
-    Long lastTs = lastSeenCache.get(ip);
-    if (lastTs == null) {
-      lastTs = uniqueCounters
-        .get(new Get(Bytes.add(IP_ANOMALY_LAST_SEEN_KEY_PREFIX, Bytes.toBytes(ip)), IP_ANOMALY_LAST_SEEN_COLUMN))
-        .getLong(IP_ANOMALY_LAST_SEEN_COLUMN);
+    if (duplicates > 0) {
+      metrics.count("anomalies.duplicates", duplicates);
     }
-
-    if (lastTs == null || lastTs < ts) {
-      uniqueCounters
-        .put(new Put(Bytes.add(IP_ANOMALY_LAST_SEEN_KEY_PREFIX, Bytes.toBytes(ip)), IP_ANOMALY_LAST_SEEN_COLUMN, ts));
-      lastSeenCache.put(ip, ts);
-      return false;
+    for (Multiset.Entry<Long> total : totals.entrySet()) {
+      countAnomalies(TOTAL_COUNTER_KEY_PREFIX, total.getElement(), total.getCount());
+    }
+    for (Multiset.Entry<IntervalKey<String>> ip : ipCounts.entrySet()) {
+      byte[] prefix = Bytes.add(IP_COUNTER_KEY_PREFIX, Bytes.toBytes(ip.getElement().getValue()));
+      countAnomalies(prefix, ip.getElement().getTs(), ip.getCount());
+    }
+    long now = System.currentTimeMillis();
+    for (Multiset.Entry<IntervalKey<String>> ip : topIps.entrySet()) {
+      countTopIps(ip.getElement(), ip.getCount(), now);
     }
+  }
+
+  private void countAnomalies(byte[] prefix, long ts, int count) {
+    CounterTableUtil.increment(anomalyCounts, prefix, COUNT_COLUMN, ts, count);
+  }
 
-    return true;
+  private void countTopIps(IntervalKey<String> src, int count, long now) {
+    topN.add(topNTable, src.getValue(), src.getTs(), count, now);
   }
 
+  private void countUniqueIps(String ip, long ts) {
+    uniqueIps.add(uniqueCounters, ip, ts);
+  }
 }
@@ -0,0 +1,96 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.apps.netlens.app.BinaryEncoding;
+
+import java.util.Arrays;
+
+/**
+ * Compressed counts of the intervals of a block of time, e.g. of a series in an hour, in the spirit of Gorilla
+ * (Pelkonen et al.), but byte aligned: only intervals with non-zero counts are written, their positions as zigzag
+ * varints of the delta of deltas, and their counts as varints of the XOR with the previous count.
+ *
+ * Series counted in every interval take two bytes per interval while counts stay below 128 or do not change much,
+ * series counted in few intervals take a few bytes per count.
+ */
+public final class CountBlock {
+  public static final byte FORMAT_V1 = 1;
+
+  private CountBlock() {
+  }
+
+  /**
+   * @param counts count of every interval of the block, zero for intervals without counts
+   * @return counts of the block in the {@link #FORMAT_V1} format
+   */
+  public static byte[] encode(int[] counts) {
+    int numCounts = 0;
+    for (int count : counts) {
+      if (count != 0) {
+        numCounts++;
+      }
+    }
+    // at most 5 bytes for a varint of the number of counts, of a position and of a count
+    byte[] buf = new byte[1 + 5 + numCounts * 10];
+    buf[0] = FORMAT_V1;
+    int pos = BinaryEncoding.writeVarInt(buf, 1, numCounts);
+    int previousPosition = -1;
+    int previousDelta = 1;
+    int previousCount = 0;
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] == 0) {
+        continue;
+      }
+      int delta = i - previousPosition;
+      pos = BinaryEncoding.writeVarInt(buf, pos, BinaryEncoding.zigZag(delta - previousDelta));
+      pos = BinaryEncoding.writeVarInt(buf, pos, counts[i] ^ previousCount);
+      previousPosition = i;
+      previousDelta = delta;
+      previousCount = counts[i];
+    }
+    return Arrays.copyOf(buf, pos);
+  }
+
+  /**
+   * Decodes all counts of the block at once.
+   * @param counts filled with the count of every interval of the block that has one
+   * @throws IllegalArgumentException if the block is malformed or has more intervals than the array
+   */
+  public static void decode(byte[] block, int[] counts) {
+    BinaryEncoding.Reader reader = new BinaryEncoding.Reader(block);
+    if (!reader.hasRemaining() || reader.readByte() != FORMAT_V1) {
+      throw new IllegalArgumentException("Unknown count block format");
+    }
+    int numCounts = reader.readVarInt();
+    int previousPosition = -1;
+    int previousDelta = 1;
+    int previousCount = 0;
+    for (int i = 0; i < numCounts; i++) {
+      int delta = previousDelta + BinaryEncoding.unZigZag(reader.readVarInt());
+      int position = previousPosition + delta;
+      if (delta <= 0 || position >= counts.length) {
+        throw new IllegalArgumentException("Invalid position of count " + i + " in count block: " + position);
+      }
+      int count = reader.readVarInt() ^ previousCount;
+      counts[position] = count;
+      previousPosition = position;
+      previousDelta = delta;
+      previousCount = count;
+    }
+  }
+}
@@ -26,27 +26,139 @@ import com.google.common.collect.Lists;
 import java.util.List;
 
 /**
- * Provides utility methods for dealing with counters in datasets
+ * Provides utility methods for dealing with counters in datasets.
+ *
+ * Counters are kept per interval of every {@link Resolution#INTERVAL_SIZES} level, so that long ranges are read from
+ * a few coarse counters rather than from every {@link Constants#AGG_INTERVAL_SIZE} one. Rows of the finest level are
+ * keyed by the prefix and the interval start, rows of the rollups are the same prefixed with {@link #ROLLUP_PREFIX}
+ * and the level byte. Intervals without a rollup row, e.g. counted before the rollups were kept, are read from the
+ * finer levels.
  */
 // todo: extract custom dataset or use cube;)?
 public final class CounterTableUtil {
-  public static List<DataPoint> getCounts(Table table, byte[] prefix, byte[] column, long startTs, long endTs) {
-    int pointsCount = (int) ((endTs - startTs) / Constants.AGG_INTERVAL_SIZE);
-    List<DataPoint> dataPoints = Lists.newArrayList();
+  public static final byte[] ROLLUP_PREFIX = Bytes.toBytes("R");
 
-    byte[] startRow = Bytes.add(prefix, Bytes.toBytes(startTs));
-    byte[] endRow = Bytes.add(prefix, Bytes.toBytes(endTs));
-    Scanner scan = table.scan(startRow, endRow);
+  private static final byte[] MARK = {1};
+
+  /**
+   * Increments the counters of the intervals the time is in, at every level.
+   */
+  public static void increment(Table table, byte[] prefix, byte[] column, long ts, long count) {
+    for (int level = 0; level < Resolution.INTERVAL_SIZES.length; level++) {
+      long intervalTs = ts - ts % Resolution.INTERVAL_SIZES[level];
+      table.increment(getRowKey(prefix, level, intervalTs), column, count);
+    }
+  }
+
+  /**
+   * Marks the id as counted in the interval, with a compare and swap so that concurrent transactions marking the same
+   * id conflict. Used to count what may be delivered again, e.g. after a failure, only once.
+   * @param prefix prefix of the rows of the marks, followed by the interval start, ids are the columns
+   * @return true if the id was not marked in the interval before
+   */
+  public static boolean mark(Table table, byte[] prefix, long ts, long id) {
+    return table.compareAndSwap(Bytes.add(prefix, Bytes.toBytes(ts)), Bytes.toBytes(id), null, MARK);
+  }
 
-    while (true) {
-      Row row = scan.next();
-      if (row == null) {
-        break;
+  /**
+   * @return data points of the intervals of the range with counters, in time order
+   */
+  public static List<DataPoint> getCounts(Table table, byte[] prefix, byte[] column, long startTs, long endTs,
+                                          Resolution resolution) {
+    return toDataPoints(new Timeline(table, prefix, column, startTs, endTs, resolution), false);
+  }
+
+  /**
+   * Same as {@link #getCounts(Table, byte[], byte[], long, long, Resolution)}, but with a data point for every
+   * interval of the range, zero if it has no counter. Takes one pass over the counter rows, no matter how many
+   * increments they are made of.
+   */
+  public static List<DataPoint> getTimeline(Table table, byte[] prefix, byte[] column, long startTs, long endTs,
+                                            Resolution resolution) {
+    return toDataPoints(new Timeline(table, prefix, column, startTs, endTs, resolution), true);
+  }
+
+  static byte[] getRowKey(byte[] prefix, int level, long ts) {
+    if (level == 0) {
+      return Bytes.add(prefix, Bytes.toBytes(ts));
+    }
+    return Bytes.add(ROLLUP_PREFIX, new byte[] {(byte) level}, Bytes.add(prefix, Bytes.toBytes(ts)));
+  }
+
+  private static List<DataPoint> toDataPoints(Timeline timeline, boolean fillZeroes) {
+    List<DataPoint> dataPoints = Lists.newArrayList();
+    for (int i = 0; i < timeline.counts.length; i++) {
+      if (fillZeroes || timeline.present[i]) {
+        dataPoints.add(new DataPoint(timeline.startTs + i * timeline.pointSize, timeline.counts[i]));
       }
-      long ts = Bytes.toLong(row.getRow(), prefix.length);
-      dataPoints.add(new DataPoint(ts, row.getLong(column).intValue()));
     }
     return dataPoints;
   }
 
+  /**
+   * Sums of the counters of every data point of a range. Where the level has no counter, e.g. for the intervals counted
+   * before the rollups were kept, the counters of the finer levels are summed instead.
+   */
+  private static final class Timeline {
+    private final long startTs;
+    private final long pointSize;
+    private final long[] counts;
+    // whether any counter was read for the data point
+    private final boolean[] present;
+
+    private Timeline(Table table, byte[] prefix, byte[] column, long startTs, long endTs, Resolution resolution) {
+      this.startTs = resolution.getStartTs(startTs);
+      this.pointSize = resolution.getPointSize();
+      int numPoints = resolution.getNumPoints(startTs, endTs);
+      this.counts = new long[numPoints];
+      this.present = new boolean[numPoints];
+      if (numPoints == 0) {
+        return;
+      }
+      read(table, prefix, column, resolution.getLevel(), this.startTs, endTs + 1);
+    }
+
+    // reads the counters of the level starting in [fromTs, toTs), and of the finer levels where the level has none
+    private void read(Table table, byte[] prefix, byte[] column, int level, long fromTs, long toTs) {
+      long intervalSize = Resolution.INTERVAL_SIZES[level];
+      int tsOffset = getRowKey(prefix, level, 0L).length - Bytes.SIZEOF_LONG;
+      // start and end of the ranges of intervals without counters
+      List<Long> missing = Lists.newArrayList();
+      long missingTs = fromTs;
+      Scanner scan = table.scan(getRowKey(prefix, level, fromTs), getRowKey(prefix, level, toTs));
+      try {
+        while (true) {
+          Row row = scan.next();
+          if (row == null) {
+            break;
+          }
+          long ts = Bytes.toLong(row.getRow(), tsOffset);
+          int index = (int) ((ts - this.startTs) / pointSize);
+          if (index >= 0 && index < counts.length) {
+            counts[index] += row.getLong(column, 0L);
+            present[index] = true;
+          }
+          if (ts > missingTs) {
+            missing.add(missingTs);
+            missing.add(ts);
+          }
+          missingTs = ts + intervalSize;
+        }
+      } finally {
+        scan.close();
+      }
+      if (level == 0) {
+        return;
+      }
+      // up to the end of the last interval, which its counter would cover
+      long endTs = ((toTs - 1) / intervalSize + 1) * intervalSize;
+      if (missingTs < endTs) {
+        missing.add(missingTs);
+        missing.add(endTs);
+      }
+      for (int i = 0; i < missing.size(); i += 2) {
+        read(table, prefix, column, level - 1, missing.get(i), missing.get(i + 1));
+      }
+    }
+  }
 }
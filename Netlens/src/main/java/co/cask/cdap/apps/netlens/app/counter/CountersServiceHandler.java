@@ -24,11 +24,19 @@ import co.cask.cdap.api.service.http.AbstractHttpServiceHandler;
 import co.cask.cdap.api.service.http.HttpServiceRequest;
 import co.cask.cdap.api.service.http.HttpServiceResponder;
 import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.anomaly.DimensionDictionary;
+import co.cask.cdap.apps.netlens.app.anomaly.Fact;
+import co.cask.cdap.apps.netlens.app.anomaly.SeriesKey;
+import co.cask.cdap.apps.netlens.app.histo.QuantileTableUtil;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
@@ -40,7 +48,13 @@ import javax.ws.rs.QueryParam;
  * Counters service handler
  */
 public class CountersServiceHandler extends AbstractHttpServiceHandler {
+  // max number of buckets to return boundaries of
+  private static final int MAX_BUCKETS = 100;
 
+  @UseDataSet("seriesCounts")
+  private Table seriesCounts;
+
+  // counts of series written before they were kept in seriesCounts
   @UseDataSet("counters")
   private TimeseriesTable counters;
 
@@ -50,45 +64,121 @@ public class CountersServiceHandler extends AbstractHttpServiceHandler {
   @UseDataSet("topN")
   private Table topNTable;
 
+  @UseDataSet("quantiles")
+  private Table quantiles;
+
+  private final TopNWindowCache topNWindows =
+    new TopNWindowCache(TrafficCounterFlowlet.TOPN_IP_KEY_PREFIX, Constants.TOPN_AGG_INTERVAL_SIZE, 100);
+
+  /**
+   * Returns ips with the highest counts in the window of <code>windowSize</code> ms (10 minutes by default) that
+   * starts at <code>startTs</code>.
+   */
   @GET
   @Path("topN/{startTs}")
   public void topN(HttpServiceRequest request, HttpServiceResponder responder, @PathParam("startTs") Long startTs,
-                   @DefaultValue("10") @QueryParam("limit") Long limit) throws IOException {
-    Table topNTable = this.topNTable;
-    byte[] prefix = TrafficCounterFlowlet.TOPN_IP_KEY_PREFIX;
-    List<TopNTableUtil.TopNResult> result = TopNTableUtil.get(topNTable, prefix, startTs,
-                                                              Constants.TOPN_AGG_INTERVAL_SIZE, limit);
+                   @DefaultValue("10") @QueryParam("limit") Long limit,
+                   @QueryParam("windowSize") Long windowSize) throws IOException {
+    if (windowSize == null) {
+      windowSize = Constants.TOPN_WINDOW_SIZE;
+    }
+    List<TopNTableUtil.TopNResult> result;
+    try {
+      result = topNWindows.get(topNTable, startTs, windowSize, limit, System.currentTimeMillis());
+    } catch (IllegalArgumentException e) {
+      responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+      return;
+    }
     responder.sendJson(result);
   }
 
+  /**
+   * Returns counts of the data series given either by its key (hex, as returned with anomalies) or by the source ip.
+   * Without both returns total traffic counts. Counts are of intervals of the given <code>resolution</code> (5s, 1m,
+   * 1h or 1d) or, by default, as fine as there are at most <code>maxPoints</code> (1000 by default) of them, see
+   * {@link Resolution}.
+   */
   @GET
   @Path("counts/{startTs}/{endTs}")
   public void timeRange(HttpServiceRequest request, HttpServiceResponder responder, @PathParam("startTs") Long startTs,
-                        @PathParam("endTs") Long endTs, @QueryParam("key") String key) throws IOException {
-    startTs = (startTs / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE;
-    if (key != null) {
-      getIPsCounts(key, startTs, endTs, responder);
+                        @PathParam("endTs") Long endTs, @QueryParam("key") String key,
+                        @QueryParam("src") String src, @QueryParam("resolution") String resolution,
+                        @QueryParam("maxPoints") Integer maxPoints) throws IOException {
+    SeriesKey seriesKey = null;
+    Resolution pointResolution;
+    try {
+      if (key != null) {
+        seriesKey = SeriesKey.fromHex(key);
+      } else if (src != null) {
+        seriesKey = new Fact(startTs, ImmutableMap.of(DimensionDictionary.SRC, src)).getSeriesKey();
+      }
+      // counts of series are only kept for the finest intervals
+      int maxLevel = seriesKey == null ? Resolution.INTERVAL_SIZES.length - 1 : 0;
+      pointResolution = Resolution.get(resolution, maxPoints, startTs, endTs, maxLevel);
+    } catch (IllegalArgumentException e) {
+      responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST, e.getMessage());
+      return;
+    }
+    if (seriesKey != null) {
+      getIPsCounts(seriesKey, startTs, endTs, pointResolution, responder);
     } else {
-      getTrafficCounts(startTs, endTs, responder);
+      getTrafficCounts(startTs, endTs, pointResolution, responder);
     }
   }
 
-  private void getTrafficCounts(long startTs, long endTs, HttpServiceResponder responder) throws IOException {
+  /**
+   * Returns count, min, max, p50, p90 and p99 of the values of a numeric dimension, e.g. <code>rl</code>, of the facts
+   * with timestamps in the range, with the boundaries of <code>buckets</code> buckets of equal counts (3 by default,
+   * as the values are categorized into). The range is extended to whole {@link Constants#QUANTILE_INTERVAL_SIZE}
+   * intervals.
+   */
+  @GET
+  @Path("percentiles/{dimension}/{startTs}/{endTs}")
+  public void percentiles(HttpServiceRequest request, HttpServiceResponder responder,
+                          @PathParam("dimension") String dimension, @PathParam("startTs") Long startTs,
+                          @PathParam("endTs") Long endTs,
+                          @DefaultValue("3") @QueryParam("buckets") Integer buckets) throws IOException {
+    if (buckets < 1 || buckets > MAX_BUCKETS) {
+      responder.sendError(HttpURLConnection.HTTP_BAD_REQUEST,
+                          "Number of buckets must be between 1 and " + MAX_BUCKETS + ": " + buckets);
+      return;
+    }
+    startTs = (startTs / Constants.QUANTILE_INTERVAL_SIZE) * Constants.QUANTILE_INTERVAL_SIZE;
+    responder.sendJson(QuantileTableUtil.getDistribution(quantiles, QuantileTableUtil.getPrefix(dimension),
+                                                         startTs, endTs, buckets));
+  }
+
+  private void getTrafficCounts(long startTs, long endTs, Resolution resolution,
+                                HttpServiceResponder responder) throws IOException {
     List<DataPoint> counts = CounterTableUtil.getCounts(trafficCounters, Bytes.EMPTY_BYTE_ARRAY,
                                                         TrafficCounterFlowlet.TOTAL_COUNTER_COLUMN,
-                                                        startTs, endTs);
+                                                        startTs, endTs, resolution);
     responder.sendJson(counts);
   }
 
-  private void getIPsCounts(String key, long startTs, long endTs, HttpServiceResponder responder) throws IOException {
-    // re-using counters needed for anomaly detection
-    Iterator<TimeseriesTable.Entry> entries = counters.read(Bytes.toBytesBinary(key), startTs, endTs);
-
-    List<DataPoint> dataPoints = Lists.newArrayList();
+  private void getIPsCounts(SeriesKey key, long startTs, long endTs, Resolution resolution,
+                            HttpServiceResponder responder) throws IOException {
+    // re-using counters needed for anomaly detection, summed into data points of the resolution
+    startTs = resolution.getStartTs(startTs);
+    Map<Long, DataPoint> dataPoints = Maps.newTreeMap();
+    for (DataPoint count : SeriesCountTableUtil.getCounts(seriesCounts, key.getBytes(), startTs, endTs)) {
+      add(dataPoints, resolution.getStartTs(count.getTs()), count.getValue());
+    }
+    // earlier counts are in the old dataset, the interval being counted when it was replaced is in both
+    Iterator<TimeseriesTable.Entry> entries = counters.read(key.getBytes(), startTs, endTs);
     while (entries.hasNext()) {
       TimeseriesTable.Entry entry = entries.next();
-      dataPoints.add(new DataPoint(entry.getTimestamp(), Bytes.toInt(entry.getValue())));
+      add(dataPoints, resolution.getStartTs(entry.getTimestamp()), Bytes.toInt(entry.getValue()));
+    }
+    responder.sendJson(Lists.newArrayList(dataPoints.values()));
+  }
+
+  private static void add(Map<Long, DataPoint> dataPoints, long ts, long count) {
+    DataPoint dataPoint = dataPoints.get(ts);
+    if (dataPoint == null) {
+      dataPoint = new DataPoint(ts, 0);
+      dataPoints.put(ts, dataPoint);
     }
-    responder.sendJson(dataPoints);
+    dataPoint.setValue(dataPoint.getValue() + count);
   }
 }
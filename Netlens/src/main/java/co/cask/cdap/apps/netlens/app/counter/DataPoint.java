@@ -21,9 +21,9 @@ package co.cask.cdap.apps.netlens.app.counter;
  */
 public class DataPoint {
   private long ts;
-  private int value;
+  private long value;
 
-  public DataPoint(long ts, int value) {
+  public DataPoint(long ts, long value) {
     this.ts = ts;
     this.value = value;
   }
@@ -36,11 +36,11 @@ public class DataPoint {
     this.ts = ts;
   }
 
-  public int getValue() {
+  public long getValue() {
     return value;
   }
 
-  public void setValue(int value) {
+  public void setValue(long value) {
     this.value = value;
   }
 }
@@ -0,0 +1,137 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.apps.netlens.app.Constants;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Resolution counters of a time range are returned at: the level of counters to read, see {@link #INTERVAL_SIZES},
+ * and the size of the intervals of the returned data points, a multiple of the interval size of the level.
+ */
+public final class Resolution {
+  /**
+   * Sizes of the intervals counters are kept for, index is the level: {@link Constants#AGG_INTERVAL_SIZE} counters
+   * and their rollups.
+   */
+  public static final long[] INTERVAL_SIZES = {Constants.AGG_INTERVAL_SIZE, TimeUnit.MINUTES.toMillis(1),
+                                               TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1)};
+  // names of the levels in queries
+  public static final String[] NAMES = {"5s", "1m", "1h", "1d"};
+  // number of data points returned when not given
+  public static final int DEFAULT_MAX_POINTS = 1000;
+  // max number of data points returned
+  public static final int MAX_POINTS = 100000;
+
+  private final int level;
+  private final long pointSize;
+
+  private Resolution(int level, long pointSize) {
+    this.level = level;
+    this.pointSize = pointSize;
+  }
+
+  /**
+   * Picks the resolution to return counters of the range at. By default, it is the coarsest level that still has at
+   * least <code>maxPoints</code> intervals in the range, so that as few counters as possible are read, with these
+   * intervals merged into at most <code>maxPoints</code> data points.
+   *
+   * @param name name of the level, see {@link #NAMES}, to return data points of its intervals, or null to pick one
+   * @param maxPoints max number of data points, or null for {@link #DEFAULT_MAX_POINTS}, or for no limit other than
+   *                  {@link #MAX_POINTS} if <code>name</code> is given
+   * @param maxLevel max level the counters are kept at, coarser intervals are made of the counters of this level
+   * @throws IllegalArgumentException if the name is unknown, max points are not between 1 and {@link #MAX_POINTS},
+   *                                  or there would be more than {@link #MAX_POINTS} data points
+   */
+  public static Resolution get(@Nullable String name, @Nullable Integer maxPoints, long startTs, long endTs,
+                               int maxLevel) {
+    if (maxPoints != null && (maxPoints < 1 || maxPoints > MAX_POINTS)) {
+      throw new IllegalArgumentException("Max points must be between 1 and " + MAX_POINTS + ": " + maxPoints);
+    }
+    if (name != null) {
+      int index = Arrays.asList(NAMES).indexOf(name);
+      if (index < 0) {
+        throw new IllegalArgumentException("Resolution must be one of " + Arrays.toString(NAMES) + ": " + name);
+      }
+      Resolution resolution = new Resolution(Math.min(index, maxLevel), INTERVAL_SIZES[index]);
+      if (maxPoints != null) {
+        return resolution.merged(startTs, endTs, maxPoints);
+      }
+      if (resolution.getNumPoints(startTs, endTs) > MAX_POINTS) {
+        throw new IllegalArgumentException("Range has more than " + MAX_POINTS + " intervals of " + name);
+      }
+      return resolution;
+    }
+    if (maxPoints == null) {
+      maxPoints = DEFAULT_MAX_POINTS;
+    }
+    int level = maxLevel;
+    while (level > 0 && new Resolution(level, INTERVAL_SIZES[level]).getNumPoints(startTs, endTs) < maxPoints) {
+      level--;
+    }
+    return new Resolution(level, INTERVAL_SIZES[level]).merged(startTs, endTs, maxPoints);
+  }
+
+  /**
+   * @return level of the counters to read
+   */
+  public int getLevel() {
+    return level;
+  }
+
+  /**
+   * @return size of the interval of a data point
+   */
+  public long getPointSize() {
+    return pointSize;
+  }
+
+  /**
+   * @return start of the first data point of a range starting at the given time
+   */
+  public long getStartTs(long startTs) {
+    return startTs - startTs % pointSize;
+  }
+
+  /**
+   * @return number of data points in the range
+   */
+  public int getNumPoints(long startTs, long endTs) {
+    long firstTs = getStartTs(startTs);
+    return endTs < firstTs ? 0 : (int) Math.min((endTs - firstTs) / pointSize + 1, Integer.MAX_VALUE);
+  }
+
+  // same level with its intervals merged into data points, so that there are at most maxPoints of them
+  private Resolution merged(long startTs, long endTs, int maxPoints) {
+    long intervalSize = INTERVAL_SIZES[level];
+    long multiple = Math.max(1, pointSize / intervalSize);
+    Resolution resolution = this;
+    while (resolution.getNumPoints(startTs, endTs) > maxPoints) {
+      multiple = Math.max(multiple + 1, multiple * resolution.getNumPoints(startTs, endTs) / maxPoints);
+      resolution = new Resolution(level, intervalSize * multiple);
+    }
+    return resolution;
+  }
+
+  @Override
+  public String toString() {
+    return "Resolution{level=" + level + ", pointSize=" + pointSize + "}";
+  }
+}
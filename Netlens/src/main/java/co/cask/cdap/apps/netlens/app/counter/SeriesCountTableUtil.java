@@ -0,0 +1,220 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Get;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.lib.sketch.Hashes;
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Provides utility methods for keeping the {@link Constants#AGG_INTERVAL_SIZE} counts of data series in a
+ * {@link Table}, with a row per series key and {@link #BLOCK_SIZE} block of time.
+ *
+ * Counts of the block that is still counted are columns of their intervals, updated in place. Once the block is over,
+ * it is sealed into a {@link CountBlock}, which takes a few bytes per count and is decoded in one go. Counts written
+ * after the block was sealed, e.g. of late facts, are columns next to the sealed one and override its counts until
+ * the block is sealed again.
+ *
+ * Blocks with interval columns have to be listed with {@link #listUnsealed(Table, byte[], long)}, once per block and
+ * again for counts written after it may have been sealed. They are listed in rows prefixed with
+ * {@link #OPEN_BLOCK_PREFIX}, in one of {@link #SHARDS} by the hash of the series key, so that blocks nobody seals when
+ * they are over, e.g. of series that went quiet or of late facts, are found and sealed by
+ * {@link #sweep(Table, int, int, long, int)}.
+ */
+public final class SeriesCountTableUtil {
+  public static final long BLOCK_SIZE = TimeUnit.HOURS.toMillis(1);
+  // number of intervals of a block
+  public static final int BLOCK_INTERVALS = (int) (BLOCK_SIZE / Constants.AGG_INTERVAL_SIZE);
+
+  // column of the sealed block, columns of intervals are two byte numbers of the interval in the block
+  private static final byte[] BLOCK_COLUMN = Bytes.toBytes("b");
+  // series keys start with their format byte, so rows of blocks to seal can't clash with rows of counts
+  private static final byte[] OPEN_BLOCK_PREFIX = Bytes.toBytes("o");
+  private static final byte[] OPEN_BLOCK_COLUMN = Bytes.toBytes("o");
+  static final int SHARDS = 16;
+
+  private SeriesCountTableUtil() {
+  }
+
+  /**
+   * @return start of the block the time is in
+   */
+  public static long getBlockTs(long ts) {
+    return ts - ts % BLOCK_SIZE;
+  }
+
+  /**
+   * Sets the count of the interval that starts at the given time.
+   */
+  public static void put(Table table, byte[] key, long ts, int count) {
+    long blockTs = getBlockTs(ts);
+    short interval = (short) ((ts - blockTs) / Constants.AGG_INTERVAL_SIZE);
+    table.put(getRowKey(key, blockTs), Bytes.toBytes(interval), Bytes.toBytes(count));
+  }
+
+  /**
+   * Lists the block as one with interval columns, to be sealed by {@link #sweep(Table, int, int, long, int)} unless
+   * it is sealed before.
+   */
+  public static void listUnsealed(Table table, byte[] key, long blockTs) {
+    table.put(getOpenBlockKey(key, blockTs), OPEN_BLOCK_COLUMN, new byte[] {1});
+  }
+
+  /**
+   * Compresses counts of the block into a {@link CountBlock}. Nothing is written if the block has no counts or is
+   * already sealed.
+   */
+  public static void seal(Table table, byte[] key, long blockTs) {
+    table.delete(getOpenBlockKey(key, blockTs));
+    byte[] rowKey = getRowKey(key, blockTs);
+    Row row = table.get(rowKey);
+    if (row.isEmpty() || (row.getColumns().size() == 1 && row.get(BLOCK_COLUMN) != null)) {
+      return;
+    }
+    table.put(rowKey, BLOCK_COLUMN, CountBlock.encode(decode(row)));
+    List<byte[]> intervals = Lists.newArrayList();
+    for (byte[] column : row.getColumns().keySet()) {
+      if (column.length == Bytes.SIZEOF_SHORT) {
+        intervals.add(column);
+      }
+    }
+    table.delete(rowKey, intervals.toArray(new byte[intervals.size()][]));
+  }
+
+  /**
+   * Seals blocks which ended before the given time and still have interval columns, from the shards of a flowlet
+   * instance: every instance sweeps the shards with number modulo the number of instances equal to its id.
+   * @param limit max number of blocks to seal
+   * @return number of blocks sealed
+   */
+  public static int sweep(Table table, int instanceId, int instanceCount, long endTs, int limit) {
+    int sealed = 0;
+    for (int shard = instanceId; shard < SHARDS && sealed < limit; shard += instanceCount) {
+      byte[] shardPrefix = Bytes.add(OPEN_BLOCK_PREFIX, new byte[] {(byte) shard});
+      Scanner scan = table.scan(shardPrefix, Bytes.add(shardPrefix, Bytes.toBytes(endTs - BLOCK_SIZE + 1)));
+      try {
+        Row row;
+        while (sealed < limit && (row = scan.next()) != null) {
+          byte[] rowKey = row.getRow();
+          long blockTs = Bytes.toLong(rowKey, shardPrefix.length);
+          int keyOffset = shardPrefix.length + Bytes.SIZEOF_LONG;
+          seal(table, Arrays.copyOfRange(rowKey, keyOffset, rowKey.length), blockTs);
+          sealed++;
+        }
+      } finally {
+        scan.close();
+      }
+    }
+    return sealed;
+  }
+
+  /**
+   * @return counts of consecutive intervals, index is the number of the interval from the one that starts at
+   *         <code>startTs</code>, zero for intervals without a count
+   */
+  public static int[] getCounts(Table table, byte[] key, long startTs, int numIntervals) {
+    int[] counts = new int[numIntervals];
+    long endTs = startTs + (numIntervals - 1) * Constants.AGG_INTERVAL_SIZE;
+    long blockTs = getBlockTs(startTs);
+    for (Row row : getBlocks(table, key, blockTs, endTs)) {
+      int[] blockCounts = decode(row);
+      if (blockCounts != null) {
+        for (int i = 0; i < BLOCK_INTERVALS; i++) {
+          long ts = blockTs + i * Constants.AGG_INTERVAL_SIZE;
+          if (ts >= startTs && ts <= endTs) {
+            counts[(int) ((ts - startTs) / Constants.AGG_INTERVAL_SIZE)] = blockCounts[i];
+          }
+        }
+      }
+      blockTs += BLOCK_SIZE;
+    }
+    return counts;
+  }
+
+  /**
+   * @return counts of the intervals of the range that have them, in time order
+   */
+  public static List<DataPoint> getCounts(Table table, byte[] key, long startTs, long endTs) {
+    List<DataPoint> dataPoints = Lists.newArrayList();
+    long blockTs = getBlockTs(startTs);
+    for (Row row : getBlocks(table, key, blockTs, endTs)) {
+      int[] blockCounts = decode(row);
+      if (blockCounts != null) {
+        for (int i = 0; i < BLOCK_INTERVALS; i++) {
+          long ts = blockTs + i * Constants.AGG_INTERVAL_SIZE;
+          if (blockCounts[i] != 0 && ts >= startTs && ts <= endTs) {
+            dataPoints.add(new DataPoint(ts, blockCounts[i]));
+          }
+        }
+      }
+      blockTs += BLOCK_SIZE;
+    }
+    return dataPoints;
+  }
+
+  // rows of all blocks from the given one to the one the end time is in, in one call
+  private static List<Row> getBlocks(Table table, byte[] key, long blockTs, long endTs) {
+    List<Get> gets = Lists.newArrayList();
+    for (long ts = blockTs; ts <= endTs; ts += BLOCK_SIZE) {
+      gets.add(new Get(getRowKey(key, ts)));
+    }
+    return gets.isEmpty() ? Lists.<Row>newArrayList() : table.get(gets);
+  }
+
+  // counts of every interval of the block, from the sealed block and the interval columns written after it
+  @Nullable
+  private static int[] decode(Row row) {
+    if (row.isEmpty()) {
+      return null;
+    }
+    int[] counts = new int[BLOCK_INTERVALS];
+    byte[] block = row.get(BLOCK_COLUMN);
+    if (block != null) {
+      CountBlock.decode(block, counts);
+    }
+    for (Map.Entry<byte[], byte[]> column : row.getColumns().entrySet()) {
+      if (column.getKey().length == Bytes.SIZEOF_SHORT) {
+        int interval = Bytes.toShort(column.getKey());
+        if (interval >= 0 && interval < BLOCK_INTERVALS) {
+          counts[interval] = Bytes.toInt(column.getValue());
+        }
+      }
+    }
+    return counts;
+  }
+
+  private static byte[] getRowKey(byte[] key, long blockTs) {
+    return Bytes.add(key, Bytes.toBytes(blockTs));
+  }
+
+  // <prefix><shard as byte><block_start_ts as long><series_key>, so that the oldest blocks of a shard come first
+  private static byte[] getOpenBlockKey(byte[] key, long blockTs) {
+    byte shard = (byte) ((Hashes.hash(key) >>> 1) % SHARDS);
+    return Bytes.add(OPEN_BLOCK_PREFIX, Bytes.add(new byte[] {shard}, Bytes.toBytes(blockTs), key));
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.cache.LongFlowletCache;
+import co.cask.lib.sketch.SpaceSavingSketch;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * Counts top N values of a flowlet instance in memory, with a {@link SpaceSavingSketch} per bucket of
+ * <code>granularity</code> size. Counting a value does not touch the table: only summaries of the buckets changed
+ * since the last {@link #flush(Table)} are written, once per transaction.
+ *
+ * Bucket of a late value that is not in memory anymore is loaded back from its summary. Values below the summary size
+ * of such a bucket are lost, so their counts in it may be too low. Values of buckets that are over for more than
+ * {@link Constants#TOPN_MAX_LATENESS} are not counted at all, so that top N of windows that are over does not change.
+ */
+final class TopNCounter {
+  // max number of values monitored per bucket
+  static final int DEFAULT_CAPACITY = 1000;
+  // number of values with the highest counts persisted per bucket
+  static final int DEFAULT_SUMMARY_SIZE = 100;
+
+  private final byte[] rowPrefix;
+  private final long granularity;
+  private final int instanceId;
+  private final int capacity;
+  private final int summarySize;
+  private final LongFlowletCache<SpaceSavingSketch<String>> buckets;
+  private final Map<Long, SpaceSavingSketch<String>> changed;
+  private int late;
+
+  TopNCounter(byte[] rowPrefix, long granularity, int maxBuckets, int instanceId) {
+    this(rowPrefix, granularity, maxBuckets, instanceId, DEFAULT_CAPACITY, DEFAULT_SUMMARY_SIZE);
+  }
+
+  /**
+   * @param rowPrefix prefix of the rows in the topN table
+   * @param granularity size of a bucket in ms
+   * @param maxBuckets max number of the most recently used buckets to keep in memory after {@link #flush(Table)}
+   * @param instanceId id of the flowlet instance, every instance persists its own summaries
+   * @param capacity max number of values monitored per bucket
+   * @param summarySize number of values with the highest counts persisted per bucket
+   */
+  TopNCounter(byte[] rowPrefix, long granularity, int maxBuckets, int instanceId, int capacity, int summarySize) {
+    this.rowPrefix = rowPrefix;
+    this.granularity = granularity;
+    this.instanceId = instanceId;
+    this.capacity = capacity;
+    this.summarySize = summarySize;
+    this.buckets = new LongFlowletCache<SpaceSavingSketch<String>>("topN.cache", maxBuckets, 0);
+    this.changed = Maps.newHashMap();
+  }
+
+  /**
+   * @return true if values of the bucket are not counted anymore at the given time
+   */
+  static boolean isLate(long bucketTs, long granularity, long now) {
+    return bucketTs + granularity + Constants.TOPN_MAX_LATENESS <= now;
+  }
+
+  /**
+   * @param now current time
+   * @return false if the value was not counted, as its bucket is over for too long, see {@link #isLate}
+   */
+  boolean add(Table topNTable, String value, long ts, int count, long now) {
+    long bucketTs = (ts / granularity) * granularity;
+    if (isLate(bucketTs, granularity, now)) {
+      late += count;
+      return false;
+    }
+    SpaceSavingSketch<String> bucket = buckets.get(bucketTs);
+    if (bucket == null) {
+      bucket = new SpaceSavingSketch<String>(capacity);
+      Map<String, Integer> summary = TopNTableUtil.getSummary(topNTable, rowPrefix, bucketTs, instanceId);
+      for (Map.Entry<String, Integer> entry : summary.entrySet()) {
+        bucket.add(entry.getKey(), entry.getValue());
+      }
+      buckets.put(bucketTs, bucket);
+    }
+    bucket.add(value, count);
+    changed.put(bucketTs, bucket);
+    return true;
+  }
+
+  /**
+   * Writes summaries of the changed buckets and drops the least recently used buckets over the max number of them.
+   */
+  void flush(Table topNTable) {
+    for (Map.Entry<Long, SpaceSavingSketch<String>> bucket : changed.entrySet()) {
+      TopNTableUtil.putSummary(topNTable, rowPrefix, bucket.getKey(), instanceId,
+                               bucket.getValue().getTop(summarySize));
+    }
+    changed.clear();
+    buckets.cleanUp();
+  }
+
+  /**
+   * Drops all buckets, e.g. when changes were not persisted because of a failed transaction.
+   */
+  void invalidateAll() {
+    buckets.invalidateAll();
+    changed.clear();
+  }
+
+  /**
+   * Emits hits, misses and evictions of the in-memory buckets, see {@link LongFlowletCache#reportMetrics(Metrics)},
+   * and the number of values that were too late as <code>topN.late</code>.
+   */
+  void reportMetrics(Metrics metrics) {
+    buckets.reportMetrics(metrics);
+    if (late > 0) {
+      metrics.count("topN.late", late);
+      late = 0;
+    }
+  }
+}
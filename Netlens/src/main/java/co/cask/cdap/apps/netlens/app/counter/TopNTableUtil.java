@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -20,87 +20,136 @@ import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.table.Row;
 import co.cask.cdap.api.dataset.table.Scanner;
 import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.apps.netlens.app.BinaryEncoding;
+import co.cask.lib.sketch.SpaceSavingSketch;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
 
 /**
- * Provides utility methods for counting top N  stuff in datasets
+ * Provides utility methods for counting top N  stuff in datasets.
+ *
+ * Values are counted in flowlet memory by {@link TopNCounter}, which persists a summary of the top values of every
+ * bucket of <code>granularity</code> size, separately for every flowlet instance. Top N for a window is computed at
+ * query time by merging summaries of all buckets in the window.
  */
 // todo: extract custom dataset or use cube;)?
 public final class TopNTableUtil {
-  public static final byte[] TOPN_KEY_PREFIX = Bytes.toBytes("t");
-  public static final byte[] TOPN_FOO_COLUMN = Bytes.toBytes("f");
-  public static final byte[] TOPN_INDEX_KEY_PREFIX = Bytes.toBytes("i");
-  public static final byte[] TOPN_INDEX_COLUMN = Bytes.toBytes("k");
-
-  public static final byte[] FOO_VALUE = new byte[1];
-
-  public static void add(Table topNTable, byte[] rowPrefix, byte[] value, long ts,
-                         long aggIntervalSize, long granularity) {
-    // todo: use parameter granularity instead of constant
-    ts = (ts / granularity) * granularity;
-    // NOTE: for topN rows we use key of format:
-    //       <TOPN_KEY_PREFIX><interval_start_ts as long><inverted_count as int><value>
-
-    byte[] topNRowPrefix = Bytes.add(rowPrefix, TOPN_KEY_PREFIX);
-    byte[] indexRowPrefix = Bytes.add(rowPrefix, TOPN_INDEX_KEY_PREFIX);
-    // count for every interval of <aggIntervalSize> size that is started every <granularity> and covers <ts> point
-    for (long intervalStart = ts; intervalStart > ts - aggIntervalSize; intervalStart -= granularity) {
-      byte[] intervalStartBytes = Bytes.toBytes(intervalStart);
-      byte[] indexKey = Bytes.add(indexRowPrefix, intervalStartBytes, value);
-      // todo: use cache (table caches only inside one tx)
-      // todo: fetch keys for all intervals at once outside the loop
-      byte[] topNKey = topNTable.get(indexKey, TOPN_INDEX_COLUMN);
-      int count;
-      if (topNKey == null) {
-        count = 0;
-      } else {
-        count = Integer.MAX_VALUE - Bytes.toInt(topNKey, topNRowPrefix.length + Bytes.SIZEOF_LONG);
-        topNTable.delete(topNKey, TOPN_FOO_COLUMN);
-      }
+  public static final byte[] TOPN_SUMMARY_KEY_PREFIX = Bytes.toBytes("s");
+  public static final byte[] TOPN_SUMMARY_COLUMN = Bytes.toBytes("v");
 
-      count++;
+  private TopNTableUtil() {
+  }
 
-      // write new row into topN
-      int invertedCount = Integer.MAX_VALUE - count;
-      topNKey = Bytes.add(topNRowPrefix, intervalStartBytes);
-      topNKey = Bytes.add(topNKey, Bytes.toBytes(invertedCount), value);
-      topNTable.put(topNKey, TOPN_FOO_COLUMN, FOO_VALUE);
+  /**
+   * Writes summary of the top values of a bucket counted by a flowlet instance, replacing the previous one.
+   */
+  public static void putSummary(Table topNTable, byte[] rowPrefix, long bucketTs, int instanceId,
+                                List<SpaceSavingSketch.Entry<String>> top) {
+    // NOTE: for summary rows we use key of format:
+    //       <rowPrefix><TOPN_SUMMARY_KEY_PREFIX><bucket_start_ts as long><instance_id as int>
+    //       and value of format: <number of values as varint>(<value as varint length and UTF-8><count as varint>)*
+    int size = BinaryEncoding.varIntSize(top.size());
+    for (SpaceSavingSketch.Entry<String> entry : top) {
+      int length = BinaryEncoding.utf8Length(entry.getItem());
+      size += BinaryEncoding.varIntSize(length) + length + BinaryEncoding.varIntSize(toInt(entry.getCount()));
+    }
+    byte[] value = new byte[size];
+    int pos = BinaryEncoding.writeVarInt(value, 0, top.size());
+    for (SpaceSavingSketch.Entry<String> entry : top) {
+      pos = BinaryEncoding.writeVarInt(value, pos, BinaryEncoding.utf8Length(entry.getItem()));
+      pos = BinaryEncoding.writeUtf8(value, pos, entry.getItem());
+      pos = BinaryEncoding.writeVarInt(value, pos, toInt(entry.getCount()));
+    }
+    topNTable.put(getSummaryKey(rowPrefix, bucketTs, instanceId), TOPN_SUMMARY_COLUMN, value);
+  }
 
-      // updating index
-      topNTable.put(indexKey, TOPN_INDEX_COLUMN, topNKey);
+  /**
+   * @return summary of the top values of a bucket counted by a flowlet instance, empty if there is none
+   */
+  public static Map<String, Integer> getSummary(Table topNTable, byte[] rowPrefix, long bucketTs, int instanceId) {
+    Map<String, Integer> summary = Maps.newLinkedHashMap();
+    byte[] value = topNTable.get(getSummaryKey(rowPrefix, bucketTs, instanceId), TOPN_SUMMARY_COLUMN);
+    if (value != null) {
+      addSummary(value, summary);
     }
+    return summary;
   }
 
-  // todo: granularity is needed only to round up startTs...
-  public static List<TopNResult> get(Table topNTable, byte[] rowPrefix, long startTs, long granularity, long limit) {
-    // todo: use parameter instead of constant
+  /**
+   * @param startTs start of the window, rounded down to granularity
+   * @param windowSize size of the window, multiple of granularity
+   * @param granularity size of the buckets values were counted in
+   * @return values with the highest counts in the window, from the highest one
+   */
+  public static List<TopNResult> get(Table topNTable, byte[] rowPrefix, long startTs, long windowSize,
+                                     long granularity, long limit) {
+    List<TopNResult> merged = merge(topNTable, rowPrefix, startTs, windowSize, granularity);
+    return merged.size() > limit ? merged.subList(0, (int) limit) : merged;
+  }
+
+  /**
+   * Same as {@link #get(Table, byte[], long, long, long, long)}, but returns all values counted in the window.
+   */
+  public static List<TopNResult> merge(Table topNTable, byte[] rowPrefix, long startTs, long windowSize,
+                                       long granularity) {
     startTs = (startTs / granularity) * granularity;
 
-    List<TopNResult> result = Lists.newArrayList();
-    // NOTE: for topN rows we use key of format:
-    //       <prefix><interval_start_ts as long><inverted_count as int><value>
-
-    byte[] topNRowPrefix = Bytes.add(rowPrefix, TOPN_KEY_PREFIX);
-    byte[] startKey = Bytes.add(topNRowPrefix, Bytes.toBytes(startTs));
-    byte[] stopKey = Bytes.add(topNRowPrefix, Bytes.toBytes(startTs + 1));
-    Scanner scan = topNTable.scan(startKey, stopKey);
-    while (limit > 0) {
-      Row row = scan.next();
-      if (row == null) {
-        break;
+    // summing up summaries of all buckets of all instances
+    Map<String, Integer> counts = Maps.newHashMap();
+    byte[] summaryRowPrefix = Bytes.add(rowPrefix, TOPN_SUMMARY_KEY_PREFIX);
+    Scanner scan = topNTable.scan(Bytes.add(summaryRowPrefix, Bytes.toBytes(startTs)),
+                                  Bytes.add(summaryRowPrefix, Bytes.toBytes(startTs + windowSize)));
+    try {
+      Row row;
+      while ((row = scan.next()) != null) {
+        byte[] value = row.get(TOPN_SUMMARY_COLUMN);
+        if (value != null) {
+          addSummary(value, counts);
+        }
+      }
+    } finally {
+      scan.close();
+    }
+
+    List<Map.Entry<String, Integer>> entries = Lists.newArrayList(counts.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Integer>>() {
+      @Override
+      public int compare(Map.Entry<String, Integer> o1, Map.Entry<String, Integer> o2) {
+        int cmp = o2.getValue().compareTo(o1.getValue());
+        return cmp != 0 ? cmp : o1.getKey().compareTo(o2.getKey());
       }
-      int count = Integer.MAX_VALUE - Bytes.toInt(row.getRow(),
-                                                  topNRowPrefix.length + Bytes.SIZEOF_LONG);
-      int metaSize = topNRowPrefix.length + Bytes.SIZEOF_LONG + Bytes.SIZEOF_INT;
-      byte[] val = Bytes.tail(row.getRow(), row.getRow().length - metaSize);
-      result.add(new TopNResult(Bytes.toString(val), count));
-      limit--;
+    });
+    List<TopNResult> result = Lists.newArrayListWithCapacity(entries.size());
+    for (Map.Entry<String, Integer> entry : entries) {
+      result.add(new TopNResult(entry.getKey(), entry.getValue()));
     }
     return result;
   }
 
+  private static byte[] getSummaryKey(byte[] rowPrefix, long bucketTs, int instanceId) {
+    return Bytes.add(rowPrefix, TOPN_SUMMARY_KEY_PREFIX, Bytes.add(Bytes.toBytes(bucketTs), Bytes.toBytes(instanceId)));
+  }
+
+  private static void addSummary(byte[] value, Map<String, Integer> counts) {
+    BinaryEncoding.Reader reader = new BinaryEncoding.Reader(value);
+    int size = reader.readVarInt();
+    for (int i = 0; i < size; i++) {
+      String item = reader.readString();
+      int count = reader.readVarInt();
+      Integer current = counts.get(item);
+      counts.put(item, current == null ? count : toInt((long) current + count));
+    }
+  }
+
+  private static int toInt(long count) {
+    return (int) Math.min(count, Integer.MAX_VALUE);
+  }
+
   // for serializing response
   public static final class TopNResult {
     private String value;
@@ -110,6 +159,14 @@ public final class TopNTableUtil {
       this.value = value;
       this.count = count;
     }
+
+    public String getValue() {
+      return value;
+    }
+
+    public int getCount() {
+      return count;
+    }
   }
 
 }
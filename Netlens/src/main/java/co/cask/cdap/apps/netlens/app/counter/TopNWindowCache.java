@@ -0,0 +1,112 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.IntervalKey;
+import com.google.common.collect.Lists;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves top N values of windows of any size, merged from the bucket summaries with {@link TopNTableUtil}. Top values
+ * of closed windows, which can't change anymore, are cached: dashboards keep asking for the same windows. A window is
+ * closed once {@link TopNCounter} does not count late values of its last bucket anymore, plus a bucket for clock skew
+ * and transactions in progress.
+ */
+final class TopNWindowCache {
+  private final byte[] rowPrefix;
+  private final long granularity;
+  // window size and start -> top values of the window
+  private final LinkedHashMap<IntervalKey<Long>, CachedWindow> cache;
+
+  /**
+   * @param rowPrefix prefix of the rows in the topN table
+   * @param granularity size of the buckets values were counted in
+   * @param maxWindows max number of merged windows to keep
+   */
+  TopNWindowCache(byte[] rowPrefix, long granularity, final int maxWindows) {
+    this.rowPrefix = rowPrefix;
+    this.granularity = granularity;
+    // access order, for LRU eviction
+    this.cache = new LinkedHashMap<IntervalKey<Long>, CachedWindow>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<IntervalKey<Long>, CachedWindow> eldest) {
+        return size() > maxWindows;
+      }
+    };
+  }
+
+  /**
+   * @return true if values of the window can't change anymore at the given time
+   */
+  boolean isClosed(long startTs, long windowSize, long now) {
+    return TopNCounter.isLate(startTs + windowSize, granularity, now);
+  }
+
+  /**
+   * @param windowSize size of the window, rounded up to granularity
+   * @param limit max number of values to return
+   * @param now current time
+   * @throws IllegalArgumentException if window size is not positive or is above
+   *         {@link Constants#TOPN_MAX_WINDOW_SIZE}, or if limit is negative
+   */
+  List<TopNTableUtil.TopNResult> get(Table topNTable, long startTs, long windowSize, long limit, long now) {
+    if (windowSize <= 0 || windowSize > Constants.TOPN_MAX_WINDOW_SIZE) {
+      throw new IllegalArgumentException("Window size must be between 1 and " + Constants.TOPN_MAX_WINDOW_SIZE +
+                                           " ms: " + windowSize);
+    }
+    if (limit < 0) {
+      throw new IllegalArgumentException("Limit must not be negative: " + limit);
+    }
+    startTs = (startTs / granularity) * granularity;
+    windowSize = ((windowSize + granularity - 1) / granularity) * granularity;
+
+    if (!isClosed(startTs, windowSize, now)) {
+      return top(TopNTableUtil.merge(topNTable, rowPrefix, startTs, windowSize, granularity), limit);
+    }
+    IntervalKey<Long> key = new IntervalKey<Long>(windowSize, startTs);
+    CachedWindow cached = cache.get(key);
+    // cached values are enough if there are no more values than cached
+    if (cached == null || (cached.limit < limit && cached.top.size() == cached.limit)) {
+      List<TopNTableUtil.TopNResult> merged = TopNTableUtil.merge(topNTable, rowPrefix, startTs, windowSize,
+                                                                   granularity);
+      // copy, so that the rest of the merged values is not kept
+      cached = new CachedWindow(Lists.newArrayList(top(merged, limit)), limit);
+      cache.put(key, cached);
+    }
+    return top(cached.top, limit);
+  }
+
+  private static List<TopNTableUtil.TopNResult> top(List<TopNTableUtil.TopNResult> values, long limit) {
+    return values.size() > limit ? values.subList(0, (int) limit) : values;
+  }
+
+  // values of a window with the highest counts, at most limit of them
+  private static final class CachedWindow {
+    private final List<TopNTableUtil.TopNResult> top;
+    private final long limit;
+
+    private CachedWindow(List<TopNTableUtil.TopNResult> top, long limit) {
+      this.top = top;
+      this.limit = limit;
+    }
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -22,8 +22,18 @@ import co.cask.cdap.api.annotation.UseDataSet;
 import co.cask.cdap.api.common.Bytes;
 import co.cask.cdap.api.dataset.table.Table;
 import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.FailurePolicy;
+import co.cask.cdap.api.flow.flowlet.FailureReason;
+import co.cask.cdap.api.flow.flowlet.FlowletContext;
+import co.cask.cdap.api.flow.flowlet.FlowletException;
+import co.cask.cdap.api.flow.flowlet.InputContext;
+import co.cask.cdap.api.metrics.Metrics;
 import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.IntervalKey;
+import co.cask.cdap.apps.netlens.app.anomaly.DimensionDictionary;
 import co.cask.cdap.apps.netlens.app.anomaly.Fact;
+import com.google.common.collect.LinkedHashMultiset;
+import com.google.common.collect.Multiset;
 
 import java.util.Iterator;
 
@@ -41,30 +51,59 @@ public class TrafficCounterFlowlet extends AbstractFlowlet {
   @UseDataSet("topN")
   private Table topNTable;
 
-  @Batch(100)
+  private Metrics metrics;
+
+  private TopNCounter topN;
+
+  @Override
+  public void initialize(FlowletContext context) throws FlowletException {
+    // buckets of the current window and of the previous minute, for late facts
+    int maxBuckets = (int) (Constants.TOPN_WINDOW_SIZE / Constants.TOPN_AGG_INTERVAL_SIZE) + 1;
+    topN = new TopNCounter(TOPN_IP_KEY_PREFIX, Constants.TOPN_AGG_INTERVAL_SIZE, maxBuckets, context.getInstanceId());
+  }
+
+  @Batch(Constants.BATCH_SIZE)
   @ProcessInput
   public void process(Iterator<Fact> facts) {
-    while (facts.hasNext()) {
-      process(facts.next());
-    }
+    count(facts);
+    topN.flush(topNTable);
+    topN.reportMetrics(metrics);
   }
 
-  private void process(Fact fact) {
-    count(fact);
-    countTopN(fact);
+  @Override
+  public FailurePolicy onFailure(Object input, InputContext inputContext, FailureReason reason) {
+    // counted top N values may have changes that were rolled back with the transaction
+    topN.invalidateAll();
+    return super.onFailure(input, inputContext, reason);
   }
 
-  private void count(Fact fact) {
-    long ts = (fact.getTs() / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE;
-    trafficCounters.increment(Bytes.toBytes(ts), TOTAL_COUNTER_COLUMN, 1);
+  private void count(Iterator<Fact> batch) {
+    // facts of the same interval update the same counters, so they are counted at once
+    Multiset<Long> counts = LinkedHashMultiset.create();
+    Multiset<IntervalKey<String>> topNCounts = LinkedHashMultiset.create();
+    while (batch.hasNext()) {
+      Fact fact = batch.next();
+      counts.add((fact.getTs() / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE);
+      String src = fact.getValue(DimensionDictionary.SRC);
+      if (src != null) {
+        long ts = (fact.getTs() / Constants.TOPN_AGG_INTERVAL_SIZE) * Constants.TOPN_AGG_INTERVAL_SIZE;
+        topNCounts.add(new IntervalKey<String>(src, ts));
+      }
+    }
+    for (Multiset.Entry<Long> count : counts.entrySet()) {
+      count(count.getElement(), count.getCount());
+    }
+    long now = System.currentTimeMillis();
+    for (Multiset.Entry<IntervalKey<String>> count : topNCounts.entrySet()) {
+      countTopN(count.getElement(), count.getCount(), now);
+    }
   }
 
-  private void countTopN(Fact fact) {
-    String src = fact.getDimensions().get("src");
-    if (src != null) {
-      TopNTableUtil.add(topNTable, TOPN_IP_KEY_PREFIX,
-                        Bytes.toBytes(src), fact.getTs(),
-                        Constants.TOPN_AGG_INTERVAL_SIZE * 10, Constants.TOPN_AGG_INTERVAL_SIZE);
-    }
+  private void count(long ts, int count) {
+    CounterTableUtil.increment(trafficCounters, Bytes.EMPTY_BYTE_ARRAY, TOTAL_COUNTER_COLUMN, ts, count);
+  }
+
+  private void countTopN(IntervalKey<String> src, int count, long now) {
+    topN.add(topNTable, src.getValue(), src.getTs(), count, now);
   }
 }
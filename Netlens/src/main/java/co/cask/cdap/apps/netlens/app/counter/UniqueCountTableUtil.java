@@ -0,0 +1,98 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.lib.sketch.HyperLogLog;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * Provides utility methods for counting unique values in datasets with {@link HyperLogLog} sketches: one sketch per
+ * interval and flowlet instance, merged at query time into the counts of intervals of any size.
+ */
+public final class UniqueCountTableUtil {
+  public static final byte[] SKETCH_COLUMN = Bytes.toBytes("h");
+
+  private UniqueCountTableUtil() {
+  }
+
+  /**
+   * Writes sketch of an interval counted by a flowlet instance, replacing the previous one.
+   */
+  public static void put(Table table, byte[] prefix, long ts, int instanceId, HyperLogLog sketch) {
+    // NOTE: for sketch rows we use key of format: <prefix><interval_start_ts as long><instance_id as int>
+    table.put(getKey(prefix, ts, instanceId), SKETCH_COLUMN, sketch.toBytes());
+  }
+
+  /**
+   * @return sketch of an interval counted by a flowlet instance, or null if there is none
+   */
+  @Nullable
+  public static HyperLogLog get(Table table, byte[] prefix, long ts, int instanceId) {
+    byte[] value = table.get(getKey(prefix, ts, instanceId), SKETCH_COLUMN);
+    return value == null ? null : HyperLogLog.fromBytes(value);
+  }
+
+  /**
+   * @param intervalSize size of the intervals to return counts for, multiple of the size the values were counted in
+   * @return estimated number of unique values in every interval of the range with any values, both ends included
+   */
+  public static List<DataPoint> getCounts(Table table, byte[] prefix, long startTs, long endTs, long intervalSize) {
+    TreeMap<Long, HyperLogLog> sketches = Maps.newTreeMap();
+    // same as counters, the interval that starts at the end of the range is included
+    Scanner scan = table.scan(Bytes.add(prefix, Bytes.toBytes(startTs)), Bytes.add(prefix, Bytes.toBytes(endTs + 1)));
+    try {
+      Row row;
+      while ((row = scan.next()) != null) {
+        byte[] value = row.get(SKETCH_COLUMN);
+        if (value == null) {
+          continue;
+        }
+        long ts = Bytes.toLong(row.getRow(), prefix.length);
+        long intervalTs = startTs + ((ts - startTs) / intervalSize) * intervalSize;
+        HyperLogLog sketch = HyperLogLog.fromBytes(value);
+        HyperLogLog merged = sketches.get(intervalTs);
+        if (merged == null) {
+          sketches.put(intervalTs, sketch);
+        } else {
+          merged.merge(sketch);
+        }
+      }
+    } finally {
+      scan.close();
+    }
+
+    List<DataPoint> dataPoints = Lists.newArrayListWithCapacity(sketches.size());
+    for (Map.Entry<Long, HyperLogLog> sketch : sketches.entrySet()) {
+      dataPoints.add(new DataPoint(sketch.getKey(), sketch.getValue().cardinality()));
+    }
+    return dataPoints;
+  }
+
+  private static byte[] getKey(byte[] prefix, long ts, int instanceId) {
+    return Bytes.add(prefix, Bytes.toBytes(ts), Bytes.toBytes(instanceId));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.apps.netlens.app.cache.LongFlowletCache;
+import co.cask.lib.sketch.HyperLogLog;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * Counts unique values of a flowlet instance in memory, with a {@link HyperLogLog} per interval. Memory taken by an
+ * interval does not depend on how many distinct values are seen in it. Only sketches that changed since the last
+ * {@link #flush(Table)} are written, once per transaction.
+ */
+final class UniqueCounter {
+  // standard error of about 3%, with 1KB per interval
+  static final int PRECISION = 10;
+
+  private final byte[] prefix;
+  private final long intervalSize;
+  private final int instanceId;
+  private final LongFlowletCache<HyperLogLog> intervals;
+  private final Map<Long, HyperLogLog> changed;
+
+  /**
+   * @param prefix prefix of the rows in the table
+   * @param intervalSize size of an interval in ms
+   * @param maxIntervals max number of the most recently used intervals to keep in memory after {@link #flush(Table)}
+   * @param instanceId id of the flowlet instance, every instance persists its own sketches
+   */
+  UniqueCounter(byte[] prefix, long intervalSize, int maxIntervals, int instanceId) {
+    this.prefix = prefix;
+    this.intervalSize = intervalSize;
+    this.instanceId = instanceId;
+    this.intervals = new LongFlowletCache<HyperLogLog>("unique.cache", maxIntervals, 0);
+    this.changed = Maps.newHashMap();
+  }
+
+  void add(Table table, String value, long ts) {
+    long intervalTs = (ts / intervalSize) * intervalSize;
+    HyperLogLog sketch = intervals.get(intervalTs);
+    if (sketch == null) {
+      sketch = UniqueCountTableUtil.get(table, prefix, intervalTs, instanceId);
+      if (sketch == null) {
+        sketch = new HyperLogLog(PRECISION);
+      }
+      intervals.put(intervalTs, sketch);
+    }
+    if (sketch.add(Bytes.toBytes(value))) {
+      changed.put(intervalTs, sketch);
+    }
+  }
+
+  /**
+   * Writes the changed sketches and drops the least recently used intervals over the max number of them.
+   */
+  void flush(Table table) {
+    for (Map.Entry<Long, HyperLogLog> sketch : changed.entrySet()) {
+      UniqueCountTableUtil.put(table, prefix, sketch.getKey(), instanceId, sketch.getValue());
+    }
+    changed.clear();
+    intervals.cleanUp();
+  }
+
+  /**
+   * Drops all intervals, e.g. when changes were not persisted because of a failed transaction.
+   */
+  void invalidateAll() {
+    intervals.invalidateAll();
+    changed.clear();
+  }
+
+  /**
+   * Emits hits, misses and evictions of the in-memory intervals, see {@link LongFlowletCache#reportMetrics(Metrics)}.
+   */
+  void reportMetrics(Metrics metrics) {
+    intervals.reportMetrics(metrics);
+  }
+}
@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -18,36 +18,108 @@ package co.cask.cdap.apps.netlens.app.histo;
 
 import co.cask.cdap.api.annotation.Batch;
 import co.cask.cdap.api.annotation.ProcessInput;
+import co.cask.cdap.api.annotation.UseDataSet;
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Table;
 import co.cask.cdap.api.flow.flowlet.AbstractFlowlet;
+import co.cask.cdap.api.flow.flowlet.FailurePolicy;
+import co.cask.cdap.api.flow.flowlet.FailureReason;
 import co.cask.cdap.api.flow.flowlet.FlowletContext;
 import co.cask.cdap.api.flow.flowlet.FlowletException;
+import co.cask.cdap.api.flow.flowlet.InputContext;
 import co.cask.cdap.api.flow.flowlet.OutputEmitter;
+import co.cask.cdap.api.metrics.Metrics;
 import co.cask.lib.histo.DynamicHistogram;
+import co.cask.cdap.apps.netlens.app.anomaly.AnomalyFanOutFlowlet;
 import co.cask.cdap.apps.netlens.app.anomaly.Fact;
-import com.google.common.collect.Maps;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Type;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 
 /**
  * Categorizes number values (ints, doubles, etc.)
  *
  * NOTE: this needs to warm-up before it can do categorization. Until then, it will remove values meant to be
- *       categorized
+ *       categorized. To not warm-up after every restart, state of the histograms is checkpointed to the
+ *       "histogramStates" dataset and restored when the flowlet is initialized.
+ *
+ * Each instance keeps its own histograms, which may learn different boundaries, so once they are known, values are
+ * categorized by the boundaries shared by all instances, computed from the sketches in the "quantiles" dataset. See
+ * {@link NumberDimension}.
+ *
+ * Which dimensions are categorized and how is set with the {@link #DIMENSIONS} property and runtime argument. Values
+ * which are not numbers are removed.
  */
 public class NumberCategorizationFlowlet extends AbstractFlowlet {
-  private static final String[] CATEGORIES = {"low", "medium", "high"};
+  // JSON map from the name of a numeric dimension to its DimensionConfig, replaces the one in the spec properties
+  public static final String DIMENSIONS = "numberDimensions";
+  // min number of categories of a dimension, DynamicHistogram needs at least 3 buckets
+  public static final int MIN_CATEGORIES = 3;
+  // max number of categories of a dimension
+  public static final int MAX_CATEGORIES = 100;
+
+  private static final Logger LOG = LoggerFactory.getLogger(NumberCategorizationFlowlet.class);
+  private static final Gson GSON = new Gson();
+  private static final Type DIMENSIONS_TYPE = new TypeToken<Map<String, DimensionConfig>>() {}.getType();
+
+  private static final long CHECKPOINT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+  private static final byte[] STATE_COLUMN = Bytes.toBytes("s");
+
+  @UseDataSet("histogramStates")
+  private Table histogramStates;
+
+  @UseDataSet("quantiles")
+  private Table quantiles;
 
   private OutputEmitter<Fact> output;
 
-  private Map<String, DynamicHistogram> histograms;
+  private Metrics metrics;
+
+  private List<NumberDimension> dimensions;
+  private int instanceId;
+  private long lastCheckpointTs;
+
+  @Override
+  public void configure() {
+    setName("categorize-numbers");
+    setDescription("Categorizes values of numeric dimensions");
+    setProperties(ImmutableMap.of(DIMENSIONS, GSON.toJson(ImmutableMap.of("rl", new DimensionConfig(),
+                                                                          "rs", new DimensionConfig()))));
+  }
 
   @Override
   public void initialize(FlowletContext context) throws FlowletException {
-    // todo: make configurable
-    histograms = Maps.newHashMap();
-    histograms.put("rl", new DynamicHistogram(CATEGORIES.length, 300, 100));
-    histograms.put("rs", new DynamicHistogram(CATEGORIES.length, 300, 100));
+    instanceId = context.getInstanceId();
+    String config = context.getRuntimeArguments().get(DIMENSIONS);
+    if (config == null) {
+      config = context.getSpecification().getProperty(DIMENSIONS);
+    }
+    Map<String, DimensionConfig> configs = GSON.fromJson(config, DIMENSIONS_TYPE);
+    dimensions = Lists.newArrayList();
+    if (configs != null) {
+      for (Map.Entry<String, DimensionConfig> dimension : configs.entrySet()) {
+        dimension.getValue().validate(dimension.getKey());
+        LOG.info("Categorizing dimension {} with {}", dimension.getKey(), dimension.getValue());
+        String[] categories = dimension.getValue().categories.toArray(new String[0]);
+        dimensions.add(new NumberDimension(dimension.getKey(), categories, instanceId,
+                                           restoreOrCreate(dimension.getKey(), dimension.getValue())));
+      }
+    }
+    lastCheckpointTs = System.currentTimeMillis();
+    for (NumberDimension dimension : dimensions) {
+      dimension.flush(quantiles, lastCheckpointTs);
+    }
   }
 
   @Batch(100)
@@ -56,22 +128,111 @@ public class NumberCategorizationFlowlet extends AbstractFlowlet {
     while (facts.hasNext()) {
       categorize(facts.next());
     }
+    long now = System.currentTimeMillis();
+    for (NumberDimension dimension : dimensions) {
+      dimension.flush(quantiles, now);
+      dimension.reportMetrics(metrics);
+    }
+    if (now - lastCheckpointTs >= CHECKPOINT_INTERVAL) {
+      checkpoint();
+      lastCheckpointTs = now;
+    }
+  }
+
+  @Override
+  public FailurePolicy onFailure(Object input, InputContext inputContext, FailureReason reason) {
+    // checkpoint and sketches may have been rolled back with the transaction
+    lastCheckpointTs = 0;
+    for (NumberDimension dimension : dimensions) {
+      dimension.invalidate();
+    }
+    return super.onFailure(input, inputContext, reason);
   }
 
   private void categorize(Fact fact) {
-    for (Map.Entry<String, DynamicHistogram> histo : histograms.entrySet()) {
-      String value = fact.getDimensions().get(histo.getKey());
-      if (value != null) {
-        double d = Double.valueOf(value);
-        histo.getValue().addDataPoint(d);
-        int bucketIndex = histo.getValue().findBucketIndex(d);
-        if (bucketIndex >= 0) {
-          fact.getDimensions().put(histo.getKey(), CATEGORIES[bucketIndex]);
+    for (NumberDimension dimension : dimensions) {
+      int index = fact.indexOf(dimension.getName());
+      if (index >= 0) {
+        String category = dimension.categorize(quantiles, fact.getValue(index), fact.getTs());
+        if (category != null) {
+          fact = fact.with(dimension.getName(), category);
         } else {
-          fact.getDimensions().remove(histo.getKey());
+          fact = fact.without(dimension.getName());
         }
       }
     }
-    output.emit(fact);
+    String src = fact.getValue(AnomalyFanOutFlowlet.SOURCE_PARTITION);
+    output.emit(fact, AnomalyFanOutFlowlet.SOURCE_PARTITION, src == null ? 0 : src.hashCode());
+  }
+
+  private void checkpoint() {
+    for (NumberDimension dimension : dimensions) {
+      DynamicHistogram histogram = dimension.getHistogram();
+      if (histogram.isSeeded()) {
+        histogramStates.put(getStateKey(dimension.getName(), instanceId), STATE_COLUMN, histogram.toBytes());
+      }
+    }
+  }
+
+  private DynamicHistogram restoreOrCreate(String dimension, DimensionConfig config) {
+    DynamicHistogram histogram = restore(dimension, instanceId, config);
+    if (histogram == null && instanceId != 0) {
+      // new instance after the flowlet was scaled up: the first instance has seen the same kind of traffic
+      histogram = restore(dimension, 0, config);
+    }
+    return histogram != null ? histogram :
+      new DynamicHistogram(config.categories.size(), config.seedPointsPerBucket, config.halfLife);
+  }
+
+  @Nullable
+  private DynamicHistogram restore(String dimension, int instance, DimensionConfig config) {
+    byte[] state = histogramStates.get(getStateKey(dimension, instance), STATE_COLUMN);
+    if (state == null) {
+      return null;
+    }
+    try {
+      DynamicHistogram histogram = DynamicHistogram.fromBytes(state);
+      // state of a histogram configured differently is of no use
+      if (histogram.getNumBuckets() != config.categories.size() || histogram.getHalfLife() != config.halfLife) {
+        return null;
+      }
+      return histogram;
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Ignoring invalid state of histogram " + dimension + " of instance " + instance, e);
+      return null;
+    }
+  }
+
+  private static byte[] getStateKey(String dimension, int instance) {
+    return Bytes.add(Bytes.toBytes(dimension), Bytes.toBytes(instance));
+  }
+
+  /**
+   * How values of a numeric dimension are categorized, see {@link DynamicHistogram}. Settings missing in JSON are
+   * defaults.
+   */
+  static final class DimensionConfig {
+    // names of the categories, from the one of the lowest values, one per bucket
+    private List<String> categories = ImmutableList.of("low", "medium", "high");
+    // the histogram is seeded with the first <categories> * <seedPointsPerBucket> values
+    private int seedPointsPerBucket = 300;
+    // number of values after which counts of a bucket that is not updated are halved
+    private int halfLife = 100;
+
+    void validate(String dimension) {
+      if (categories == null || categories.size() < MIN_CATEGORIES || categories.size() > MAX_CATEGORIES) {
+        throw new IllegalArgumentException("Dimension " + dimension + " must have between " + MIN_CATEGORIES +
+                                             " and " + MAX_CATEGORIES + " categories: " + categories);
+      }
+      if (seedPointsPerBucket < 1 || halfLife < 1) {
+        throw new IllegalArgumentException("Seed points per bucket and half life of dimension " + dimension +
+                                             " must be positive: " + seedPointsPerBucket + ", " + halfLife);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return GSON.toJson(this);
+    }
   }
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.histo;
+
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.cache.LongFlowletCache;
+import co.cask.lib.histo.DynamicHistogram;
+import co.cask.lib.histo.QuantileSketch;
+import com.google.common.collect.Maps;
+
+import java.util.Iterator;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * Categorizes values of a numeric dimension by bucket boundaries shared by all flowlet instances, so that the same
+ * value gets the same category on every instance. Until the shared boundaries are known, values are categorized by
+ * the local {@link DynamicHistogram}.
+ *
+ * Every instance sketches the values of each {@link Constants#QUANTILE_INTERVAL_SIZE} interval the values fall in by
+ * their timestamps. On {@link #flush(Table, long)} it writes the changed sketches of older intervals, and the sketch
+ * of the newest interval at most once per {@link Constants#AGG_INTERVAL_SIZE}, as it changes with every batch. Values
+ * not written yet are lost if a transaction fails. The last few intervals are kept in memory, so that late values are
+ * added to the sketch of their interval, which is read back if it was dropped. Shared boundaries are the quantiles of
+ * the merged sketches of all instances over the last {@link Constants#CATEGORIZATION_WINDOW_SIZE} before the newest
+ * interval values were seen in, reloaded once per interval. The interval before the newest one is left out, as not
+ * all instances may have written it yet, so that all instances use the same sketches.
+ */
+final class NumberDimension {
+  private static final int SKETCH_CAPACITY = 200;
+  // min number of sketched values per bucket to use shared boundaries
+  private static final int MIN_POINTS_PER_BUCKET = 100;
+  // number of the most recent intervals kept in memory, for values that come late
+  private static final int MAX_INTERVALS = 3;
+
+  private final String name;
+  private final String[] categories;
+  private final byte[] prefix;
+  private final int instanceId;
+  private final int numBuckets;
+  private final double[] fractions;
+  private final DynamicHistogram histogram;
+  // sketches by interval, and the ones changed since the last flush
+  private final LongFlowletCache<QuantileSketch> sketches;
+  private final Map<Long, QuantileSketch> changed;
+  // sketch values were last added to and its interval, to not look it up for every value
+  private QuantileSketch sketch;
+  private long sketchTs;
+  // newest interval values were seen in, and when its sketch was last written
+  private long latestTs;
+  private long latestWriteTs;
+  // shared upper bounds of all buckets but the last one, or null if not known, and interval they were loaded for
+  private double[] boundaries;
+  private long boundariesTs;
+  // since the metrics were reported: number of categorized and invalid values, and time spent categorizing them
+  private int categorized;
+  private int invalid;
+  private long nanos;
+
+  /**
+   * @param categories names of the categories, one per bucket of the histogram
+   */
+  NumberDimension(String name, String[] categories, int instanceId, DynamicHistogram histogram) {
+    if (categories.length != histogram.getNumBuckets()) {
+      throw new IllegalArgumentException("Expected " + histogram.getNumBuckets() + " categories of dimension " +
+                                           name + ", got " + categories.length);
+    }
+    this.name = name;
+    this.categories = categories;
+    this.prefix = QuantileTableUtil.getPrefix(name);
+    this.instanceId = instanceId;
+    this.numBuckets = categories.length;
+    this.fractions = new double[numBuckets - 1];
+    for (int i = 0; i < fractions.length; i++) {
+      fractions[i] = (double) (i + 1) / numBuckets;
+    }
+    this.histogram = histogram;
+    this.sketches = new LongFlowletCache<QuantileSketch>(name + ".sketches", MAX_INTERVALS, 0);
+    this.changed = Maps.newHashMap();
+    this.sketchTs = -1;
+    this.latestTs = -1;
+    this.boundariesTs = -1;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  DynamicHistogram getHistogram() {
+    return histogram;
+  }
+
+  /**
+   * Adds the value to the sketch of its interval and categorizes it.
+   * @param ts timestamp of the value
+   * @return category of the value, or null if it cannot be categorized yet or is not a number
+   */
+  @Nullable
+  String categorize(Table table, String value, long ts) {
+    long start = System.nanoTime();
+    double number;
+    try {
+      number = Numbers.parseDouble(value);
+    } catch (NumberFormatException e) {
+      invalid++;
+      return null;
+    }
+    long intervalTs = ts - ts % Constants.QUANTILE_INTERVAL_SIZE;
+    if (intervalTs != sketchTs) {
+      sketch = getSketch(table, intervalTs);
+      sketchTs = intervalTs;
+      changed.put(intervalTs, sketch);
+      latestTs = Math.max(latestTs, intervalTs);
+    }
+    sketch.add(number);
+    int index = histogram.addAndClassify(number);
+    if (boundaries != null) {
+      index = findBucketIndex(number);
+    }
+    categorized++;
+    nanos += System.nanoTime() - start;
+    return index < 0 ? null : categories[index];
+  }
+
+  /**
+   * Emits number of categorized and invalid values, as <code>&lt;dimension&gt;.categorized</code> and
+   * <code>&lt;dimension&gt;.invalid</code>, and mean time spent categorizing a value, in nanoseconds, as the
+   * <code>&lt;dimension&gt;.latency.nanos</code> gauge. Counts start over after every report. Also emits hits, misses
+   * and evictions of the in-memory sketches, see {@link LongFlowletCache#reportMetrics(Metrics)}.
+   */
+  void reportMetrics(Metrics metrics) {
+    if (categorized > 0) {
+      metrics.count(name + ".categorized", categorized);
+      metrics.gauge(name + ".latency.nanos", nanos / categorized);
+    }
+    if (invalid > 0) {
+      metrics.count(name + ".invalid", invalid);
+    }
+    categorized = 0;
+    invalid = 0;
+    nanos = 0;
+    sketches.reportMetrics(metrics);
+  }
+
+  /**
+   * Writes the sketches that changed, but the one of the newest interval only if it was not written for an
+   * {@link Constants#AGG_INTERVAL_SIZE}, drops the oldest intervals over the max number of them, and reloads the
+   * shared boundaries if values of a newer interval were seen since they were loaded.
+   * @param now current time, boundaries are loaded for its interval until values are seen
+   */
+  void flush(Table table, long now) {
+    boolean writeLatest = now - latestWriteTs >= Constants.AGG_INTERVAL_SIZE;
+    Iterator<Map.Entry<Long, QuantileSketch>> entries = changed.entrySet().iterator();
+    while (entries.hasNext()) {
+      Map.Entry<Long, QuantileSketch> entry = entries.next();
+      if (entry.getKey() == latestTs) {
+        if (!writeLatest) {
+          continue;
+        }
+        latestWriteTs = now;
+      }
+      QuantileTableUtil.put(table, prefix, entry.getKey(), instanceId, entry.getValue());
+      entries.remove();
+    }
+    sketches.cleanUp();
+    sketch = null;
+    sketchTs = -1;
+    long intervalTs = latestTs >= 0 ? latestTs : now - now % Constants.QUANTILE_INTERVAL_SIZE;
+    if (intervalTs != boundariesTs) {
+      boundariesTs = intervalTs;
+      long endTs = intervalTs - Constants.QUANTILE_INTERVAL_SIZE;
+      QuantileSketch merged =
+        QuantileTableUtil.merge(table, prefix, endTs - Constants.CATEGORIZATION_WINDOW_SIZE, endTs);
+      if (merged == null || merged.getCount() < (long) numBuckets * MIN_POINTS_PER_BUCKET) {
+        boundaries = null;
+      } else {
+        boundaries = merged.getQuantiles(fractions);
+      }
+    }
+  }
+
+  /**
+   * Drops all sketches and makes the next {@link #flush(Table, long)} reload the boundaries, e.g. when the writes were
+   * rolled back with a failed transaction.
+   */
+  void invalidate() {
+    sketches.invalidateAll();
+    changed.clear();
+    latestWriteTs = 0;
+    sketch = null;
+    sketchTs = -1;
+    boundariesTs = -1;
+  }
+
+  private QuantileSketch getSketch(Table table, long intervalTs) {
+    QuantileSketch result = sketches.get(intervalTs);
+    if (result != null) {
+      return result;
+    }
+    // dropped before it was written, or written before it was dropped or the flowlet was restarted
+    result = changed.get(intervalTs);
+    if (result == null) {
+      result = QuantileTableUtil.get(table, prefix, intervalTs, instanceId);
+    }
+    if (result == null) {
+      result = new QuantileSketch(SKETCH_CAPACITY);
+    }
+    sketches.put(intervalTs, result);
+    return result;
+  }
+
+  private int findBucketIndex(double value) {
+    // first bucket with the upper bound above the value, the last one has infinite bound
+    int low = 0;
+    int high = boundaries.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (value < boundaries[mid]) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return low;
+  }
+}
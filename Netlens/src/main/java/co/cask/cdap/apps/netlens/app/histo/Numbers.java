@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.histo;
+
+/**
+ * Parses numbers of dimension values.
+ */
+final class Numbers {
+  // powers of ten that are exact doubles
+  private static final double[] POWERS_OF_TEN = new double[23];
+  // max number of significant digits that surely fit into 53 bits of double mantissa
+  private static final int MAX_DIGITS = 15;
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private Numbers() {
+  }
+
+  /**
+   * Same as {@link Double#parseDouble(String)}, but plain numbers like <code>-12.34</code> of at most 15 digits,
+   * such as packet sizes and rates, are parsed without creating any objects. Result is same for them too: both the
+   * digits and the power of ten are exact doubles, so their quotient is rounded correctly.
+   * @throws NumberFormatException if the value is not a number
+   */
+  static double parseDouble(String value) {
+    int length = value.length();
+    int i = 0;
+    boolean negative = false;
+    if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+      negative = value.charAt(0) == '-';
+      i++;
+    }
+    long digits = 0;
+    int numDigits = 0;
+    int fractionDigits = -1;
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits = digits * 10 + (c - '0');
+        numDigits++;
+        if (fractionDigits >= 0) {
+          fractionDigits++;
+        }
+      } else if (c == '.' && fractionDigits < 0) {
+        fractionDigits = 0;
+      } else {
+        // exponents, whitespace, NaN, etc.
+        return Double.parseDouble(value);
+      }
+    }
+    if (numDigits == 0 || numDigits > MAX_DIGITS) {
+      return Double.parseDouble(value);
+    }
+    double result = digits;
+    if (fractionDigits > 0) {
+      result /= POWERS_OF_TEN[fractionDigits];
+    }
+    return negative ? -result : result;
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.histo;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.lib.histo.QuantileSketch;
+
+import javax.annotation.Nullable;
+
+/**
+ * Provides utility methods for keeping distributions of numbers in datasets with {@link QuantileSketch}es: one sketch
+ * per interval and flowlet instance, merged when read into the distribution of any range of intervals.
+ */
+public final class QuantileTableUtil {
+  public static final byte[] SKETCH_COLUMN = Bytes.toBytes("q");
+  // p50, p90 and p99
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+  private QuantileTableUtil() {
+  }
+
+  /**
+   * @return prefix of the rows of sketches of a numeric dimension
+   */
+  public static byte[] getPrefix(String dimension) {
+    return Bytes.toBytes("q_" + dimension + "_");
+  }
+
+  /**
+   * Writes sketch of an interval kept by a flowlet instance, replacing the previous one.
+   */
+  public static void put(Table table, byte[] prefix, long ts, int instanceId, QuantileSketch sketch) {
+    // NOTE: for sketch rows we use key of format: <prefix><interval_start_ts as long><instance_id as int>
+    table.put(getKey(prefix, ts, instanceId), SKETCH_COLUMN, sketch.toBytes());
+  }
+
+  /**
+   * @return sketch of an interval kept by a flowlet instance, or null if it has none
+   */
+  @Nullable
+  public static QuantileSketch get(Table table, byte[] prefix, long ts, int instanceId) {
+    byte[] value = table.get(getKey(prefix, ts, instanceId), SKETCH_COLUMN);
+    return value == null ? null : QuantileSketch.fromBytes(value);
+  }
+
+  /**
+   * @return sketch of all intervals starting in the range, by all flowlet instances, or null if there are none
+   */
+  @Nullable
+  public static QuantileSketch merge(Table table, byte[] prefix, long startTs, long endTs) {
+    QuantileSketch merged = null;
+    Scanner scan = table.scan(Bytes.add(prefix, Bytes.toBytes(startTs)), Bytes.add(prefix, Bytes.toBytes(endTs)));
+    try {
+      Row row;
+      while ((row = scan.next()) != null) {
+        byte[] value = row.get(SKETCH_COLUMN);
+        if (value == null) {
+          continue;
+        }
+        QuantileSketch sketch = QuantileSketch.fromBytes(value);
+        if (merged == null) {
+          merged = sketch;
+        } else {
+          merged.merge(sketch);
+        }
+      }
+    } finally {
+      scan.close();
+    }
+    return merged;
+  }
+
+  /**
+   * @param numBuckets number of buckets to return the boundaries of
+   * @return distribution of the values in all intervals starting in the range
+   */
+  public static Distribution getDistribution(Table table, byte[] prefix, long startTs, long endTs, int numBuckets) {
+    QuantileSketch sketch = merge(table, prefix, startTs, endTs);
+    if (sketch == null || sketch.getCount() == 0) {
+      return new Distribution(0, null, null, null);
+    }
+    double[] percentiles = sketch.getQuantiles(PERCENTILES);
+    double[] fractions = new double[numBuckets - 1];
+    for (int i = 0; i < fractions.length; i++) {
+      fractions[i] = (double) (i + 1) / numBuckets;
+    }
+    return new Distribution(sketch.getCount(), new double[] {sketch.getMin(), sketch.getMax()}, percentiles,
+                            sketch.getQuantiles(fractions));
+  }
+
+  private static byte[] getKey(byte[] prefix, long ts, int instanceId) {
+    return Bytes.add(prefix, Bytes.toBytes(ts), Bytes.toBytes(instanceId));
+  }
+
+  // for serializing response
+  public static final class Distribution {
+    private long count;
+    private Double min;
+    private Double max;
+    private Double p50;
+    private Double p90;
+    private Double p99;
+    // upper bounds of all buckets but the last one
+    private double[] boundaries;
+
+    Distribution(long count, @Nullable double[] minMax, @Nullable double[] percentiles,
+                 @Nullable double[] boundaries) {
+      this.count = count;
+      if (minMax != null) {
+        this.min = minMax[0];
+        this.max = minMax[1];
+      }
+      if (percentiles != null) {
+        this.p50 = percentiles[0];
+        this.p90 = percentiles[1];
+        this.p99 = percentiles[2];
+      }
+      this.boundaries = boundaries;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    @Nullable
+    public Double getMin() {
+      return min;
+    }
+
+    @Nullable
+    public Double getMax() {
+      return max;
+    }
+
+    @Nullable
+    public Double getP50() {
+      return p50;
+    }
+
+    @Nullable
+    public Double getP90() {
+      return p90;
+    }
+
+    @Nullable
+    public Double getP99() {
+      return p99;
+    }
+
+    @Nullable
+    public double[] getBoundaries() {
+      return boundaries;
+    }
+  }
+}
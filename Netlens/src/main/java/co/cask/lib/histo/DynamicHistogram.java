@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -16,11 +16,27 @@
 
 package co.cask.lib.histo;
 
-import org.apache.commons.math3.stat.inference.ChiSquareTest;
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
 
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+/**
+ * Histogram with buckets of equal (decayed) counts, which follows changes of the data distribution: counts decay
+ * exponentially with the number of points added, and buckets are repartitioned when their counts become too skewed.
+ *
+ * Made for the hot path of a flowlet: bucket is found with binary search over the bucket bounds, and decay of all
+ * counts is a multiplication of a global weight, see {@link #addAndClassify(double)}. Buckets are kept in parallel
+ * primitive arrays, and skew test and repartitioning reuse them, so that nothing is allocated once the histogram is
+ * seeded, except by {@link #getHistogram()}. Not thread safe.
+ */
 public class DynamicHistogram {
+  // counts are renormalized when the weight of new points goes above this
+  private static final double MAX_WEIGHT = 1e100;
+  // confidence of rejecting hypothesis "counts are same in all buckets" in the skew test
+  private static final double SKEW_CONFIDENCE = 0.95;
+
   private final int numInitialDataPoints;
   private final int numInitialDataPointsPerBucket;
   private final int numBuckets;
@@ -28,10 +44,25 @@ public class DynamicHistogram {
   private long numDataPoints;
   private double initialDataPoints[];
   private final double meanLifetime;
+  // chi-square statistic above which the counts are too skewed
+  private final double skewCriticalValue;
 
   private double min;
   private double max;
-  private Bucket buckets[];
+  // Buckets, as parallel arrays: upper bound, count and when the bucket was last updated. Upper bound of the last
+  // bucket is infinity. Repartitioning writes new buckets into the spare arrays and swaps them with these.
+  private double highs[];
+  private double counts[];
+  private long lastUpdateAts[];
+  private double spareHighs[];
+  private double spareCounts[];
+  private long spareLastUpdateAts[];
+  private final double density[];
+  // Counts are kept multiplied by growth^n, where n is the number of points added since the last renormalization:
+  // a point adds the current weight to the count of its bucket, and decaying all counts by one step is just growing
+  // the weight, instead of Math.exp() for every point. Real count is the kept count divided by the weight.
+  private final double growth;
+  private double weight;
 
   /**
    * @param numBuckets                    number of buckets. If there are 10 buckets then the output histogram
@@ -47,7 +78,6 @@ public class DynamicHistogram {
     if (numBuckets < 3) {
       numBuckets = 3;
     }
-    buckets = new Bucket[numBuckets];
     if (numInitialDataPointsPerBucket < 0) {
       numInitialDataPointsPerBucket = 1;
     }
@@ -57,21 +87,99 @@ public class DynamicHistogram {
     this.initialDataPoints = new double[numInitialDataPoints];
     // http://en.wikipedia.org/wiki/Exponential_decay
     this.meanLifetime = 1.44 * halfLife;
+    this.growth = Math.exp(1 / meanLifetime);
+    this.weight = 1;
+    int degreesOfFreedom = Math.max(1, this.numBuckets - 1);
+    this.skewCriticalValue = new ChiSquaredDistribution(degreesOfFreedom).inverseCumulativeProbability(SKEW_CONFIDENCE);
+    this.highs = new double[this.numBuckets];
+    this.counts = new double[this.numBuckets];
+    this.lastUpdateAts = new long[this.numBuckets];
+    this.spareHighs = new double[this.numBuckets];
+    this.spareCounts = new double[this.numBuckets];
+    this.spareLastUpdateAts = new long[this.numBuckets];
+    this.density = new double[this.numBuckets];
+  }
+
+  /**
+   * @param bytes histogram serialized with {@link #toBytes()}
+   */
+  public static DynamicHistogram fromBytes(byte[] bytes) {
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      int numBuckets = buffer.getInt();
+      int numInitialDataPointsPerBucket = buffer.getInt();
+      int halfLife = buffer.getInt();
+      if (numBuckets <= 0 || buffer.remaining() != 8 * 3 + numBuckets * 8 * 3) {
+        throw new IllegalArgumentException("Invalid size of histogram with " + numBuckets + " buckets: " +
+                                             bytes.length);
+      }
+      DynamicHistogram histogram = new DynamicHistogram(numBuckets, numInitialDataPointsPerBucket, halfLife);
+      histogram.numDataPoints = buffer.getLong();
+      if (histogram.numDataPoints < histogram.numInitialDataPoints) {
+        throw new IllegalArgumentException("Histogram is not seeded: " + histogram.numDataPoints + " points");
+      }
+      histogram.initialDataPoints = null;
+      histogram.min = buffer.getDouble();
+      histogram.max = buffer.getDouble();
+      for (int i = 0; i < numBuckets; i++) {
+        histogram.highs[i] = buffer.getDouble();
+        histogram.counts[i] = buffer.getDouble();
+        histogram.lastUpdateAts[i] = buffer.getLong();
+      }
+      return histogram;
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Invalid size of histogram: " + bytes.length, e);
+    }
+  }
+
+  /**
+   * Serializes the state of a seeded histogram: its parameters, the number of points added so far, min and max,
+   * and bucket bounds with their decayed counts.
+   * @throws IllegalStateException if the histogram is not seeded yet
+   */
+  public byte[] toBytes() {
+    if (!isSeeded()) {
+      throw new IllegalStateException("Histogram is not seeded yet");
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(4 * 3 + 8 * 3 + numBuckets * 8 * 3);
+    buffer.putInt(numBuckets);
+    buffer.putInt(numInitialDataPointsPerBucket);
+    buffer.putInt(halfLife);
+    buffer.putLong(numDataPoints);
+    buffer.putDouble(min);
+    buffer.putDouble(max);
+    for (int i = 0; i < numBuckets; i++) {
+      buffer.putDouble(highs[i]);
+      buffer.putDouble(counts[i] / weight);
+      buffer.putLong(lastUpdateAts[i]);
+    }
+    return buffer.array();
+  }
+
+  /**
+   * @return true if the histogram got enough points to categorize them
+   */
+  public boolean isSeeded() {
+    return numDataPoints >= numInitialDataPoints;
+  }
+
+  public int getNumBuckets() {
+    return numBuckets;
+  }
+
+  public int getHalfLife() {
+    return halfLife;
   }
 
   private void createInitialHistogram() {
     Arrays.sort(initialDataPoints);
-    buckets = new Bucket[numBuckets];
     for (int i = 0; i < numBuckets - 1; i++) {
-      int offset;
-      buckets[i] = new Bucket();
-      offset = (i + 1) * numInitialDataPointsPerBucket;
-      buckets[i].high = (initialDataPoints[offset - 1] + initialDataPoints[offset]) / 2;
-      buckets[i].count = numInitialDataPointsPerBucket;
-    }
-    buckets[numBuckets - 1] = new Bucket();
-    buckets[numBuckets - 1].high = Double.POSITIVE_INFINITY;
-    buckets[numBuckets - 1].count = numInitialDataPointsPerBucket;
+      int offset = (i + 1) * numInitialDataPointsPerBucket;
+      highs[i] = (initialDataPoints[offset - 1] + initialDataPoints[offset]) / 2;
+      counts[i] = numInitialDataPointsPerBucket;
+    }
+    highs[numBuckets - 1] = Double.POSITIVE_INFINITY;
+    counts[numBuckets - 1] = numInitialDataPointsPerBucket;
     min = initialDataPoints[0];
     max = initialDataPoints[numInitialDataPoints - 1];
     return;
@@ -92,25 +200,43 @@ public class DynamicHistogram {
     if (this.numDataPoints < this.numInitialDataPoints) {
       return -1;
     }
-    for (int i = 0; ; i++) {
-      if (d < buckets[i].high) {
-        return i;
+    // first bucket with the upper bound above the point, the last one has infinite bound
+    int low = 0;
+    int high = numBuckets - 1;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (d < highs[mid]) {
+        high = mid;
+      } else {
+        low = mid + 1;
       }
     }
+    return low;
   }
 
-  public synchronized void addDataPoint(double d) {
+  public void addDataPoint(double d) {
+    addAndClassify(d);
+  }
+
+  /**
+   * Adds the data point and finds its bucket in one pass.
+   * @return index of the bucket of the point, same as {@link #findBucketIndex(double)} after adding it, or -1 if the
+   *         histogram is not seeded yet
+   */
+  public int addAndClassify(double d) {
     if (numDataPoints < numInitialDataPoints) {
       addInitialDataPoint(d);
-      return;
+      return findBucketIndex(d);
     }
     int index = findBucketIndex(d);
-    long noUpdateDuration = numDataPoints - buckets[index].lastUpdateAt;
     numDataPoints++;
-    buckets[index].lastUpdateAt = numDataPoints;
-    double oldCount = buckets[findBucketIndex(d)].count;
+    lastUpdateAts[index] = numDataPoints;
     /* Keep track of mean and standard deviation in the edge buckets FIXME */
-    buckets[index].count = 1.0 + oldCount * Math.exp(-noUpdateDuration / meanLifetime);
+    weight *= growth;
+    if (weight > MAX_WEIGHT) {
+      renormalize();
+    }
+    counts[index] += weight;
     if (min > d) {
       min = d;
     }
@@ -118,96 +244,107 @@ public class DynamicHistogram {
       max = d;
     }
 
-    repartitionIfNeeded();
-
-    return;
+    // repartitioning every <halfLife> points
+    if (numDataPoints % halfLife == 0 && isTooSkewed()) {
+      repartition();
+      index = findBucketIndex(d);
+    }
+    return index;
   }
 
-  private void repartitionIfNeeded() {
-    // repartitioning every <halfLife> points
-    if (numDataPoints % halfLife == 0) {
-      if (isTooSkewed()) {
-        repartition();
-      }
+  private void renormalize() {
+    for (int i = 0; i < numBuckets; i++) {
+      counts[i] /= weight;
     }
+    weight = 1;
   }
 
-  public synchronized boolean isTooSkewed() {
+  /**
+   * Pearson's chi-square test of the rounded real counts against the same count in every bucket, same as
+   * {@link org.apache.commons.math3.stat.inference.ChiSquareTest#chiSquareTest(double[], long[], double)}, with
+   * the critical value computed once.
+   */
+  public boolean isTooSkewed() {
     if (this.numDataPoints < this.numInitialDataPoints) {
       return false;
     }
-    double totalCount = 0.0;
+    long totalCount = 0;
     for (int i = 0; i < numBuckets; i++) {
-      totalCount += buckets[i].count;
+      totalCount += Math.round(counts[i] / weight);
     }
-    double averageCount = totalCount / numBuckets;
-    double expected[] = new double[numBuckets];
-    for (int i = 0; i < numBuckets; i++) {
-      expected[i] = averageCount;
+    if (totalCount == 0) {
+      return false;
     }
-    long observed[] = new long[numBuckets];
+    double expected = (double) totalCount / numBuckets;
+    double statistic = 0.0;
     for (int i = 0; i < numBuckets; i++) {
-      observed[i] = Math.round(buckets[i].count);
+      double deviation = Math.round(counts[i] / weight) - expected;
+      statistic += deviation * deviation / expected;
     }
-    ChiSquareTest test = new ChiSquareTest();
     // true if reject hypothesis "observed same as expected" with 95% confidence
-    return (test.chiSquareTest(expected, observed, .05));
+    return statistic > skewCriticalValue;
   }
 
-  public synchronized void repartition() {
+  public void repartition() {
+    // repartitioning doesn't depend on the scale of counts, so the kept counts are used as they are
     double totalCount = 0.0;
     for (int i = 0; i < numBuckets; i++) {
-      totalCount += buckets[i].count;
+      totalCount += counts[i];
     }
     double averageCount = totalCount / numBuckets;
-    double density[] = new double[numBuckets];
     // FIXME use data distribution to estimate density, especially for edge buckets
-    density[0] = buckets[0].count / (buckets[0].high - min);
+    density[0] = counts[0] / (highs[0] - min);
     for (int i = 1; i < numBuckets - 1; i++) {
-      density[i] = buckets[i].count / (buckets[i].high - buckets[i - 1].high);
+      density[i] = counts[i] / (highs[i] - highs[i - 1]);
     }
-    density[numBuckets - 1] = buckets[numBuckets - 1].count / (max - buckets[numBuckets - 2].high);
+    density[numBuckets - 1] = counts[numBuckets - 1] / (max - highs[numBuckets - 2]);
     int curBucket = 0;
     double marker = min;
     long lastUpdateAt = 0;
-    double availInCurBucket = buckets[curBucket].count;
-    Bucket newBuckets[] = new Bucket[numBuckets];
+    double availInCurBucket = counts[curBucket];
     for (int i = 0; i < numBuckets - 1; i++) {
       double remaining = averageCount;
       do {
-        if (lastUpdateAt < buckets[curBucket].lastUpdateAt) {
-          lastUpdateAt = buckets[curBucket].lastUpdateAt;
+        if (lastUpdateAt < lastUpdateAts[curBucket]) {
+          lastUpdateAt = lastUpdateAts[curBucket];
         }
         if (availInCurBucket > remaining) {
           marker = marker + remaining / density[curBucket];
-          assert (marker < buckets[curBucket].high);
+          assert (marker < highs[curBucket]);
           availInCurBucket -= remaining;
           remaining = 0;
         } else if (availInCurBucket < remaining) {
-          assert (buckets[curBucket].high > marker);
-          marker = buckets[curBucket].high;
+          assert (highs[curBucket] > marker);
+          marker = highs[curBucket];
           remaining -= availInCurBucket;
           curBucket++;
-          availInCurBucket = buckets[curBucket].count;
+          availInCurBucket = counts[curBucket];
         } else {
-          assert (buckets[curBucket].high > marker);
-          marker = buckets[curBucket].high;
+          assert (highs[curBucket] > marker);
+          marker = highs[curBucket];
           remaining = 0;
           curBucket++;
-          availInCurBucket = buckets[curBucket].count;
+          availInCurBucket = counts[curBucket];
         }
       } while (remaining > 0);
-      newBuckets[i] = new Bucket();
-      newBuckets[i].high = marker;
-      newBuckets[i].count = averageCount;
-      newBuckets[i].lastUpdateAt = lastUpdateAt;
-      lastUpdateAt = buckets[curBucket].lastUpdateAt;
-    }
-    newBuckets[numBuckets - 1] = new Bucket();
-    newBuckets[numBuckets - 1].high = Double.POSITIVE_INFINITY;
-    newBuckets[numBuckets - 1].count = averageCount;
-    newBuckets[numBuckets - 1].lastUpdateAt = Math.max(lastUpdateAt, buckets[numBuckets - 1].lastUpdateAt);
-    buckets = newBuckets;
+      spareHighs[i] = marker;
+      spareCounts[i] = averageCount;
+      spareLastUpdateAts[i] = lastUpdateAt;
+      lastUpdateAt = lastUpdateAts[curBucket];
+    }
+    spareHighs[numBuckets - 1] = Double.POSITIVE_INFINITY;
+    spareCounts[numBuckets - 1] = averageCount;
+    spareLastUpdateAts[numBuckets - 1] = Math.max(lastUpdateAt, lastUpdateAts[numBuckets - 1]);
+
+    double[] oldHighs = highs;
+    highs = spareHighs;
+    spareHighs = oldHighs;
+    double[] oldCounts = counts;
+    counts = spareCounts;
+    spareCounts = oldCounts;
+    long[] oldLastUpdateAts = lastUpdateAts;
+    lastUpdateAts = spareLastUpdateAts;
+    spareLastUpdateAts = oldLastUpdateAts;
     return;
   }
 
@@ -220,10 +357,13 @@ public class DynamicHistogram {
     b[0].count = 0;
     b[0].high = min;
     for (int i = 1; i < numBuckets; i++) {
-      b[i] = buckets[i - 1];
+      b[i] = new Bucket();
+      b[i].high = highs[i - 1];
+      b[i].count = counts[i - 1] / weight;
+      b[i].lastUpdateAt = lastUpdateAts[i - 1];
     }
     b[numBuckets] = new Bucket();
-    b[numBuckets].count = buckets[numBuckets - 1].count;
+    b[numBuckets].count = counts[numBuckets - 1] / weight;
     b[numBuckets].high = max;
     return b;
   }
@@ -0,0 +1,264 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.histo;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch made of compactors, as in KLL (Karnin, Lang, Liberty), with the same capacity on every
+ * level for simplicity. Items of level <code>h</code> stand for <code>2^h</code> points each. When a level gets
+ * <code>k</code> items, they are sorted and every other one, starting at a random offset, is promoted to the next
+ * level. Memory is <code>O(k log(n / k))</code>, and rank error is about <code>log2(n / k) / k</code> of the number
+ * of points.
+ *
+ * Sketches of the same <code>k</code> can be merged, so that sketches kept by several flowlet instances or for short
+ * intervals can be combined into one for all of them. Not thread safe.
+ */
+public class QuantileSketch {
+  private final int k;
+  // items of every level and how many of them there are
+  private double[][] levels;
+  private int[] sizes;
+  private int numLevels;
+  private long count;
+  private double min;
+  private double max;
+  // for compaction offsets, xorshift
+  private long random;
+
+  /**
+   * @param k capacity of a level, an even number of at least 8. The bigger it is, the more accurate the sketch
+   */
+  public QuantileSketch(int k) {
+    if (k < 8 || k % 2 != 0) {
+      throw new IllegalArgumentException("Capacity must be an even number of at least 8: " + k);
+    }
+    this.k = k;
+    this.levels = new double[4][];
+    this.sizes = new int[4];
+    this.random = 0x9E3779B97F4A7C15L;
+    clear();
+  }
+
+  /**
+   * @param bytes sketch serialized with {@link #toBytes()}
+   */
+  public static QuantileSketch fromBytes(byte[] bytes) {
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      QuantileSketch sketch = new QuantileSketch(buffer.getInt());
+      sketch.count = buffer.getLong();
+      sketch.min = buffer.getDouble();
+      sketch.max = buffer.getDouble();
+      int numLevels = buffer.getInt();
+      if (numLevels < 1 || numLevels > 64) {
+        throw new IllegalArgumentException("Invalid number of levels of quantile sketch: " + numLevels);
+      }
+      for (int level = 0; level < numLevels; level++) {
+        sketch.ensureLevel(level);
+        int size = buffer.getInt();
+        if (size < 0 || size >= sketch.k) {
+          throw new IllegalArgumentException("Invalid size of level " + level + " of quantile sketch: " + size);
+        }
+        for (int i = 0; i < size; i++) {
+          sketch.levels[level][i] = buffer.getDouble();
+        }
+        sketch.sizes[level] = size;
+      }
+      return sketch;
+    } catch (BufferUnderflowException e) {
+      throw new IllegalArgumentException("Invalid size of quantile sketch: " + bytes.length, e);
+    }
+  }
+
+  public void add(double value) {
+    if (Double.isNaN(value)) {
+      return;
+    }
+    insert(0, value);
+    count++;
+    if (value < min) {
+      min = value;
+    }
+    if (value > max) {
+      max = value;
+    }
+  }
+
+  /**
+   * Adds all points of the other sketch to this one.
+   * @throws IllegalArgumentException if the sketches have different capacity
+   */
+  public void merge(QuantileSketch other) {
+    if (other.k != k) {
+      throw new IllegalArgumentException("Cannot merge sketches of capacity " + k + " and " + other.k);
+    }
+    for (int level = 0; level < other.numLevels; level++) {
+      ensureLevel(level);
+      double[] items = other.levels[level];
+      for (int i = 0; i < other.sizes[level]; i++) {
+        insert(level, items[i]);
+      }
+    }
+    count += other.count;
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  /**
+   * @return number of points added to the sketch
+   */
+  public long getCount() {
+    return count;
+  }
+
+  public double getMin() {
+    return count == 0 ? Double.NaN : min;
+  }
+
+  public double getMax() {
+    return count == 0 ? Double.NaN : max;
+  }
+
+  /**
+   * @param fraction between 0 and 1, e.g. 0.99 for 99th percentile
+   * @return estimated value at the fraction of all points, or NaN if the sketch is empty
+   */
+  public double getQuantile(double fraction) {
+    return getQuantiles(new double[] {fraction})[0];
+  }
+
+  /**
+   * @param fractions between 0 and 1, in ascending order
+   * @return estimated values at the fractions of all points, or NaNs if the sketch is empty
+   */
+  public double[] getQuantiles(double[] fractions) {
+    double[] quantiles = new double[fractions.length];
+    if (count == 0) {
+      Arrays.fill(quantiles, Double.NaN);
+      return quantiles;
+    }
+    double[][] sorted = new double[numLevels][];
+    long totalWeight = 0;
+    for (int level = 0; level < numLevels; level++) {
+      sorted[level] = Arrays.copyOf(levels[level], sizes[level]);
+      Arrays.sort(sorted[level]);
+      totalWeight += (long) sizes[level] << level;
+    }
+    // walking all items in ascending order, merging the sorted levels
+    int[] positions = new int[numLevels];
+    long rank = 0;
+    int next = 0;
+    while (next < fractions.length) {
+      double fraction = fractions[next];
+      if (fraction <= 0) {
+        quantiles[next++] = min;
+        continue;
+      }
+      if (fraction >= 1) {
+        quantiles[next++] = max;
+        continue;
+      }
+      int minLevel = -1;
+      for (int level = 0; level < numLevels; level++) {
+        if (positions[level] < sorted[level].length
+          && (minLevel < 0 || sorted[level][positions[level]] < sorted[minLevel][positions[minLevel]])) {
+          minLevel = level;
+        }
+      }
+      if (minLevel < 0) {
+        quantiles[next++] = max;
+        continue;
+      }
+      double value = sorted[minLevel][positions[minLevel]++];
+      rank += 1L << minLevel;
+      while (next < fractions.length && fractions[next] > 0 && fractions[next] < 1
+        && rank >= fractions[next] * totalWeight) {
+        quantiles[next++] = value;
+      }
+    }
+    return quantiles;
+  }
+
+  /**
+   * Serializes the sketch: its capacity, number of points, min, max and the items of every level.
+   */
+  public byte[] toBytes() {
+    int size = 4 + 8 * 3 + 4;
+    for (int level = 0; level < numLevels; level++) {
+      size += 4 + sizes[level] * 8;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(k);
+    buffer.putLong(count);
+    buffer.putDouble(min);
+    buffer.putDouble(max);
+    buffer.putInt(numLevels);
+    for (int level = 0; level < numLevels; level++) {
+      buffer.putInt(sizes[level]);
+      for (int i = 0; i < sizes[level]; i++) {
+        buffer.putDouble(levels[level][i]);
+      }
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Removes all points, keeping the memory taken by the levels.
+   */
+  public void clear() {
+    Arrays.fill(sizes, 0);
+    ensureLevel(0);
+    numLevels = 1;
+    count = 0;
+    min = Double.POSITIVE_INFINITY;
+    max = Double.NEGATIVE_INFINITY;
+  }
+
+  private void insert(int level, double value) {
+    levels[level][sizes[level]++] = value;
+    if (sizes[level] == k) {
+      compact(level);
+    }
+  }
+
+  private void compact(int level) {
+    ensureLevel(level + 1);
+    double[] items = levels[level];
+    Arrays.sort(items, 0, k);
+    random ^= random << 13;
+    random ^= random >>> 7;
+    random ^= random << 17;
+    for (int i = (int) (random & 1); i < k; i += 2) {
+      insert(level + 1, items[i]);
+    }
+    sizes[level] = 0;
+  }
+
+  private void ensureLevel(int level) {
+    if (level >= levels.length) {
+      levels = Arrays.copyOf(levels, levels.length * 2);
+      sizes = Arrays.copyOf(sizes, sizes.length * 2);
+    }
+    if (levels[level] == null) {
+      levels[level] = new double[k];
+    }
+    numLevels = Math.max(numLevels, level + 1);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.sketch;
+
+import java.util.Arrays;
+
+/**
+ * Count-Min sketch of item frequencies: estimates are never below the real counts and are above them by at most
+ * <code>e / width * total count</code> with probability <code>1 - exp(-depth)</code>. Uses conservative update,
+ * i.e. increments only the counters that are at the minimum, which makes the estimates noticeably tighter for skewed
+ * data.
+ */
+public class CountMinSketch {
+  private final int depth;
+  private final int mask;
+  private final int[][] counts;
+
+  /**
+   * @param width number of counters per row, rounded up to a power of two
+   * @param depth number of rows, each row uses different hash of the item
+   */
+  public CountMinSketch(int width, int depth) {
+    if (width < 1 || width > (1 << 30) || depth < 1) {
+      throw new IllegalArgumentException("Invalid sketch size: width " + width + ", depth " + depth);
+    }
+    int roundedWidth = Integer.highestOneBit(width);
+    if (roundedWidth < width) {
+      roundedWidth <<= 1;
+    }
+    this.depth = depth;
+    this.mask = roundedWidth - 1;
+    this.counts = new int[depth][roundedWidth];
+  }
+
+  /**
+   * Adds occurrences of the item.
+   * @return estimated count of the item, including the added occurrences
+   */
+  public int add(byte[] item, int count) {
+    long hash = hash(item);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    int estimate = Integer.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      estimate = Math.min(estimate, counts[i][(h1 + i * h2) & mask]);
+    }
+    int updated = estimate > Integer.MAX_VALUE - count ? Integer.MAX_VALUE : estimate + count;
+    for (int i = 0; i < depth; i++) {
+      int index = (h1 + i * h2) & mask;
+      if (counts[i][index] < updated) {
+        counts[i][index] = updated;
+      }
+    }
+    return updated;
+  }
+
+  /**
+   * @return estimated count of the item
+   */
+  public int estimate(byte[] item) {
+    long hash = hash(item);
+    int h1 = (int) hash;
+    int h2 = (int) (hash >>> 32);
+    int estimate = Integer.MAX_VALUE;
+    for (int i = 0; i < depth; i++) {
+      estimate = Math.min(estimate, counts[i][(h1 + i * h2) & mask]);
+    }
+    return estimate;
+  }
+
+  public void clear() {
+    for (int[] row : counts) {
+      Arrays.fill(row, 0);
+    }
+  }
+
+  private static long hash(byte[] item) {
+    // odd step, so that rows of a power of two width use different counters
+    return Hashes.hash(item) | (1L << 32);
+  }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.sketch;
+
+/**
+ * Hash functions shared by the sketches.
+ */
+public final class Hashes {
+
+  private Hashes() {
+  }
+
+  /**
+   * @return 64 bit hash of the bytes, with all bits well mixed
+   */
+  public static long hash(byte[] item) {
+    // FNV-1a, with murmur3 finalizer to spread the bits over both halves
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : item) {
+      hash ^= b & 0xFF;
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
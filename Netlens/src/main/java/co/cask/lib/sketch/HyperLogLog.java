@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.sketch;
+
+import java.util.Arrays;
+
+/**
+ * HyperLogLog sketch of the number of distinct items (Flajolet et al.), with linear counting for small
+ * cardinalities. Takes <code>2^precision</code> bytes no matter how many items are added, and has standard error of
+ * about <code>1.04 / sqrt(2^precision)</code>, e.g. 3.25% for precision 10.
+ *
+ * Sketches of the same precision can be merged: the result is the same as if all items were added to one sketch, so
+ * sketches of short intervals can be combined into the ones of longer intervals.
+ */
+public class HyperLogLog {
+  private final int precision;
+  private final byte[] registers;
+
+  /**
+   * @param precision number of bits of the hash used to select register, between 4 and 16
+   */
+  public HyperLogLog(int precision) {
+    if (precision < 4 || precision > 16) {
+      throw new IllegalArgumentException("Precision must be between 4 and 16: " + precision);
+    }
+    this.precision = precision;
+    this.registers = new byte[1 << precision];
+  }
+
+  /**
+   * @param bytes sketch serialized with {@link #toBytes()}
+   */
+  public static HyperLogLog fromBytes(byte[] bytes) {
+    if (bytes.length == 0) {
+      throw new IllegalArgumentException("Empty HyperLogLog sketch");
+    }
+    HyperLogLog sketch = new HyperLogLog(bytes[0]);
+    if (bytes.length != sketch.registers.length + 1) {
+      throw new IllegalArgumentException("Invalid size of HyperLogLog sketch of precision " + bytes[0] + ": " +
+                                           bytes.length);
+    }
+    System.arraycopy(bytes, 1, sketch.registers, 0, sketch.registers.length);
+    return sketch;
+  }
+
+  /**
+   * @return true if the sketch has changed
+   */
+  public boolean add(byte[] item) {
+    long hash = Hashes.hash(item);
+    int index = (int) (hash >>> (64 - precision));
+    // position of the first set bit in the rest of the hash, limited by the number of the bits left
+    byte rank = (byte) (Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1);
+    if (rank > registers[index]) {
+      registers[index] = rank;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Adds all items of the other sketch to this one.
+   * @return true if the sketch has changed
+   */
+  public boolean merge(HyperLogLog other) {
+    if (other.precision != precision) {
+      throw new IllegalArgumentException("Cannot merge HyperLogLog of precision " + other.precision +
+                                           " into one of precision " + precision);
+    }
+    boolean changed = false;
+    for (int i = 0; i < registers.length; i++) {
+      if (other.registers[i] > registers[i]) {
+        registers[i] = other.registers[i];
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * @return estimated number of distinct items added
+   */
+  public long cardinality() {
+    int m = registers.length;
+    double sum = 0;
+    int zeros = 0;
+    for (byte register : registers) {
+      sum += 1.0 / (1L << register);
+      if (register == 0) {
+        zeros++;
+      }
+    }
+    double estimate = alpha(m) * m * m / sum;
+    if (estimate <= 2.5 * m && zeros > 0) {
+      // linear counting is more accurate for small cardinalities
+      estimate = m * Math.log((double) m / zeros);
+    }
+    return Math.round(estimate);
+  }
+
+  /**
+   * @return precision followed by the registers
+   */
+  public byte[] toBytes() {
+    byte[] bytes = new byte[registers.length + 1];
+    bytes[0] = (byte) precision;
+    System.arraycopy(registers, 0, bytes, 1, registers.length);
+    return bytes;
+  }
+
+  public void clear() {
+    Arrays.fill(registers, (byte) 0);
+  }
+
+  private static double alpha(int m) {
+    switch (m) {
+      case 16:
+        return 0.673;
+      case 32:
+        return 0.697;
+      case 64:
+        return 0.709;
+      default:
+        return 0.7213 / (1 + 1.079 / m);
+    }
+  }
+}
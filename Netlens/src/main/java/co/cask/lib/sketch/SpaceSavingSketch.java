@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.sketch;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Space-Saving sketch of the most frequent items (Metwally et al.): monitors at most <code>capacity</code> items and,
+ * when a new item comes while all counters are taken, replaces the item with the smallest count, which becomes the
+ * error of the new one. Counts of the monitored items are never below the real ones and are above them by at most
+ * <code>total count / capacity</code>; every item with real count above that is monitored.
+ *
+ * Counters are kept in a min-heap, so every update takes <code>O(log capacity)</code>.
+ * @param <T> type of the items
+ */
+public class SpaceSavingSketch<T> {
+  private final int capacity;
+  // item -> its position in the heap
+  private final Map<T, Integer> positions;
+  private final Object[] items;
+  private final long[] counts;
+  private final long[] errors;
+  private int size;
+
+  /**
+   * @param capacity max number of items to monitor
+   */
+  public SpaceSavingSketch(int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Invalid sketch capacity: " + capacity);
+    }
+    this.capacity = capacity;
+    this.positions = Maps.newHashMapWithExpectedSize(capacity);
+    this.items = new Object[capacity];
+    this.counts = new long[capacity];
+    this.errors = new long[capacity];
+  }
+
+  /**
+   * Adds occurrences of the item.
+   * @param count number of occurrences, positive
+   * @return estimated count of the item, including the added occurrences
+   */
+  public long add(T item, long count) {
+    if (count < 1) {
+      throw new IllegalArgumentException("Count must be positive: " + count);
+    }
+    Integer position = positions.get(item);
+    if (position != null) {
+      counts[position] += count;
+      return counts[siftDown(position)];
+    }
+    if (size < capacity) {
+      items[size] = item;
+      counts[size] = count;
+      errors[size] = 0;
+      positions.put(item, size);
+      return counts[siftUp(size++)];
+    }
+    // replacing the item with the smallest count
+    positions.remove(items[0]);
+    items[0] = item;
+    errors[0] = counts[0];
+    counts[0] += count;
+    positions.put(item, 0);
+    return counts[siftDown(0)];
+  }
+
+  /**
+   * @return estimated count of the item, never below the real one
+   */
+  public long estimate(T item) {
+    Integer position = positions.get(item);
+    if (position != null) {
+      return counts[position];
+    }
+    // item could have been replaced by the one with the smallest count
+    return size < capacity ? 0 : counts[0];
+  }
+
+  /**
+   * @return up to the given number of monitored items with the highest counts, from the highest one
+   */
+  @SuppressWarnings("unchecked")
+  public List<Entry<T>> getTop(int limit) {
+    Integer[] order = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer o1, Integer o2) {
+        long count1 = counts[o1];
+        long count2 = counts[o2];
+        return count1 > count2 ? -1 : (count1 == count2 ? 0 : 1);
+      }
+    });
+    int resultSize = Math.min(limit, size);
+    if (resultSize <= 0) {
+      return Collections.emptyList();
+    }
+    List<Entry<T>> result = Lists.newArrayListWithCapacity(resultSize);
+    for (int i = 0; i < resultSize; i++) {
+      int position = order[i];
+      result.add(new Entry<T>((T) items[position], counts[position], errors[position]));
+    }
+    return result;
+  }
+
+  /**
+   * @return number of monitored items
+   */
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    positions.clear();
+    Arrays.fill(items, null);
+    size = 0;
+  }
+
+  private int siftUp(int position) {
+    while (position > 0) {
+      int parent = (position - 1) >>> 1;
+      if (counts[parent] <= counts[position]) {
+        break;
+      }
+      swap(position, parent);
+      position = parent;
+    }
+    return position;
+  }
+
+  private int siftDown(int position) {
+    while (true) {
+      int child = 2 * position + 1;
+      if (child >= size) {
+        return position;
+      }
+      if (child + 1 < size && counts[child + 1] < counts[child]) {
+        child++;
+      }
+      if (counts[position] <= counts[child]) {
+        return position;
+      }
+      swap(position, child);
+      position = child;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void swap(int i, int j) {
+    Object item = items[i];
+    items[i] = items[j];
+    items[j] = item;
+    long count = counts[i];
+    counts[i] = counts[j];
+    counts[j] = count;
+    long error = errors[i];
+    errors[i] = errors[j];
+    errors[j] = error;
+    positions.put((T) items[i], i);
+    positions.put((T) items[j], j);
+  }
+
+  /**
+   * Monitored item with its estimated count. The real count is between <code>count - error</code> and
+   * <code>count</code>.
+   * @param <T> type of the item
+   */
+  public static final class Entry<T> {
+    private final T item;
+    private final long count;
+    private final long error;
+
+    Entry(T item, long count, long error) {
+      this.item = item;
+      this.count = count;
+      this.error = error;
+    }
+
+    public T getItem() {
+      return item;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getError() {
+      return error;
+    }
+  }
+}
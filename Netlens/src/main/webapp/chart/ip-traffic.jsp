@@ -36,13 +36,11 @@ the License.
     function drawTrafficChart() {
         var fact = JSON.parse(decodeURIComponent('<%= request.getParameter("fact") %>'));
         var src = fact.dimensions.src;
-        // todo: hack: we should not know here format of the key
-        var key = '3src' + src.length + src;
         var startTs = Date.now() - 5000 * 120;
         var endTs = Date.now();
         $.ajax({
             url: "proxy/v3/namespaces/default/apps/Netlens/services/CountersService/methods/counts/"
-                    + startTs + "/" + endTs + "?key=" + key,
+                    + startTs + "/" + endTs + "?src=" + encodeURIComponent(src),
             type: 'GET',
             contentType: "application/json",
             dataType: 'json',
@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.DatasetSpecification;
+import co.cask.cdap.api.dataset.lib.TimeseriesTable;
+import co.cask.cdap.api.dataset.table.Get;
+import co.cask.cdap.api.dataset.table.Result;
+import co.cask.cdap.api.dataset.table.Row;
+import co.cask.cdap.api.dataset.table.Scanner;
+import co.cask.cdap.api.dataset.table.Table;
+import com.google.common.collect.Lists;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import javax.annotation.Nullable;
+
+/**
+ * In-memory {@link Table} for unit tests of the table utilities, without transactions. Only the single and multi
+ * column gets, puts, deletes and increments, column range gets, multi-gets, compare and swap and scans are supported,
+ * other methods throw {@link UnsupportedOperationException}. Also backs a {@link TimeseriesTable}, see
+ * {@link #createTimeseries()}.
+ */
+public final class MemoryTable implements InvocationHandler {
+  private final NavigableMap<byte[], NavigableMap<byte[], byte[]>> rows =
+    new TreeMap<byte[], NavigableMap<byte[], byte[]>>(Bytes.BYTES_COMPARATOR);
+
+  private MemoryTable() {
+  }
+
+  public static Table create() {
+    return (Table) Proxy.newProxyInstance(Table.class.getClassLoader(), new Class<?>[] {Table.class},
+                                          new MemoryTable());
+  }
+
+  /**
+   * @return timeseries table stored in a new in-memory table
+   */
+  public static TimeseriesTable createTimeseries() {
+    return new TimeseriesTable(DatasetSpecification.builder("timeseries", TimeseriesTable.class.getName()).build(),
+                               create());
+  }
+
+  @Override
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    String name = method.getName();
+    Class<?>[] types = method.getParameterTypes();
+    if (name.equals("get") && types.length == 1 && types[0] == byte[].class) {
+      return getRow((byte[]) args[0]);
+    }
+    if (name.equals("get") && types.length == 1 && types[0] == Get.class) {
+      return getRow(((Get) args[0]).getRow());
+    }
+    if (name.equals("get") && types.length == 1 && types[0] == List.class) {
+      List<Row> result = Lists.newArrayList();
+      for (Object get : (List<?>) args[0]) {
+        result.add(getRow(((Get) get).getRow()));
+      }
+      return result;
+    }
+    if (name.equals("get") && types.length == 2 && types[1] == byte[].class) {
+      NavigableMap<byte[], byte[]> row = rows.get((byte[]) args[0]);
+      return row == null ? null : row.get((byte[]) args[1]);
+    }
+    if (name.equals("get") && types.length == 4) {
+      return getRow((byte[]) args[0], (byte[]) args[1], (byte[]) args[2], (Integer) args[3]);
+    }
+    if (name.equals("put") && types.length == 3 && types[1] == byte[].class) {
+      put((byte[]) args[0], (byte[]) args[1], (byte[]) args[2]);
+      return null;
+    }
+    if (name.equals("put") && types.length == 3 && types[1] == byte[][].class) {
+      byte[][] columns = (byte[][]) args[1];
+      byte[][] values = (byte[][]) args[2];
+      for (int i = 0; i < columns.length; i++) {
+        put((byte[]) args[0], columns[i], values[i]);
+      }
+      return null;
+    }
+    if (name.equals("delete") && types.length == 1) {
+      rows.remove((byte[]) args[0]);
+      return null;
+    }
+    if (name.equals("delete") && types.length == 2) {
+      byte[][] columns = types[1] == byte[].class ? new byte[][] {(byte[]) args[1]} : (byte[][]) args[1];
+      NavigableMap<byte[], byte[]> row = rows.get((byte[]) args[0]);
+      if (row != null) {
+        for (byte[] column : columns) {
+          row.remove(column);
+        }
+        if (row.isEmpty()) {
+          rows.remove((byte[]) args[0]);
+        }
+      }
+      return null;
+    }
+    if ((name.equals("increment") || name.equals("incrementAndGet")) && types[1] == byte[].class) {
+      byte[] row = (byte[]) args[0];
+      byte[] column = (byte[]) args[1];
+      byte[] value = (byte[]) invoke(proxy, Table.class.getMethod("get", byte[].class, byte[].class),
+                                     new Object[] {row, column});
+      long sum = (value == null ? 0 : Bytes.toLong(value)) + (Long) args[2];
+      put(row, column, Bytes.toBytes(sum));
+      return name.equals("increment") ? null : sum;
+    }
+    if (name.equals("compareAndSwap")) {
+      NavigableMap<byte[], byte[]> row = rows.get((byte[]) args[0]);
+      byte[] value = row == null ? null : row.get((byte[]) args[1]);
+      if (!Bytes.equals(value, (byte[]) args[2])) {
+        return false;
+      }
+      put((byte[]) args[0], (byte[]) args[1], (byte[]) args[3]);
+      return true;
+    }
+    if (name.equals("scan") && types.length == 2) {
+      return scan((byte[]) args[0], (byte[]) args[1]);
+    }
+    if (name.equals("toString")) {
+      return "MemoryTable{rows=" + rows.size() + "}";
+    }
+    if (name.equals("hashCode")) {
+      return System.identityHashCode(proxy);
+    }
+    if (name.equals("equals")) {
+      return proxy == args[0];
+    }
+    throw new UnsupportedOperationException(method.toString());
+  }
+
+  private void put(byte[] row, byte[] column, byte[] value) {
+    NavigableMap<byte[], byte[]> columns = rows.get(row);
+    if (columns == null) {
+      columns = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+      rows.put(row, columns);
+    }
+    columns.put(column, value);
+  }
+
+  private Row getRow(byte[] row) {
+    NavigableMap<byte[], byte[]> columns = rows.get(row);
+    Map<byte[], byte[]> copy = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+    if (columns != null) {
+      copy.putAll(columns);
+    }
+    return new Result(row, copy);
+  }
+
+  private Row getRow(byte[] row, @Nullable byte[] startColumn, @Nullable byte[] stopColumn, int limit) {
+    Map<byte[], byte[]> copy = new TreeMap<byte[], byte[]>(Bytes.BYTES_COMPARATOR);
+    NavigableMap<byte[], byte[]> columns = rows.get(row);
+    if (columns != null) {
+      if (startColumn != null) {
+        columns = columns.tailMap(startColumn, true);
+      }
+      if (stopColumn != null) {
+        columns = columns.headMap(stopColumn, false);
+      }
+      for (Map.Entry<byte[], byte[]> column : columns.entrySet()) {
+        if (copy.size() == limit) {
+          break;
+        }
+        copy.put(column.getKey(), column.getValue());
+      }
+    }
+    return new Result(row, copy);
+  }
+
+  private Scanner scan(byte[] startRow, byte[] stopRow) {
+    NavigableMap<byte[], NavigableMap<byte[], byte[]>> range = startRow == null ? rows : rows.tailMap(startRow, true);
+    if (stopRow != null) {
+      range = range.headMap(stopRow, false);
+    }
+    final Iterator<byte[]> keys = Lists.newArrayList(range.keySet()).iterator();
+    return new Scanner() {
+      @Override
+      public Row next() {
+        return keys.hasNext() ? getRow(keys.next()) : null;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+}
@@ -18,8 +18,10 @@ package co.cask.cdap.apps.netlens.app;
 
 import co.cask.cdap.api.metrics.RuntimeMetrics;
 import co.cask.cdap.apps.netlens.app.anomaly.AnomaliesServiceHandler;
+import co.cask.cdap.apps.netlens.app.anomaly.FactTypeAdapter;
 import co.cask.cdap.apps.netlens.app.counter.DataPoint;
 import co.cask.cdap.apps.netlens.app.counter.TopNTableUtil;
+import co.cask.cdap.apps.netlens.app.histo.QuantileTableUtil;
 import co.cask.cdap.test.ApplicationManager;
 import co.cask.cdap.test.FlowManager;
 import co.cask.cdap.test.ServiceManager;
@@ -29,6 +31,9 @@ import co.cask.common.http.HttpRequest;
 import co.cask.common.http.HttpRequests;
 import com.google.common.reflect.TypeToken;
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -46,7 +51,7 @@ public class NetlensAppTest extends TestBase {
   private static final Type DATA_POINT_LIST_TYPE = new TypeToken<List<DataPoint>>() {}.getType();
   private static final Type TOP_N_RESULT_LIST_TYPE = new TypeToken<List<TopNTableUtil.TopNResult>>() {}.getType();
   private static final long START = System.currentTimeMillis();
-  private static final Gson GSON = new Gson();
+  private static final Gson GSON = FactTypeAdapter.createGson();
 
   @Test
   public void testNetlensApp() throws Exception {
@@ -94,11 +99,28 @@ public class NetlensAppTest extends TestBase {
   }
 
   private void testAnomaliesService(ServiceManager serviceManager) throws Exception {
-    URL url = new URL(serviceManager.getServiceURL(), String.format("timeRange/%d/%d?groupFor=none",
-                                                                    START, System.currentTimeMillis()));
+    long endTs = System.currentTimeMillis();
+    URL url = new URL(serviceManager.getServiceURL(), String.format("timeRange/%d/%d?groupFor=none", START, endTs));
     List<AnomaliesServiceHandler.Anomaly> result =
       GSON.fromJson(doGet(url), new TypeToken<List<AnomaliesServiceHandler.Anomaly>>() {}.getType());
     Assert.assertFalse(result.isEmpty());
+
+    // paging through the same anomalies one at a time
+    JsonArray all = new JsonParser().parse(doGet(url)).getAsJsonArray();
+    String cursor = null;
+    for (int i = 0; i < Math.min(3, all.size()); i++) {
+      url = new URL(serviceManager.getServiceURL(), String.format("timeRange/%d/%d?groupFor=none&limit=1",
+                                                                  START, endTs) +
+        (cursor == null ? "" : "&cursor=" + cursor));
+      JsonObject page = new JsonParser().parse(doGet(url)).getAsJsonObject();
+      Assert.assertEquals(1, page.getAsJsonArray("anomalies").size());
+      Assert.assertEquals(all.get(i), page.getAsJsonArray("anomalies").get(0));
+      if (page.get("cursor").isJsonNull()) {
+        Assert.assertEquals(all.size() - 1, i);
+        break;
+      }
+      cursor = page.get("cursor").getAsString();
+    }
   }
 
   private void testCountersService(ServiceManager serviceManager) throws Exception {
@@ -110,6 +132,13 @@ public class NetlensAppTest extends TestBase {
     url = new URL(serviceManager.getServiceURL(), String.format("topN/%d", START) + "?limit=20");
     List<TopNTableUtil.TopNResult> topNResults = GSON.fromJson(doGet(url), TOP_N_RESULT_LIST_TYPE);
     Assert.assertFalse(topNResults.isEmpty());
+
+    url = new URL(serviceManager.getServiceURL(), String.format("percentiles/rl/%d/%d",
+                                                                START, System.currentTimeMillis()));
+    QuantileTableUtil.Distribution distribution = GSON.fromJson(doGet(url), QuantileTableUtil.Distribution.class);
+    Assert.assertTrue(distribution.getCount() > 0);
+    Assert.assertTrue(distribution.getP50() <= distribution.getP99());
+    Assert.assertEquals(2, distribution.getBoundaries().length);
   }
 
   private static String doGet(URL url) throws IOException {
@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app;
+
+import co.cask.cdap.api.Transactional;
+import co.cask.cdap.api.TxRunnable;
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.data.DatasetContext;
+import co.cask.cdap.api.service.http.HttpContentProducer;
+import co.cask.cdap.api.service.http.HttpServiceResponder;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Helps unit testing service handlers without running the service: sets their datasets and records their responses.
+ */
+public final class ServiceHandlers {
+  private ServiceHandlers() {
+  }
+
+  /**
+   * Sets the dataset field of the handler, or of a flowlet, as if it was injected with {@code @UseDataSet}.
+   */
+  public static void useDataset(Object handler, String field, Object dataset) {
+    try {
+      Field f = handler.getClass().getDeclaredField(field);
+      f.setAccessible(true);
+      f.set(handler, dataset);
+    } catch (Exception e) {
+      throw new IllegalArgumentException("Cannot set dataset " + field + " of " + handler.getClass(), e);
+    }
+  }
+
+  /**
+   * Reads all chunks of a streamed response, each of them in a transaction that gets the given datasets by name.
+   */
+  public static String readContent(HttpContentProducer producer, final Map<String, ?> datasets) throws Exception {
+    final DatasetContext context = (DatasetContext) Proxy.newProxyInstance(
+      DatasetContext.class.getClassLoader(), new Class<?>[] {DatasetContext.class}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (method.getName().equals("getDataset")) {
+            for (Object arg : args) {
+              if (datasets.containsKey(arg)) {
+                return datasets.get(arg);
+              }
+            }
+            throw new IllegalArgumentException("Unknown dataset: " + args[args.length - 1]);
+          }
+          throw new UnsupportedOperationException(method.toString());
+        }
+      });
+    Transactional transactional = (Transactional) Proxy.newProxyInstance(
+      Transactional.class.getClassLoader(), new Class<?>[] {Transactional.class}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (method.getName().equals("execute")) {
+            ((TxRunnable) args[args.length - 1]).run(context);
+            return null;
+          }
+          throw new UnsupportedOperationException(method.toString());
+        }
+      });
+    StringBuilder content = new StringBuilder();
+    ByteBuffer chunk;
+    while ((chunk = producer.nextChunk(transactional)).hasRemaining()) {
+      content.append(Bytes.toString(chunk));
+    }
+    producer.onFinish();
+    return content.toString();
+  }
+
+  /**
+   * Responder that records the status and the JSON object, error message or content producer sent.
+   */
+  public static final class Response implements InvocationHandler {
+    private final HttpServiceResponder responder;
+    private int status;
+    private Object body;
+
+    public Response() {
+      this.responder = (HttpServiceResponder) Proxy.newProxyInstance(
+        HttpServiceResponder.class.getClassLoader(), new Class<?>[] {HttpServiceResponder.class}, this);
+    }
+
+    public HttpServiceResponder getResponder() {
+      return responder;
+    }
+
+    public int getStatus() {
+      return status;
+    }
+
+    /**
+     * @return object sent as JSON, the error message, or the producer of the content
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getBody() {
+      return (T) body;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if (method.getName().equals("sendJson") && args.length == 1) {
+        status = HttpURLConnection.HTTP_OK;
+        body = args[0];
+      } else if (method.getName().equals("sendJson") || method.getName().equals("sendError")) {
+        status = (Integer) args[0];
+        body = args[1];
+      } else if (method.getName().equals("send") && args[1] instanceof HttpContentProducer) {
+        status = (Integer) args[0];
+        body = args[1];
+      } else if (method.getName().equals("sendStatus")) {
+        status = (Integer) args[0];
+      } else if (method.getDeclaringClass() == Object.class) {
+        return method.invoke(this, args);
+      } else {
+        throw new UnsupportedOperationException(method.toString());
+      }
+      return null;
+    }
+  }
+}
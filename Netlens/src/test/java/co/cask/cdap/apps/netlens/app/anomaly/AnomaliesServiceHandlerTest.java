@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.lib.TimeseriesTable;
+import co.cask.cdap.api.service.http.HttpContentProducer;
+import co.cask.cdap.apps.netlens.app.MemoryTable;
+import co.cask.cdap.apps.netlens.app.ServiceHandlers;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ *
+ */
+public class AnomaliesServiceHandlerTest {
+  private static final Gson GSON = FactTypeAdapter.createGson();
+
+  @Test
+  public void testFiltersAreAnded() throws Exception {
+    TimeseriesTable table = MemoryTable.createTimeseries();
+    write(table, fact(100, "1.1.1.1", "2.2.2.2", "UDP"));
+    write(table, fact(200, "1.1.1.1", "2.2.2.2", "TCP"));
+    write(table, fact(300, "1.1.1.1", "3.3.3.3", "UDP"));
+    write(table, fact(400, "4.4.4.4", "2.2.2.2", "UDP"));
+    // written before anomalies were sharded and indexed
+    Fact legacy = fact(500, "1.1.1.1", "2.2.2.2", "UDP");
+    table.write(new TimeseriesTable.Entry(AnomalyTableUtil.LEGACY_KEY, legacy.getSeriesKey().getBytes(), 500,
+                                          Bytes.toBytes(GSON.toJson(legacy))));
+
+    // by the shard of the ip
+    Assert.assertEquals(ImmutableList.of(500L, 100L),
+                        timeRange(table, "1.1.1.1", ImmutableList.of("dst:2.2.2.2", "app:UDP")));
+    // by the index of the destination
+    Assert.assertEquals(ImmutableList.of(500L, 400L, 100L),
+                        timeRange(table, null, ImmutableList.of("dst:2.2.2.2", "app:UDP")));
+    // ip given as a filter is read from its shard too
+    Assert.assertEquals(ImmutableList.of(200L), timeRange(table, null, ImmutableList.of("app:TCP", "src:1.1.1.1")));
+    // not indexed, all shards are read
+    Assert.assertEquals(ImmutableList.of(500L, 400L, 300L, 100L), timeRange(table, null, ImmutableList.of("app:UDP")));
+    Assert.assertEquals(Collections.<Long>emptyList(),
+                        timeRange(table, "4.4.4.4", ImmutableList.of("dst:2.2.2.2", "app:TCP")));
+    Assert.assertEquals(ImmutableList.of(500L, 400L, 300L, 200L, 100L), timeRange(table, null, null));
+  }
+
+  @Test
+  public void testInvalidFilter() throws Exception {
+    ServiceHandlers.Response response = new ServiceHandlers.Response();
+    new AnomaliesServiceHandler().timeRange(null, response.getResponder(), 0L, 1000L, null, null,
+                                            ImmutableList.of("app:UDP", "UDP"), null, null);
+    Assert.assertEquals(HttpURLConnection.HTTP_BAD_REQUEST, response.getStatus());
+  }
+
+  @Test
+  public void testOnlyHighCardinalityIndexed() {
+    TimeseriesTable indexed = MemoryTable.createTimeseries();
+    Fact fact = fact(100, "1.1.1.1", "2.2.2.2", "UDP");
+    AnomalyTableUtil.write(indexed, fact, fact.getSeriesKey().getBytes(), AnomalyRecord.encode(fact));
+    Assert.assertTrue(indexed.read(AnomalyTableUtil.getIndexKey("dst", "2.2.2.2"), 0, 1000).hasNext());
+    Assert.assertFalse(indexed.read(AnomalyTableUtil.getIndexKey("app", "UDP"), 0, 1000).hasNext());
+    Assert.assertFalse(indexed.read(AnomalyTableUtil.getIndexKey("src", "1.1.1.1"), 0, 1000).hasNext());
+  }
+
+  // timestamps of the anomalies returned, the most recent first
+  private static List<Long> timeRange(TimeseriesTable table, String src, List<String> filters) throws Exception {
+    ServiceHandlers.Response response = new ServiceHandlers.Response();
+    new AnomaliesServiceHandler().timeRange(null, response.getResponder(), 0L, 1000L, null, src, filters, null, null);
+    Assert.assertEquals(HttpURLConnection.HTTP_OK, response.getStatus());
+    HttpContentProducer producer = response.getBody();
+    String content = ServiceHandlers.readContent(producer, ImmutableMap.of("anomalies", table));
+    List<AnomaliesServiceHandler.Anomaly> anomalies =
+      GSON.fromJson(content, new TypeToken<List<AnomaliesServiceHandler.Anomaly>>() { }.getType());
+    List<Long> timestamps = Lists.newArrayList();
+    for (AnomaliesServiceHandler.Anomaly anomaly : anomalies) {
+      timestamps.add(anomaly.getFact().getTs());
+    }
+    return timestamps;
+  }
+
+  private static void write(TimeseriesTable table, Fact anomaly) {
+    AnomalyTableUtil.write(table, anomaly, anomaly.getSeriesKey().getBytes(), AnomalyRecord.encode(anomaly));
+  }
+
+  private static Fact fact(long ts, String src, String dst, String app) {
+    return new Fact(ts, ImmutableMap.of("src", src, "dst", dst, "app", app));
+  }
+}
@@ -16,9 +16,33 @@
 
 package co.cask.cdap.apps.netlens.app.anomaly;
 
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.lib.TimeseriesTable;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.flow.flowlet.FlowletContext;
+import co.cask.cdap.api.flow.flowlet.OutputEmitter;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.IntervalKey;
+import co.cask.cdap.apps.netlens.app.MemoryTable;
+import co.cask.cdap.apps.netlens.app.ServiceHandlers;
+import co.cask.cdap.apps.netlens.app.counter.SeriesCountTableUtil;
+import com.google.common.collect.HashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multiset;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 /**
  *
  */
@@ -39,4 +63,179 @@ public class AnomalyDetectionFlowletTest {
     Assert.assertTrue(AnomalyDetectionFlowlet.isLastPointAnomaly(new int[]{0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 12},
                                                                  meanThreshold, sensitivity));
   }
+
+  @Test
+  public void testGroupBySeries() {
+    long interval = Constants.AGG_INTERVAL_SIZE;
+    Fact a1 = new Fact(interval + 1, ImmutableMap.of("src", "1.1.1.1"));
+    Fact a2 = new Fact(interval + 2, ImmutableMap.of("src", "1.1.1.1"));
+    Fact b1 = new Fact(interval + 3, ImmutableMap.of("src", "2.2.2.2"));
+    Fact a3 = new Fact(2 * interval, ImmutableMap.of("src", "1.1.1.1"));
+    Fact b2 = new Fact(2 * interval - 1, ImmutableMap.of("src", "2.2.2.2"));
+    List<Fact> batch = ImmutableList.of(a1, a2, b1, a3, b2);
+
+    Multiset<IntervalKey<SeriesKey>> groupSizes = HashMultiset.create();
+    Map<IntervalKey<SeriesKey>, Fact> groups = AnomalyDetectionFlowlet.groupBySeries(batch.iterator(), groupSizes);
+    // same series and interval anywhere in the batch is one group, keyed by the start of the interval
+    Assert.assertEquals(ImmutableList.of(a1, b1, a3), ImmutableList.copyOf(groups.values()));
+    Assert.assertEquals(2, groupSizes.count(new IntervalKey<SeriesKey>(a1.getSeriesKey(), interval)));
+    Assert.assertEquals(2, groupSizes.count(new IntervalKey<SeriesKey>(b1.getSeriesKey(), interval)));
+    Assert.assertEquals(1, groupSizes.count(new IntervalKey<SeriesKey>(a3.getSeriesKey(), 2 * interval)));
+    Assert.assertEquals(batch.size(), groupSizes.size());
+  }
+
+  @Test
+  public void testBlocksListedOncePerSeries() throws Exception {
+    final List<byte[]> listed = Lists.newArrayList();
+    final Table table = MemoryTable.create();
+    // records rows of the blocks listed to be sealed, which are the only rows not starting with the key format
+    Table seriesCounts = (Table) Proxy.newProxyInstance(
+      Table.class.getClassLoader(), new Class<?>[] {Table.class}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+          if (method.getName().equals("put") && ((byte[]) args[0])[0] != SeriesKey.FORMAT_V1) {
+            listed.add((byte[]) args[0]);
+          }
+          try {
+            return method.invoke(table, args);
+          } catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        }
+      });
+    AnomalyDetectionFlowlet flowlet = newFlowlet(seriesCounts);
+    long blockTs = SeriesCountTableUtil.getBlockTs(System.currentTimeMillis());
+    long interval = Constants.AGG_INTERVAL_SIZE;
+    for (int i = 0; i < 5; i++) {
+      flowlet.process(ImmutableList.of(fact(blockTs + i * interval, "1.1.1.1"),
+                                       fact(blockTs + i * interval, "2.2.2.2")).iterator());
+    }
+    Assert.assertEquals(2, listed.size());
+
+    // next block is listed once, the previous one is sealed as the window moved on
+    long nextBlockTs = blockTs + SeriesCountTableUtil.BLOCK_SIZE;
+    for (int i = 0; i < 3; i++) {
+      flowlet.process(ImmutableList.of(fact(nextBlockTs + i * interval, "1.1.1.1")).iterator());
+    }
+    Assert.assertEquals(3, listed.size());
+    // only the block of the series that went quiet is left to the sweep
+    Assert.assertEquals(1, SeriesCountTableUtil.sweep(table, 0, 1, nextBlockTs, 100));
+
+    // late count of a block that is sealed already is listed again
+    flowlet.process(ImmutableList.of(fact(blockTs, "1.1.1.1")).iterator());
+    Assert.assertEquals(4, listed.size());
+    Assert.assertEquals(1, SeriesCountTableUtil.sweep(table, 0, 1, nextBlockTs, 100));
+  }
+
+  @Test
+  public void testSweepSealsQuietSeries() throws Exception {
+    Table seriesCounts = MemoryTable.create();
+    AnomalyDetectionFlowlet flowlet = newFlowlet(seriesCounts);
+    // facts of series which went quiet two hours ago
+    long blockTs = SeriesCountTableUtil.getBlockTs(System.currentTimeMillis()) - 2 * SeriesCountTableUtil.BLOCK_SIZE;
+    List<Fact> facts = Lists.newArrayList();
+    for (int i = 0; i < 60; i++) {
+      facts.add(fact(blockTs + i, "10.0.0." + i));
+    }
+    flowlet.process(facts.iterator());
+    // a few blocks per transaction, until all are sealed
+    flowlet.sweep();
+    Assert.assertEquals(10, countUnsealed(seriesCounts, blockTs, 60));
+    flowlet.sweep();
+    Assert.assertEquals(0, countUnsealed(seriesCounts, blockTs, 60));
+    Assert.assertEquals(0, SeriesCountTableUtil.sweep(seriesCounts, 0, 1, System.currentTimeMillis(), 100));
+  }
+
+  // number of the series whose block is not sealed into the block column yet
+  private static int countUnsealed(Table seriesCounts, long blockTs, int numSeries) {
+    int unsealed = 0;
+    for (int i = 0; i < numSeries; i++) {
+      byte[] key = fact(blockTs, "10.0.0." + i).getSeriesKey().getBytes();
+      Assert.assertEquals(1, SeriesCountTableUtil.getCounts(seriesCounts, key, blockTs, 1)[0]);
+      if (seriesCounts.get(Bytes.add(key, Bytes.toBytes(blockTs)), Bytes.toBytes("b")) == null) {
+        unsealed++;
+      }
+    }
+    return unsealed;
+  }
+
+  @Test
+  public void testWindowsLoadedFromLegacyCounters() throws Exception {
+    long interval = Constants.AGG_INTERVAL_SIZE;
+    long ts = (System.currentTimeMillis() / interval) * interval;
+    String[] srcs = {"1.1.1.1", "2.2.2.2"};
+    // busy series counted into the old dataset until the upgrade, the second one also in the current interval
+    TimeseriesTable counters = MemoryTable.createTimeseries();
+    for (String src : srcs) {
+      byte[] key = fact(ts, src).getSeriesKey().getBytes();
+      for (int i = 1; i <= AnomalyDetectionFlowlet.INTERVALS_TO_COMPARE; i++) {
+        counters.write(new TimeseriesTable.Entry(key, Bytes.toBytes(100 + i % 3), ts - i * interval));
+      }
+    }
+    counters.write(new TimeseriesTable.Entry(fact(ts, "2.2.2.2").getSeriesKey().getBytes(), Bytes.toBytes(60), ts));
+    final List<Fact> emitted = Lists.newArrayList();
+    OutputEmitter<?> output = (OutputEmitter<?>) Proxy.newProxyInstance(
+      OutputEmitter.class.getClassLoader(), new Class<?>[] {OutputEmitter.class}, new InvocationHandler() {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+          emitted.add((Fact) args[0]);
+          return null;
+        }
+      });
+    AnomalyDetectionFlowlet flowlet = newFlowlet(MemoryTable.create(), counters, output);
+
+    // as many facts as before are not anomalies, the current interval is compared with the counts before
+    List<Fact> facts = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      facts.add(fact(ts + i, "1.1.1.1"));
+    }
+    flowlet.process(facts.iterator());
+    Assert.assertTrue(emitted.isEmpty());
+
+    // counts of the interval being counted at the upgrade are added up
+    facts.clear();
+    for (int i = 0; i < 50; i++) {
+      facts.add(fact(ts + i, "2.2.2.2"));
+    }
+    flowlet.process(facts.iterator());
+    Assert.assertEquals(1, emitted.size());
+    Assert.assertEquals("2.2.2.2", emitted.get(0).getValue("src"));
+  }
+
+  private static Fact fact(long ts, String src) {
+    return new Fact(ts, ImmutableMap.of("src", src));
+  }
+
+  private static AnomalyDetectionFlowlet newFlowlet(Table seriesCounts) throws Exception {
+    return newFlowlet(seriesCounts, MemoryTable.createTimeseries(), stub(OutputEmitter.class));
+  }
+
+  private static AnomalyDetectionFlowlet newFlowlet(Table seriesCounts, TimeseriesTable counters,
+                                                    OutputEmitter<?> output) throws Exception {
+    AnomalyDetectionFlowlet flowlet = new AnomalyDetectionFlowlet();
+    ServiceHandlers.useDataset(flowlet, "seriesCounts", seriesCounts);
+    ServiceHandlers.useDataset(flowlet, "counters", counters);
+    ServiceHandlers.useDataset(flowlet, "anomalies", MemoryTable.createTimeseries());
+    ServiceHandlers.useDataset(flowlet, "detectorStates", MemoryTable.create());
+    ServiceHandlers.useDataset(flowlet, "metrics", stub(Metrics.class));
+    ServiceHandlers.useDataset(flowlet, "output", output);
+    flowlet.initialize(stub(FlowletContext.class));
+    return flowlet;
+  }
+
+  // single instance without runtime arguments and metrics
+  private static <T> T stub(Class<T> type) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        if (method.getName().equals("getInstanceCount")) {
+          return 1;
+        }
+        if (method.getReturnType() == Map.class) {
+          return Collections.emptyMap();
+        }
+        return method.getReturnType() == int.class ? 0 : null;
+      }
+    }));
+  }
 }
@@ -1,5 +1,5 @@
 /*
- * Copyright © 2014 Cask Data, Inc.
+ * Copyright © 2014-2015 Cask Data, Inc.
  *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
@@ -16,16 +16,23 @@
 
 package co.cask.cdap.apps.netlens.app.anomaly;
 
+import co.cask.cdap.apps.netlens.app.Constants;
 import com.google.common.base.Function;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.gson.Gson;
 import org.junit.Assert;
 import org.junit.Test;
 
 import javax.annotation.Nullable;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
 
 /**
@@ -94,6 +101,184 @@ public class AnomalyFanOutFlowletTest {
     Assert.assertTrue(maps.contains(mapAsString("a", "1", "c", "3")));
   }
 
+  @Test
+  public void testRequiredDimensions() {
+    Fact fact = new Fact(5L, ImmutableMap.of("src", "1.1.1.1", "app", "UDP", "dst", "2.2.2.2", "custom", "c"));
+    List<Fact> subsets = Lists.newArrayList();
+    Assert.assertEquals(7, new SubsetFanOut(ImmutableSet.of("src"), null, 2).fanOut(fact, subsets));
+    Assert.assertEquals(7, subsets.size());
+
+    Set<String> maps = Sets.newHashSet();
+    for (Fact subset : subsets) {
+      Assert.assertEquals(5L, subset.getTs());
+      Assert.assertEquals("1.1.1.1", subset.getValue("src"));
+      Assert.assertTrue(subset.size() <= 3);
+      // series key put together from the parts of the original one is same as one encoded from scratch
+      Assert.assertEquals(new Fact(5L, subset.getDimensions()).getSeriesKey(), subset.getSeriesKey());
+      maps.add(mapAsString(subset.getDimensions()));
+    }
+    Assert.assertEquals(7, maps.size());
+    Assert.assertTrue(maps.contains(mapAsString("src", "1.1.1.1")));
+    Assert.assertTrue(maps.contains(mapAsString("app", "UDP", "custom", "c", "src", "1.1.1.1")));
+
+    // required custom dimension
+    subsets.clear();
+    new SubsetFanOut(ImmutableSet.of("custom"), null, 0).fanOut(fact, subsets);
+    Assert.assertEquals(1, subsets.size());
+    Assert.assertEquals(ImmutableMap.of("custom", "c"), subsets.get(0).getDimensions());
+  }
+
+  @Test
+  public void testAcceptedDimensions() {
+    Fact fact = new Fact(5L, ImmutableMap.of("src", "1.1.1.1", "app", "UDP", "dst", "2.2.2.2", "spt", "80"));
+    List<Fact> subsets = Lists.newArrayList();
+    new SubsetFanOut(ImmutableSet.of("src"), ImmutableSet.of("src", "app", "dst"), 3).fanOut(fact, subsets);
+
+    Set<String> maps = Sets.newHashSet();
+    for (Fact subset : subsets) {
+      Assert.assertNull(subset.getValue("spt"));
+      maps.add(mapAsString(subset.getDimensions()));
+    }
+    Assert.assertEquals(4, maps.size());
+    Assert.assertTrue(maps.contains(mapAsString("app", "UDP", "dst", "2.2.2.2", "src", "1.1.1.1")));
+  }
+
+  @Test
+  public void testPruning() {
+    long window = 10000;
+    SubsetPruner pruner = new SubsetPruner(window, 3, 1024, 100);
+    List<Fact> released = Lists.newArrayList();
+
+    Assert.assertFalse(pruner.offer(fact("2.2.2.2", 100), released));
+    for (int i = 0; i < 3; i++) {
+      Assert.assertFalse(pruner.offer(fact("1.1.1.1", 100), released));
+    }
+    // facts held back are released with the one that takes the series above the min support
+    Assert.assertTrue(pruner.offer(fact("1.1.1.1", 200), released));
+    Assert.assertEquals(3, released.size());
+    released.clear();
+    Assert.assertFalse(pruner.offer(fact("2.2.2.2", 200), released));
+    Assert.assertEquals(2, pruner.getNumHeld());
+
+    // support from the previous window still counts
+    Assert.assertTrue(pruner.offer(fact("1.1.1.1", window + 100), released));
+    Assert.assertTrue(released.isEmpty());
+    // but not from the older ones, and facts of series that did not reach the min support are dropped
+    Assert.assertFalse(pruner.offer(fact("1.1.1.1", 3 * window + 100), released));
+    Assert.assertEquals(1, pruner.getNumHeld());
+  }
+
+  @Test
+  public void testPruningMaxHeld() {
+    SubsetPruner pruner = new SubsetPruner(10000, 3, 1024, 2);
+    List<Fact> released = Lists.newArrayList();
+    Assert.assertFalse(pruner.offer(fact("1.1.1.1", 100), released));
+    Assert.assertFalse(pruner.offer(fact("2.2.2.2", 100), released));
+    // no more room, facts are let through together with the ones held back
+    Assert.assertTrue(pruner.offer(fact("1.1.1.1", 100), released));
+    Assert.assertEquals(1, released.size());
+    Assert.assertEquals(1, pruner.getNumHeld());
+  }
+
+  @Test
+  public void testPruningRollback() {
+    SubsetPruner pruner = new SubsetPruner(10000, 3, 1024, 100);
+    List<Fact> released = Lists.newArrayList();
+    for (int i = 0; i < 3; i++) {
+      Assert.assertFalse(pruner.offer(fact("1.1.1.1", 100), released));
+    }
+    pruner.commit();
+
+    // transaction that releases the held facts and holds others fails
+    Assert.assertTrue(pruner.offer(fact("1.1.1.1", 100), released));
+    Assert.assertEquals(3, released.size());
+    Assert.assertFalse(pruner.offer(fact("2.2.2.2", 20100), released));
+    pruner.rollback();
+    Assert.assertEquals(3, pruner.getNumHeld());
+
+    // when it is retried, the held facts are released again and the others are not held twice
+    released.clear();
+    Assert.assertTrue(pruner.offer(fact("1.1.1.1", 100), released));
+    Assert.assertEquals(3, released.size());
+    Assert.assertFalse(pruner.offer(fact("2.2.2.2", 20100), released));
+    Assert.assertEquals(1, pruner.getNumHeld());
+  }
+
+  @Test
+  public void testPruningKeepsDetection() {
+    int intervals = AnomalyDetectionFlowlet.INTERVALS_TO_COMPARE + 1;
+    double meanThreshold = AnomalyDetectionFlowlet.DEFAULT_MEAN_THRESHOLD;
+    SubsetPruner pruner = new SubsetPruner(Constants.AGG_INTERVAL_SIZE * intervals, meanThreshold * intervals,
+                                           1024, 1 << 20);
+    int numIntervals = 200;
+    int numSeries = 60;
+    int[][] counts = new int[numSeries][numIntervals];
+    int[][] emitted = new int[numSeries][numIntervals];
+    Random random = new Random(0);
+    List<Fact> released = Lists.newArrayList();
+    int offered = 0;
+    for (int i = 0; i < numIntervals; i++) {
+      for (int s = 0; s < numSeries; s++) {
+        int count;
+        if (s % 3 == 0) {
+          // rare
+          count = random.nextInt(8) == 0 ? 1 : 0;
+        } else if (s % 3 == 1) {
+          // quiet with a burst
+          count = i == 20 + s * 2 ? 30 : random.nextInt(4) == 0 ? 1 : 0;
+        } else {
+          // frequent
+          count = 2 + random.nextInt(3);
+        }
+        counts[s][i] += count;
+        for (int c = 0; c < count; c++) {
+          long ts = i * Constants.AGG_INTERVAL_SIZE + random.nextInt((int) Constants.AGG_INTERVAL_SIZE);
+          if (pruner.offer(fact("10.0.0." + s, ts), released)) {
+            emitted[s][i]++;
+          }
+          for (Fact fact : released) {
+            int series = Integer.parseInt(fact.getValue("src").substring("10.0.0.".length()));
+            emitted[series][(int) (fact.getTs() / Constants.AGG_INTERVAL_SIZE)]++;
+          }
+          released.clear();
+          if (++offered % 100 == 0) {
+            pruner.commit();
+          }
+        }
+      }
+    }
+
+    int anomalies = 0;
+    int total = 0;
+    int totalEmitted = 0;
+    for (int s = 0; s < numSeries; s++) {
+      for (int i = 0; i < numIntervals; i++) {
+        Assert.assertTrue(emitted[s][i] <= counts[s][i]);
+        total += counts[s][i];
+        totalEmitted += emitted[s][i];
+        if (i >= intervals - 1) {
+          boolean anomaly = AnomalyDetectionFlowlet.isLastPointAnomaly(
+            Arrays.copyOfRange(counts[s], i - intervals + 1, i + 1), meanThreshold, 2.0);
+          Assert.assertEquals(anomaly, AnomalyDetectionFlowlet.isLastPointAnomaly(
+            Arrays.copyOfRange(emitted[s], i - intervals + 1, i + 1), meanThreshold, 2.0));
+          anomalies += anomaly ? 1 : 0;
+        }
+      }
+      if (s % 3 == 1) {
+        // burst is counted in full, with the facts of the series before it
+        int burst = 20 + s * 2;
+        Assert.assertArrayEquals(Arrays.copyOfRange(counts[s], burst - intervals + 1, burst + 1),
+                                 Arrays.copyOfRange(emitted[s], burst - intervals + 1, burst + 1));
+      }
+    }
+    Assert.assertTrue(anomalies > 0);
+    Assert.assertTrue(totalEmitted < total);
+  }
+
+  private static Fact fact(String src, long ts) {
+    return new Fact(ts, ImmutableMap.of("src", src));
+  }
+
   private List<String> mapsAsStrings(List<Map<String, String>> allSubsets) {
     return Lists.transform(allSubsets, new Function<Map<String, String>, String>() {
       @Nullable
@@ -0,0 +1,77 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.common.Bytes;
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class AnomalyRecordTest {
+  private static final Gson GSON = FactTypeAdapter.createGson();
+
+  @Test
+  public void testEncodeDecode() {
+    Fact fact = new Fact(100L, ImmutableMap.of("src", "1.1.1.1", "app", "UDP", "ahost", "hé", "rl", "low"));
+    byte[] bytes = AnomalyRecord.encode(fact);
+    Assert.assertEquals(AnomalyRecord.FORMAT_V1, bytes[0]);
+    // much smaller than JSON
+    Assert.assertTrue(bytes.length < GSON.toJson(fact).length() / 2);
+
+    AnomalyRecord.Decoder decoder = new AnomalyRecord.Decoder(GSON);
+    AnomalyRecord record = decoder.decode(100L, bytes);
+    Assert.assertEquals(100L, record.getTs());
+    Assert.assertEquals("UDP", record.getValue("app"));
+    Assert.assertEquals("hé", record.getValue("ahost"));
+    Assert.assertNull(record.getValue("dst"));
+    Assert.assertNull(record.getValue("bbb"));
+    Assert.assertEquals(fact.getDimensions(), record.toFact().getDimensions());
+    Assert.assertEquals(100L, record.toFact().getTs());
+  }
+
+  @Test
+  public void testInternsValues() {
+    AnomalyRecord.Decoder decoder = new AnomalyRecord.Decoder(GSON);
+    AnomalyRecord first = decoder.decode(1L, AnomalyRecord.encode(new Fact(1L, ImmutableMap.of("app", "UDP"))));
+    AnomalyRecord second = decoder.decode(2L, AnomalyRecord.encode(new Fact(2L, ImmutableMap.of("app", "UDP"))));
+    Assert.assertSame(first.getValue("app"), second.toFact().getValue("app"));
+  }
+
+  @Test
+  public void testReadsJson() {
+    Fact fact = new Fact(100L, ImmutableMap.of("src", "1.1.1.1", "custom", "c"));
+    AnomalyRecord record = new AnomalyRecord.Decoder(GSON).decode(100L, Bytes.toBytes(GSON.toJson(fact)));
+    Assert.assertEquals("1.1.1.1", record.getValue("src"));
+    Assert.assertEquals("c", record.getValue("custom"));
+    Assert.assertEquals(fact.getDimensions(), record.toFact().getDimensions());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownFormat() {
+    new AnomalyRecord.Decoder(GSON).decode(1L, new byte[] {2, 0});
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTruncated() {
+    byte[] bytes = AnomalyRecord.encode(new Fact(1L, ImmutableMap.of("src", "1.1.1.1")));
+    new AnomalyRecord.Decoder(GSON).decode(1L, Bytes.head(bytes, bytes.length - 1)).toFact();
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.lib.TimeseriesTable;
+import co.cask.cdap.apps.netlens.app.MemoryTable;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ *
+ */
+public class AnomalyTableUtilTest {
+  private static final Gson GSON = FactTypeAdapter.createGson();
+
+  @Test
+  public void testShardKeys() {
+    Set<Integer> shards = Sets.newHashSet();
+    for (int i = 0; i < 100; i++) {
+      String src = "10.0.0." + i;
+      byte[] key = AnomalyTableUtil.getKey(src);
+      Assert.assertArrayEquals(key, AnomalyTableUtil.getKey(src));
+      Assert.assertEquals(AnomalyTableUtil.ANOMALY_KEY_PREFIX.length + 1, key.length);
+      Assert.assertArrayEquals(AnomalyTableUtil.ANOMALY_KEY_PREFIX,
+                               Arrays.copyOf(key, AnomalyTableUtil.ANOMALY_KEY_PREFIX.length));
+      int shard = key[key.length - 1];
+      Assert.assertTrue(shard >= 0 && shard < AnomalyTableUtil.SHARDS);
+      shards.add(shard);
+    }
+    // ips are spread over all shards
+    Assert.assertEquals(AnomalyTableUtil.SHARDS, shards.size());
+    // anomalies without source go to the first one
+    byte[] firstShard = Bytes.add(AnomalyTableUtil.ANOMALY_KEY_PREFIX, new byte[1]);
+    Assert.assertArrayEquals(firstShard, AnomalyTableUtil.getKey(null));
+    Assert.assertFalse(Bytes.equals(AnomalyTableUtil.LEGACY_KEY, AnomalyTableUtil.getKey(null)));
+  }
+
+  @Test
+  public void testReadMergesShardsAndLegacy() {
+    TimeseriesTable table = MemoryTable.createTimeseries();
+    List<Long> expected = Lists.newArrayList();
+    for (int i = 0; i < 50; i++) {
+      long ts = 1000L + (i * 37) % 50;
+      write(table, new Fact(ts, ImmutableMap.of("src", "10.0.0." + i, "app", "UDP")));
+      expected.add(ts);
+    }
+    // written under the single key before anomalies were sharded, as JSON
+    long[] legacyTs = {999L, 1010L, 1010L, 1060L};
+    for (int i = 0; i < legacyTs.length; i++) {
+      long ts = legacyTs[i];
+      Fact fact = new Fact(ts, ImmutableMap.of("src", "10.0.1." + i, "app", "TCP"));
+      table.write(new TimeseriesTable.Entry(AnomalyTableUtil.LEGACY_KEY, fact.getSeriesKey().getBytes(), ts,
+                                            Bytes.toBytes(GSON.toJson(fact))));
+      expected.add(ts);
+    }
+    Collections.sort(expected);
+
+    List<TimeseriesTable.Entry> entries =
+      Lists.newArrayList(AnomalyTableUtil.read(table, 0, 2000, Collections.<String, String>emptyMap()));
+    List<Long> timestamps = Lists.newArrayList();
+    for (int i = 0; i < entries.size(); i++) {
+      timestamps.add(entries.get(i).getTimestamp());
+      if (i > 0 && entries.get(i).getTimestamp() == entries.get(i - 1).getTimestamp()) {
+        // same time is ordered by key, so that paging is stable
+        Assert.assertTrue(Bytes.compareTo(entries.get(i - 1).getKey(), entries.get(i).getKey()) <= 0);
+      }
+    }
+    Assert.assertEquals(expected, timestamps);
+
+    // the legacy entries of the range only
+    entries = Lists.newArrayList(AnomalyTableUtil.read(table, 1051, 1070, Collections.<String, String>emptyMap()));
+    Assert.assertEquals(1, entries.size());
+    Assert.assertArrayEquals(AnomalyTableUtil.LEGACY_KEY, entries.get(0).getKey());
+    Assert.assertEquals(1060L, entries.get(0).getTimestamp());
+
+    // most recent first
+    entries = Lists.newArrayList(AnomalyTableUtil.readReverse(table, 0, 2000, Collections.<String, String>emptyMap()));
+    Assert.assertEquals(Lists.reverse(expected).get(0).longValue(), entries.get(0).getTimestamp());
+    Assert.assertEquals(expected.size(), entries.size());
+  }
+
+  private static void write(TimeseriesTable table, Fact anomaly) {
+    AnomalyTableUtil.write(table, anomaly, anomaly.getSeriesKey().getBytes(), AnomalyRecord.encode(anomaly));
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class FactTest {
+  private static final Gson GSON = FactTypeAdapter.createGson();
+
+  @Test
+  public void testLayout() {
+    Map<String, String> dimensions = ImmutableMap.of("src", "1.1.1.1", "zzz", "2", "app", "UDP", "aaa", "1");
+    Fact fact = new Fact(1L, dimensions);
+
+    Assert.assertEquals(4, fact.size());
+    // known dimensions first, sorted by id
+    Assert.assertEquals("app", fact.getName(0));
+    Assert.assertEquals("src", fact.getName(1));
+    // then custom dimensions, sorted by name
+    Assert.assertEquals("aaa", fact.getName(2));
+    Assert.assertEquals("zzz", fact.getName(3));
+    for (int i = 1; i < fact.size(); i++) {
+      Assert.assertTrue(fact.getDimensionId(i - 1) < fact.getDimensionId(i));
+    }
+
+    Assert.assertEquals(dimensions, fact.getDimensions());
+    Assert.assertEquals("2", fact.getValue("zzz"));
+    Assert.assertEquals("UDP", fact.getValue("app"));
+    Assert.assertNull(fact.getValue("dst"));
+    Assert.assertNull(fact.getValue("bbb"));
+  }
+
+  @Test
+  public void testCopyOnWrite() {
+    Fact fact = new Fact(1L, ImmutableMap.of("src", "1.1.1.1", "rl", "100", "custom", "c"));
+
+    Fact changed = fact.with("rl", "low");
+    Assert.assertEquals("100", fact.getValue("rl"));
+    Assert.assertEquals(ImmutableMap.of("src", "1.1.1.1", "rl", "low", "custom", "c"), changed.getDimensions());
+
+    Fact added = fact.with("dst", "2.2.2.2").with("other", "o");
+    Assert.assertEquals(3, fact.size());
+    Assert.assertEquals(ImmutableMap.of("src", "1.1.1.1", "rl", "100", "custom", "c", "dst", "2.2.2.2", "other", "o"),
+                        added.getDimensions());
+
+    Assert.assertEquals(ImmutableMap.of("src", "1.1.1.1", "custom", "c"), fact.without("rl").getDimensions());
+    Assert.assertEquals(ImmutableMap.of("src", "1.1.1.1", "rl", "100"), fact.without("custom").getDimensions());
+    Assert.assertSame(fact, fact.without("dst"));
+
+    // positions: rl, src, custom
+    Assert.assertEquals(ImmutableMap.of("rl", "100", "custom", "c"), fact.subset(5L).getDimensions());
+    Assert.assertTrue(fact.subset(0L).getDimensions().isEmpty());
+    Assert.assertEquals(fact.getDimensions(), fact.subset(-1L).getDimensions());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDuplicateDimension() {
+    new FactBuilder().add("src", "1").add(DimensionDictionary.getId("src"), "2").build(1L);
+  }
+
+  @Test
+  public void testJson() {
+    Fact fact = new Fact(12L, ImmutableMap.of("src", "1.1.1.1", "app", "UDP", "custom", "c"));
+    String json = GSON.toJson(fact);
+    Assert.assertEquals("{\"ts\":12,\"dimensions\":{\"app\":\"UDP\",\"src\":\"1.1.1.1\",\"custom\":\"c\"}}", json);
+
+    Fact read = GSON.fromJson(json, Fact.class);
+    Assert.assertEquals(12L, read.getTs());
+    Assert.assertEquals(fact.getDimensions(), read.getDimensions());
+
+    // format written by reflection based Gson when dimensions were kept in a map
+    read = GSON.fromJson("{\"dimensions\":{\"app\":\"UDP\",\"src\":\"1.1.1.1\"},\"ts\":12}", Fact.class);
+    Assert.assertEquals(ImmutableMap.of("src", "1.1.1.1", "app", "UDP"), read.getDimensions());
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Files;
+import com.google.common.reflect.TypeToken;
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class PacketParserTest {
+  private static final Gson GSON = new Gson();
+  private static final Type MAP_TYPE = new TypeToken<Map<String, String>>() { }.getType();
+
+  @Test
+  public void testSameAsGson() throws Exception {
+    PacketParser parser = new PacketParser();
+    for (String fileName : new String[] {"packets.data", "anomalies.data"}) {
+      File file = new File(System.getProperty("user.dir").concat("/resources/").concat(fileName));
+      List<String> lines = Files.readLines(file, Charsets.UTF_8);
+      for (String line : lines) {
+        Map<String, String> expected = GSON.fromJson(line, MAP_TYPE);
+        Fact fact = parse(parser, line);
+        Assert.assertEquals(expected, fact.getDimensions());
+      }
+    }
+  }
+
+  @Test
+  public void testInternsKnownNames() {
+    Fact fact = parse(new PacketParser(), "{ 'src':'1.1.1.1', 'app':'UDP' }");
+    for (String name : fact.getDimensions().keySet()) {
+      Assert.assertSame(name.intern(), name);
+    }
+  }
+
+  @Test
+  public void testMultipleRecords() {
+    PacketParser parser = new PacketParser();
+    parser.reset(toBuffer("{'src':'1.1.1.1'}\n\n  {\"src\" : \"2.2.2.2\", dpt: 80}\r\n{}"));
+    Assert.assertEquals(ImmutableMap.of("src", "1.1.1.1"), parser.next(1L).getDimensions());
+    Fact fact = parser.next(2L);
+    Assert.assertEquals(ImmutableMap.of("src", "2.2.2.2", "dpt", "80"), fact.getDimensions());
+    Assert.assertEquals(2L, fact.getTs());
+    Assert.assertTrue(parser.next(3L).getDimensions().isEmpty());
+    Assert.assertNull(parser.next(4L));
+  }
+
+  @Test
+  public void testEscapesAndNulls() {
+    String line = "{'src':'a\\'b', 'dst':\"\\u00e9\\\\\\n\", 'app':null, 'atz':'Côte d\\u0027Ivoire'}";
+    Fact fact = parse(new PacketParser(), line);
+    Map<String, String> expected = GSON.fromJson(line, MAP_TYPE);
+    expected.remove("app");
+    Assert.assertEquals(expected, fact.getDimensions());
+  }
+
+  @Test
+  public void testMalformed() {
+    for (String line : new String[] {"{'src':'1.1.1.1'", "{'src' '1.1.1.1'}", "'src':'1.1.1.1'}", "{'src':'1.1.1.1}"}) {
+      try {
+        parse(new PacketParser(), line);
+        Assert.fail("Expected failure for " + line);
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+  }
+
+  private static Fact parse(PacketParser parser, String line) {
+    parser.reset(toBuffer(line));
+    return parser.next(System.currentTimeMillis());
+  }
+
+  private static ByteBuffer toBuffer(String line) {
+    return ByteBuffer.wrap(line.getBytes(Charsets.UTF_8));
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import co.cask.cdap.api.common.Bytes;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class SeriesKeyTest {
+
+  @Test
+  public void testEncoding() {
+    SeriesKey key = new Fact(1L, ImmutableMap.of("src", "1.2.3.4", "app", "UDP")).getSeriesKey();
+    // format, app id, value length, value, src id, value length, value
+    byte[] expected = Bytes.add(new byte[] {SeriesKey.FORMAT_V1, (byte) DimensionDictionary.getId("app"), 3},
+                                Bytes.toBytes("UDP"),
+                                Bytes.add(new byte[] {(byte) DimensionDictionary.getId("src"), 7},
+                                          Bytes.toBytes("1.2.3.4")));
+    Assert.assertArrayEquals(expected, key.getBytes());
+  }
+
+  @Test
+  public void testRoundTrip() {
+    Map<String, String> dimensions = ImmutableMap.of("src", "1.2.3.4", "dst", "Côte d'Ivoire 😀",
+                                                     "custom", Strings.repeat("v", 300), "empty", "");
+    Fact fact = new Fact(1L, dimensions);
+    SeriesKey key = fact.getSeriesKey();
+    Assert.assertSame(key, fact.getSeriesKey());
+
+    Fact decoded = key.decode(2L);
+    Assert.assertEquals(dimensions, decoded.getDimensions());
+    Assert.assertEquals(2L, decoded.getTs());
+    Assert.assertEquals(key, decoded.getSeriesKey());
+
+    Assert.assertEquals(key, SeriesKey.fromHex(key.toHex()));
+    Assert.assertEquals(key, SeriesKey.wrap(key.getBytes().clone()));
+    Assert.assertEquals(key.hashCode(), SeriesKey.wrap(key.getBytes().clone()).hashCode());
+
+    Assert.assertTrue(new Fact(1L, ImmutableMap.<String, String>of()).getSeriesKey().decode(1L).getDimensions()
+                        .isEmpty());
+  }
+
+  @Test
+  public void testDifferentSeries() {
+    SeriesKey key = new Fact(1L, ImmutableMap.of("src", "1.2.3.4")).getSeriesKey();
+    Assert.assertFalse(key.equals(new Fact(1L, ImmutableMap.of("src", "1.2.3.5")).getSeriesKey()));
+    Assert.assertFalse(key.equals(new Fact(1L, ImmutableMap.of("dst", "1.2.3.4")).getSeriesKey()));
+    Assert.assertFalse(key.equals(new Fact(1L, ImmutableMap.of("src", "1.2.3.4", "app", "")).getSeriesKey()));
+  }
+
+  @Test
+  public void testMalformed() {
+    for (String legacy : new String[] {"3src71.2.3.4", ""}) {
+      try {
+        SeriesKey.wrap(Bytes.toBytes(legacy)).decode(1L);
+        Assert.fail();
+      } catch (IllegalArgumentException e) {
+        // expected
+      }
+    }
+    try {
+      SeriesKey.wrap(new byte[] {SeriesKey.FORMAT_V1, (byte) DimensionDictionary.getId("src"), 7, 'a'}).decode(1L);
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      SeriesKey.fromHex("0g");
+      Assert.fail();
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+}
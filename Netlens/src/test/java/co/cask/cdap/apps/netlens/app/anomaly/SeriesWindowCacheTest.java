@@ -0,0 +1,85 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class SeriesWindowCacheTest {
+  private static final SeriesKey FIRST = new Fact(0L, ImmutableMap.of("src", "1.1.1.1")).getSeriesKey();
+  private static final SeriesKey SECOND = new Fact(0L, ImmutableMap.of("src", "2.2.2.2")).getSeriesKey();
+
+  @Test
+  public void testWindow() {
+    SeriesWindowCache cache = new SeriesWindowCache(3, 10, 10);
+    Assert.assertNull(cache.get(FIRST));
+
+    SeriesWindowCache.Window window = cache.put(FIRST, 100, new int[] {1, 2, 3});
+    Assert.assertSame(window, cache.get(FIRST));
+    Assert.assertTrue(window.add(100, 1));
+    Assert.assertArrayEquals(new int[] {1, 2, 4}, window.getCounts(new int[3]));
+
+    // moving forward
+    Assert.assertTrue(window.add(120, 5));
+    Assert.assertEquals(120, window.getLastTs());
+    Assert.assertArrayEquals(new int[] {4, 0, 5}, window.getCounts(new int[3]));
+    // late
+    Assert.assertTrue(window.add(110, 1));
+    Assert.assertArrayEquals(new int[] {4, 1, 5}, window.getCounts(new int[3]));
+    Assert.assertFalse(window.add(90, 1));
+
+    Assert.assertEquals(1, cache.getChanged().size());
+    Assert.assertEquals(ImmutableMap.of(100L, 4, 110L, 1, 120L, 5), window.getChangedCounts());
+    cache.flush();
+    Assert.assertTrue(cache.getChanged().isEmpty());
+    Assert.assertTrue(window.getChangedCounts().isEmpty());
+
+    // too far ahead
+    Assert.assertTrue(window.add(200, 1));
+    Assert.assertArrayEquals(new int[] {0, 0, 1}, window.getCounts(new int[3]));
+  }
+
+  @Test
+  public void testChangesOutOfWindowAreKept() {
+    SeriesWindowCache cache = new SeriesWindowCache(2, 10, 10);
+    SeriesWindowCache.Window window = cache.put(FIRST, 100, new int[] {0, 0});
+    window.add(100, 2);
+    window.add(130, 1);
+    Assert.assertEquals(ImmutableMap.of(100L, 2, 130L, 1), window.getChangedCounts());
+  }
+
+  @Test
+  public void testEviction() {
+    SeriesWindowCache cache = new SeriesWindowCache(2, 10, 1);
+    cache.put(FIRST, 100, new int[] {0, 0}).add(100, 1);
+    cache.put(SECOND, 100, new int[] {0, 0}).add(100, 1);
+    // not evicted before changes are flushed
+    Assert.assertEquals(2, cache.getSeriesCount());
+    cache.get(FIRST);
+
+    Assert.assertEquals(1, cache.flush());
+    Assert.assertNotNull(cache.get(FIRST));
+    Assert.assertNull(cache.get(SECOND));
+
+    cache.invalidateAll();
+    Assert.assertEquals(0, cache.getSeriesCount());
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.anomaly.detector;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+/**
+ *
+ */
+public class AnomalyDetectorsTest {
+
+  @Test
+  public void testSteadySeries() {
+    for (String name : new String[] {WelfordDetector.NAME, EwmaDetector.NAME, MadDetector.NAME}) {
+      AnomalyDetector detector = create(name, ImmutableMap.<String, String>of());
+      double[] state = new double[detector.getStateSize()];
+      for (int i = 0; i < 100; i++) {
+        double count = 20 + i % 3;
+        Assert.assertFalse(name, detector.isAnomaly(state, i, count));
+        detector.update(state, i, count);
+      }
+      Assert.assertFalse(name, detector.isAnomaly(state, 100, 22));
+      Assert.assertTrue(name, detector.isAnomaly(state, 100, 60));
+    }
+  }
+
+  @Test
+  public void testMeanThreshold() {
+    AnomalyDetector detector = create(WelfordDetector.NAME, ImmutableMap.<String, String>of());
+    double[] state = new double[detector.getStateSize()];
+    for (int i = 0; i < 100; i++) {
+      detector.update(state, i, i % 2);
+    }
+    // mean is too low to be interesting
+    Assert.assertFalse(detector.isAnomaly(state, 100, 60));
+  }
+
+  @Test
+  public void testSeasonalSeries() {
+    AnomalyDetector detector = create(HoltWintersDetector.NAME, ImmutableMap.of(AnomalyDetectors.SEASON_LENGTH, "4"));
+    double[] state = new double[detector.getStateSize()];
+    double[] season = {10, 40, 20, 30};
+    for (int i = 0; i < 200; i++) {
+      double count = season[i % 4] + i % 3;
+      // peaks of the season are expected
+      Assert.assertFalse(detector.isAnomaly(state, i, count));
+      detector.update(state, i, count);
+    }
+    Assert.assertFalse(detector.isAnomaly(state, 201, 42));
+    // usual count of another interval of the season
+    Assert.assertTrue(detector.isAnomaly(state, 200, 42));
+  }
+
+  @Test
+  public void testWindowByDefault() {
+    Assert.assertNull(AnomalyDetectors.create(ImmutableMap.<String, String>of(), 2.0, 2.0));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownDetector() {
+    create("unknown", ImmutableMap.<String, String>of());
+  }
+
+  private static AnomalyDetector create(String name, Map<String, String> arguments) {
+    Map<String, String> runtimeArguments = ImmutableMap.<String, String>builder()
+      .putAll(arguments).put(AnomalyDetectors.DETECTOR, name).build();
+    AnomalyDetector detector = AnomalyDetectors.create(runtimeArguments, 2.0, 3.0);
+    Assert.assertEquals(name, detector.getName());
+    return detector;
+  }
+}
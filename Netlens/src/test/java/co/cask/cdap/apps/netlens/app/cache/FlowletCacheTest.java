@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.cache;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Maps;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class FlowletCacheTest {
+
+  @Test
+  public void testEviction() {
+    FlowletCache<String, Integer> cache = new FlowletCache<String, Integer>("test", 2, 0);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    cache.put("c", 3);
+    // not evicted before clean up
+    Assert.assertEquals(3, cache.size());
+    Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+
+    Assert.assertEquals(1, cache.cleanUp());
+    Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+    Assert.assertNull(cache.get("b"));
+    Assert.assertEquals(Integer.valueOf(3), cache.remove("c"));
+    Assert.assertEquals(1, cache.size());
+
+    cache.invalidateAll();
+    Assert.assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testExpiration() {
+    FakeTicker ticker = new FakeTicker();
+    FlowletCache<String, Integer> cache = new FlowletCache<String, Integer>("test", 10, 100, ticker);
+    LongFlowletCache<Integer> longCache = new LongFlowletCache<Integer>("test", 10, 100, ticker);
+    cache.put("a", 1);
+    cache.put("b", 2);
+    longCache.put(1, 1);
+    longCache.put(2, 2);
+    ticker.advance(60);
+    // access keeps entries from expiring
+    Assert.assertEquals(Integer.valueOf(1), cache.get("a"));
+    Assert.assertEquals(Integer.valueOf(1), longCache.get(1));
+    ticker.advance(60);
+    // expired entry is evicted when looked up
+    Assert.assertNull(cache.get("b"));
+    Assert.assertNull(longCache.get(2));
+    Assert.assertEquals(1, cache.size());
+    Assert.assertEquals(1, longCache.size());
+    cache.put("c", 3);
+    longCache.put(3, 3);
+
+    ticker.advance(50);
+    Assert.assertEquals(1, cache.cleanUp());
+    Assert.assertEquals(1, longCache.cleanUp());
+    Assert.assertEquals(Integer.valueOf(3), cache.get("c"));
+    Assert.assertEquals(Integer.valueOf(3), longCache.get(3));
+  }
+
+  @Test
+  public void testLongKeysAgainstLinkedHashMap() {
+    LongFlowletCache<Long> cache = new LongFlowletCache<Long>("test", 100, 0);
+    LinkedHashMap<Long, Long> expected = new LinkedHashMap<Long, Long>(16, 0.75f, true);
+    Random random = new Random(0);
+    for (int i = 0; i < 100000; i++) {
+      // timestamp-like keys, to check probing of clustered hashes
+      long key = random.nextInt(300) * 5000L;
+      switch (random.nextInt(4)) {
+        case 0:
+          Assert.assertEquals(expected.get(key), cache.get(key));
+          break;
+        case 1:
+          Assert.assertEquals(expected.remove(key), cache.remove(key));
+          break;
+        default:
+          cache.put(key, (long) i);
+          expected.put(key, (long) i);
+      }
+      if (i % 100 == 0) {
+        int evicted = 0;
+        Iterator<Map.Entry<Long, Long>> it = expected.entrySet().iterator();
+        while (expected.size() > 100) {
+          it.next();
+          it.remove();
+          evicted++;
+        }
+        Assert.assertEquals(evicted, cache.cleanUp());
+      }
+      Assert.assertEquals(expected.size(), cache.size());
+    }
+    for (Map.Entry<Long, Long> entry : Maps.newHashMap(expected).entrySet()) {
+      Assert.assertEquals(entry.getValue(), cache.get(entry.getKey()));
+    }
+  }
+
+  private static final class FakeTicker extends Ticker {
+    private long nanos;
+
+    void advance(long millis) {
+      nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    @Override
+    public long read() {
+      return nanos;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.api.flow.flowlet.FlowletContext;
+import co.cask.cdap.api.metrics.Metrics;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.MemoryTable;
+import co.cask.cdap.apps.netlens.app.ServiceHandlers;
+import co.cask.cdap.apps.netlens.app.anomaly.Fact;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ */
+public class AnomalyCounterFlowletTest {
+
+  @Test
+  public void testReplayedBatchCountedOnce() throws Exception {
+    Table anomalyCounts = MemoryTable.create();
+    Table topN = MemoryTable.create();
+    AnomalyCounterFlowlet flowlet = newFlowlet(anomalyCounts, topN);
+
+    long ts = (System.currentTimeMillis() / Constants.AGG_INTERVAL_SIZE) * Constants.AGG_INTERVAL_SIZE;
+    List<Fact> batch = ImmutableList.of(anomaly(ts, "1.1.1.1", "UDP"), anomaly(ts, "1.1.1.1", "TCP"),
+                                        anomaly(ts, "2.2.2.2", "UDP"), anomaly(ts + 1, "1.1.1.1", "UDP"));
+    flowlet.process(batch.iterator());
+    assertCounts(anomalyCounts, topN, ts);
+
+    // delivered again in another transaction, e.g. emitted again after a failure upstream
+    flowlet.process(batch.iterator());
+    assertCounts(anomalyCounts, topN, ts);
+    flowlet.process(batch.subList(1, 3).iterator());
+    assertCounts(anomalyCounts, topN, ts);
+
+    // same series in the next interval is another anomaly
+    flowlet.process(ImmutableList.of(anomaly(ts + Constants.AGG_INTERVAL_SIZE, "2.2.2.2", "UDP")).iterator());
+    Assert.assertEquals(1L, getCount(anomalyCounts, AnomalyCounterFlowlet.TOTAL_COUNTER_KEY_PREFIX,
+                                     ts + Constants.AGG_INTERVAL_SIZE));
+  }
+
+  private static void assertCounts(Table anomalyCounts, Table topN, long ts) {
+    Assert.assertEquals(3L, getCount(anomalyCounts, AnomalyCounterFlowlet.TOTAL_COUNTER_KEY_PREFIX, ts));
+    byte[] ipPrefix = Bytes.add(AnomalyCounterFlowlet.IP_COUNTER_KEY_PREFIX, Bytes.toBytes("1.1.1.1"));
+    Assert.assertEquals(2L, getCount(anomalyCounts, ipPrefix, ts));
+    long topNTs = (ts / Constants.TOPN_AGG_INTERVAL_SIZE) * Constants.TOPN_AGG_INTERVAL_SIZE;
+    Map<String, Integer> summary =
+      TopNTableUtil.getSummary(topN, AnomalyCounterFlowlet.TOPN_IP_WITH_ANOMALIES_KEY_PREFIX, topNTs, 0);
+    Assert.assertEquals(ImmutableMap.of("1.1.1.1", 2, "2.2.2.2", 1), summary);
+  }
+
+  private static long getCount(Table anomalyCounts, byte[] prefix, long ts) {
+    byte[] value = anomalyCounts.get(CounterTableUtil.getRowKey(prefix, 0, ts), AnomalyCounterFlowlet.COUNT_COLUMN);
+    return value == null ? 0 : Bytes.toLong(value);
+  }
+
+  private static Fact anomaly(long ts, String src, String app) {
+    return new Fact(ts, ImmutableMap.of("src", src, "app", app));
+  }
+
+  private static AnomalyCounterFlowlet newFlowlet(Table anomalyCounts, Table topN) throws Exception {
+    AnomalyCounterFlowlet flowlet = new AnomalyCounterFlowlet();
+    ServiceHandlers.useDataset(flowlet, "anomalyCounts", anomalyCounts);
+    ServiceHandlers.useDataset(flowlet, "uniqueCounters", MemoryTable.create());
+    ServiceHandlers.useDataset(flowlet, "topNTable", topN);
+    ServiceHandlers.useDataset(flowlet, "metrics", stub(Metrics.class));
+    flowlet.initialize(stub(FlowletContext.class));
+    return flowlet;
+  }
+
+  // instance id 0 and no metrics
+  private static <T> T stub(Class<T> type) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        return method.getReturnType() == int.class ? 0 : null;
+      }
+    }));
+  }
+}
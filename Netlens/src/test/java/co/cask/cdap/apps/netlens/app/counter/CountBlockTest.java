@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ *
+ */
+public class CountBlockTest {
+  private static final int INTERVALS = SeriesCountTableUtil.BLOCK_INTERVALS;
+
+  @Test
+  public void testDenseSeries() {
+    int[] counts = new int[INTERVALS];
+    for (int i = 0; i < INTERVALS; i++) {
+      counts[i] = 50 + i % 7;
+    }
+    byte[] block = CountBlock.encode(counts);
+    // one byte for the position and one for the count, instead of an entry with a 4 bytes count
+    Assert.assertTrue(block.length <= 2 * INTERVALS + 3);
+    assertDecoded(counts, block);
+  }
+
+  @Test
+  public void testSparseSeries() {
+    int[] counts = new int[INTERVALS];
+    counts[0] = 1;
+    counts[3] = 100000;
+    counts[300] = -2;
+    counts[INTERVALS - 1] = Integer.MAX_VALUE;
+    assertDecoded(counts, CountBlock.encode(counts));
+
+    Random random = new Random(0);
+    for (int i = 0; i < 100; i++) {
+      counts = new int[INTERVALS];
+      for (int j = 0; j < random.nextInt(INTERVALS); j++) {
+        counts[random.nextInt(INTERVALS)] = random.nextInt(1 << random.nextInt(31));
+      }
+      assertDecoded(counts, CountBlock.encode(counts));
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    int[] counts = new int[INTERVALS];
+    byte[] block = CountBlock.encode(counts);
+    Assert.assertEquals(2, block.length);
+    assertDecoded(counts, block);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooManyIntervals() {
+    int[] counts = new int[INTERVALS];
+    counts[INTERVALS - 1] = 1;
+    CountBlock.decode(CountBlock.encode(counts), new int[INTERVALS - 1]);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownFormat() {
+    CountBlock.decode(new byte[] {2, 0}, new int[INTERVALS]);
+  }
+
+  private static void assertDecoded(int[] expected, byte[] block) {
+    int[] counts = new int[expected.length];
+    CountBlock.decode(block, counts);
+    Assert.assertArrayEquals(expected, counts);
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.apps.netlens.app.MemoryTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class CounterTableUtilTest {
+  private static final long START = TimeUnit.DAYS.toMillis(16000);
+  private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+  private static final byte[] PREFIX = Bytes.toBytes("T_");
+  private static final byte[] COLUMN = Bytes.toBytes("c");
+  private static final int MAX_LEVEL = Resolution.INTERVAL_SIZES.length - 1;
+
+  @Test
+  public void testRollups() {
+    Table table = MemoryTable.create();
+    CounterTableUtil.increment(table, PREFIX, COLUMN, START + 1000, 2);
+    CounterTableUtil.increment(table, PREFIX, COLUMN, START + HOUR + 1000, 3);
+    CounterTableUtil.increment(table, PREFIX, COLUMN, START + HOUR + TimeUnit.MINUTES.toMillis(30), 4);
+
+    long endTs = START + TimeUnit.DAYS.toMillis(1) - 1;
+    assertCounts(new long[] {2, 7, 0, 0}, table, "1h", START, START + 4 * HOUR - 1);
+    assertCounts(new long[] {9}, table, "1d", START, endTs);
+    Assert.assertEquals(3, CounterTableUtil.getCounts(table, PREFIX, COLUMN, START, endTs,
+                                                      Resolution.get("5s", null, START, endTs, MAX_LEVEL)).size());
+  }
+
+  @Test
+  public void testRollupsMissing() {
+    Table table = MemoryTable.create();
+    // counted before the rollups were kept: only the finest counters
+    for (int i = 0; i < 3; i++) {
+      table.increment(CounterTableUtil.getRowKey(PREFIX, 0, START + i * HOUR + i * 5000), COLUMN, 10);
+    }
+    long lastMinuteTs = START + 2 * HOUR + TimeUnit.MINUTES.toMillis(59);
+    table.increment(CounterTableUtil.getRowKey(PREFIX, 0, lastMinuteTs), COLUMN, 1);
+    // and from the next day with the rollups
+    long nextDayTs = START + TimeUnit.DAYS.toMillis(1);
+    CounterTableUtil.increment(table, PREFIX, COLUMN, nextDayTs, 5);
+    CounterTableUtil.increment(table, PREFIX, COLUMN, nextDayTs + 2 * HOUR + 1, 6);
+
+    assertCounts(new long[] {10, 10, 11, 0}, table, "1h", START, START + 4 * HOUR - 1);
+    assertCounts(new long[] {5, 0, 6}, table, "1h", nextDayTs, nextDayTs + 3 * HOUR - 1);
+    assertCounts(new long[] {31, 11}, table, "1d", START, nextDayTs + TimeUnit.DAYS.toMillis(1) - 1);
+    // a range ending inside an interval without rollup reads the whole interval, as its rollup would
+    assertCounts(new long[] {10, 10, 11}, table, "1h", START, START + 2 * HOUR + 1);
+
+    // only intervals with counters are returned
+    long endTs = nextDayTs + 3 * HOUR - 1;
+    List<DataPoint> counts = CounterTableUtil.getCounts(table, PREFIX, COLUMN, START, endTs,
+                                                        Resolution.get("1h", null, START, endTs, MAX_LEVEL));
+    Assert.assertEquals(5, counts.size());
+    Assert.assertEquals(START + 2 * HOUR, counts.get(2).getTs());
+    Assert.assertEquals(nextDayTs + 2 * HOUR, counts.get(4).getTs());
+  }
+
+  @Test
+  public void testCountsAboveIntMax() {
+    Table table = MemoryTable.create();
+    // e.g. a day of the traffic total at 30k packets per second
+    long hourCount = 30000L * TimeUnit.HOURS.toSeconds(1);
+    for (int i = 0; i < 24; i++) {
+      CounterTableUtil.increment(table, PREFIX, COLUMN, START + i * HOUR, hourCount);
+    }
+    long dayCount = 24 * hourCount;
+    Assert.assertTrue(dayCount > Integer.MAX_VALUE);
+    assertCounts(new long[] {dayCount}, table, "1d", START, START + TimeUnit.DAYS.toMillis(1) - 1);
+
+    // summed from the finer levels where the rollup is missing
+    long nextDayTs = START + TimeUnit.DAYS.toMillis(1);
+    table.increment(CounterTableUtil.getRowKey(PREFIX, 0, nextDayTs), COLUMN, Integer.MAX_VALUE);
+    table.increment(CounterTableUtil.getRowKey(PREFIX, 0, nextDayTs + HOUR), COLUMN, Integer.MAX_VALUE);
+    assertCounts(new long[] {2L * Integer.MAX_VALUE}, table, "1d", nextDayTs,
+                 nextDayTs + TimeUnit.DAYS.toMillis(1) - 1);
+  }
+
+  private static void assertCounts(long[] expected, Table table, String resolution, long startTs, long endTs) {
+    Resolution res = Resolution.get(resolution, null, startTs, endTs, MAX_LEVEL);
+    List<DataPoint> timeline = CounterTableUtil.getTimeline(table, PREFIX, COLUMN, startTs, endTs, res);
+    long[] counts = new long[timeline.size()];
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] = timeline.get(i).getValue();
+    }
+    Assert.assertArrayEquals(expected, counts);
+  }
+}
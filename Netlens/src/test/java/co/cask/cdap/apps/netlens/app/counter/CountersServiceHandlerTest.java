@@ -0,0 +1,76 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.lib.TimeseriesTable;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.MemoryTable;
+import co.cask.cdap.apps.netlens.app.ServiceHandlers;
+import co.cask.cdap.apps.netlens.app.anomaly.DimensionDictionary;
+import co.cask.cdap.apps.netlens.app.anomaly.Fact;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class CountersServiceHandlerTest {
+  private static final long START = TimeUnit.DAYS.toMillis(16000);
+  private static final long INTERVAL = Constants.AGG_INTERVAL_SIZE;
+  private static final String SRC = "10.0.0.1";
+
+  @Test
+  public void testSeriesCountsBeforeBlocks() throws Exception {
+    byte[] key = new Fact(START, ImmutableMap.of(DimensionDictionary.SRC, SRC)).getSeriesKey().getBytes();
+    // counted into the old dataset until the interval at START + 3 * INTERVAL, then into blocks
+    TimeseriesTable counters = MemoryTable.createTimeseries();
+    for (int i = 0; i <= 3; i++) {
+      counters.write(new TimeseriesTable.Entry(key, Bytes.toBytes(i + 1), START + i * INTERVAL));
+    }
+    Table seriesCounts = MemoryTable.create();
+    for (int i = 3; i < 6; i++) {
+      SeriesCountTableUtil.put(seriesCounts, key, START + i * INTERVAL, 10);
+    }
+
+    CountersServiceHandler handler = new CountersServiceHandler();
+    ServiceHandlers.useDataset(handler, "counters", counters);
+    ServiceHandlers.useDataset(handler, "seriesCounts", seriesCounts);
+    ServiceHandlers.Response response = new ServiceHandlers.Response();
+    handler.timeRange(null, response.getResponder(), START, START + 6 * INTERVAL - 1, null, SRC, "5s", null);
+    List<DataPoint> counts = response.getBody();
+    Assert.assertEquals(6, counts.size());
+    int[] expected = {1, 2, 3, 14, 10, 10};
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(START + i * INTERVAL, counts.get(i).getTs());
+      Assert.assertEquals(expected[i], counts.get(i).getValue());
+    }
+
+    // summed into coarser data points, of whole intervals of the resolution
+    handler.timeRange(null, response.getResponder(), START + INTERVAL, START + 6 * INTERVAL - 1, null, SRC, "1m",
+                      null);
+    counts = response.getBody();
+    Assert.assertEquals(1, counts.size());
+    Assert.assertEquals(START, counts.get(0).getTs());
+    Assert.assertEquals(40, counts.get(0).getValue());
+  }
+}
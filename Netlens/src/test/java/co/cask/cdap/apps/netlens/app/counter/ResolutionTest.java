@@ -0,0 +1,103 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class ResolutionTest {
+  private static final long START = TimeUnit.DAYS.toMillis(16000);
+  private static final int MAX_LEVEL = Resolution.INTERVAL_SIZES.length - 1;
+
+  @Test
+  public void testShortRangeKeepsFinestIntervals() {
+    long endTs = START + TimeUnit.MINUTES.toMillis(10);
+    Resolution resolution = Resolution.get(null, null, START, endTs, MAX_LEVEL);
+    Assert.assertEquals(0, resolution.getLevel());
+    Assert.assertEquals(TimeUnit.SECONDS.toMillis(5), resolution.getPointSize());
+    Assert.assertEquals(121, resolution.getNumPoints(START, endTs));
+  }
+
+  @Test
+  public void testDayIsReadFromMinutes() {
+    long endTs = START + TimeUnit.DAYS.toMillis(1) - 1;
+    Resolution resolution = Resolution.get(null, 1000, START, endTs, MAX_LEVEL);
+    // coarsest level with at least 1000 intervals, merged into at most 1000 points
+    Assert.assertEquals(1, resolution.getLevel());
+    Assert.assertEquals(TimeUnit.MINUTES.toMillis(2), resolution.getPointSize());
+    Assert.assertEquals(720, resolution.getNumPoints(START, endTs));
+
+    resolution = Resolution.get(null, 24, START, endTs, MAX_LEVEL);
+    Assert.assertEquals(2, resolution.getLevel());
+    Assert.assertEquals(TimeUnit.HOURS.toMillis(1), resolution.getPointSize());
+  }
+
+  @Test
+  public void testMaxLevel() {
+    long endTs = START + TimeUnit.DAYS.toMillis(1) - 1;
+    Resolution resolution = Resolution.get(null, 24, START, endTs, 0);
+    Assert.assertEquals(0, resolution.getLevel());
+    Assert.assertEquals(TimeUnit.HOURS.toMillis(1), resolution.getPointSize());
+
+    resolution = Resolution.get("1d", null, START, endTs, 0);
+    Assert.assertEquals(0, resolution.getLevel());
+    Assert.assertEquals(TimeUnit.DAYS.toMillis(1), resolution.getPointSize());
+  }
+
+  @Test
+  public void testNamedResolution() {
+    long endTs = START + TimeUnit.DAYS.toMillis(7) - 1;
+    Resolution resolution = Resolution.get("1h", null, START, endTs, MAX_LEVEL);
+    Assert.assertEquals(2, resolution.getLevel());
+    Assert.assertEquals(168, resolution.getNumPoints(START, endTs));
+
+    resolution = Resolution.get("1h", 50, START, endTs, MAX_LEVEL);
+    Assert.assertEquals(2, resolution.getLevel());
+    Assert.assertTrue(resolution.getNumPoints(START, endTs) <= 50);
+    Assert.assertEquals(0, resolution.getPointSize() % TimeUnit.HOURS.toMillis(1));
+  }
+
+  @Test
+  public void testMaxPointsIsRespected() {
+    for (int maxPoints = 1; maxPoints < 300; maxPoints += 7) {
+      long endTs = START + 12345678L;
+      Resolution resolution = Resolution.get(null, maxPoints, START + 3, endTs, MAX_LEVEL);
+      Assert.assertTrue(resolution.getNumPoints(START + 3, endTs) <= maxPoints);
+      Assert.assertEquals(0, resolution.getPointSize() % Resolution.INTERVAL_SIZES[resolution.getLevel()]);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testUnknownResolution() {
+    Resolution.get("2m", null, START, START + 1, MAX_LEVEL);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidMaxPoints() {
+    Resolution.get(null, 0, START, START + 1, MAX_LEVEL);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooManyPoints() {
+    Resolution.get("5s", null, START, START + TimeUnit.DAYS.toMillis(30), MAX_LEVEL);
+  }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.api.common.Bytes;
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.MemoryTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class SeriesCountTableUtilTest {
+  private static final long BLOCK_SIZE = SeriesCountTableUtil.BLOCK_SIZE;
+  private static final long NOW = SeriesCountTableUtil.getBlockTs(System.currentTimeMillis()) + BLOCK_SIZE / 2;
+
+  @Test
+  public void testSweepSealsOldBlocks() {
+    Table table = MemoryTable.create();
+    // series that went quiet two hours ago, and a series still counted
+    long oldBlockTs = SeriesCountTableUtil.getBlockTs(NOW) - 2 * BLOCK_SIZE;
+    for (int i = 0; i < 3; i++) {
+      put(table, key(i), oldBlockTs + i * Constants.AGG_INTERVAL_SIZE, i + 1);
+    }
+    put(table, key(3), NOW, 5);
+    // the previous block is not over for more than an hour yet
+    put(table, key(4), NOW - BLOCK_SIZE, 6);
+
+    Assert.assertEquals(3, SeriesCountTableUtil.sweep(table, 0, 1, NOW - BLOCK_SIZE, 100));
+    for (int i = 0; i < 3; i++) {
+      Assert.assertEquals(1, table.get(Bytes.add(key(i), Bytes.toBytes(oldBlockTs))).getColumns().size());
+      int[] counts = SeriesCountTableUtil.getCounts(table, key(i), oldBlockTs, 3);
+      Assert.assertEquals(i + 1, counts[i]);
+    }
+    Assert.assertEquals(5, SeriesCountTableUtil.getCounts(table, key(3), NOW, 1)[0]);
+    Assert.assertEquals(0, SeriesCountTableUtil.sweep(table, 0, 1, NOW - BLOCK_SIZE, 100));
+
+    // late count of a sealed block is sealed again
+    put(table, key(0), oldBlockTs + Constants.AGG_INTERVAL_SIZE, 7);
+    Assert.assertEquals(1, SeriesCountTableUtil.sweep(table, 0, 1, NOW - BLOCK_SIZE, 100));
+    Assert.assertEquals(1, table.get(Bytes.add(key(0), Bytes.toBytes(oldBlockTs))).getColumns().size());
+    int[] counts = SeriesCountTableUtil.getCounts(table, key(0), oldBlockTs, 2);
+    Assert.assertArrayEquals(new int[] {1, 7}, counts);
+
+    // sealed when it is over for more than an hour
+    Assert.assertEquals(1, SeriesCountTableUtil.sweep(table, 0, 1, NOW, 100));
+    // blocks sealed when the window of their series moves on are not listed anymore
+    put(table, key(5), oldBlockTs, 8);
+    SeriesCountTableUtil.seal(table, key(5), oldBlockTs);
+    Assert.assertEquals(0, SeriesCountTableUtil.sweep(table, 0, 1, NOW, 100));
+  }
+
+  @Test
+  public void testSweepByInstances() {
+    Table table = MemoryTable.create();
+    long blockTs = SeriesCountTableUtil.getBlockTs(NOW) - 2 * BLOCK_SIZE;
+    int numSeries = 100;
+    for (int i = 0; i < numSeries; i++) {
+      put(table, key(i), blockTs, 1);
+      put(table, key(i), blockTs - BLOCK_SIZE, 1);
+    }
+    // every block is swept by one of the instances, at most the limit at a time
+    int instanceCount = 3;
+    int sealed = 0;
+    for (int instanceId = 0; instanceId < instanceCount; instanceId++) {
+      int limit = 10;
+      int swept;
+      while ((swept = SeriesCountTableUtil.sweep(table, instanceId, instanceCount, NOW, limit)) > 0) {
+        Assert.assertTrue(swept <= limit);
+        sealed += swept;
+      }
+    }
+    Assert.assertEquals(2 * numSeries, sealed);
+    Assert.assertEquals(0, SeriesCountTableUtil.sweep(table, 0, 1, NOW, 1000));
+  }
+
+  @Test
+  public void testOnlyListedBlocksSwept() {
+    Table table = MemoryTable.create();
+    long blockTs = SeriesCountTableUtil.getBlockTs(NOW) - 2 * BLOCK_SIZE;
+    SeriesCountTableUtil.put(table, key(0), blockTs, 1);
+    Assert.assertEquals(0, SeriesCountTableUtil.sweep(table, 0, 1, NOW, 100));
+    // listing the block again lists it once
+    SeriesCountTableUtil.listUnsealed(table, key(0), blockTs);
+    SeriesCountTableUtil.listUnsealed(table, key(0), blockTs);
+    Assert.assertEquals(1, SeriesCountTableUtil.sweep(table, 0, 1, NOW, 100));
+    Assert.assertEquals(0, SeriesCountTableUtil.sweep(table, 0, 1, NOW, 100));
+  }
+
+  // writes the count and lists its block, as the first count of a block is written
+  private static void put(Table table, byte[] key, long ts, int count) {
+    SeriesCountTableUtil.put(table, key, ts, count);
+    SeriesCountTableUtil.listUnsealed(table, key, SeriesCountTableUtil.getBlockTs(ts));
+  }
+
+  private static byte[] key(int series) {
+    return Bytes.add(new byte[] {1}, Bytes.toBytes("series" + series));
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.counter;
+
+import co.cask.cdap.apps.netlens.app.Constants;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ *
+ */
+public class TopNWindowCacheTest {
+  private static final long GRANULARITY = Constants.TOPN_AGG_INTERVAL_SIZE;
+  private static final long START = TimeUnit.DAYS.toMillis(16000);
+
+  @Test
+  public void testClosedWindowsDoNotChange() {
+    TopNWindowCache cache = new TopNWindowCache(new byte[0], GRANULARITY, 10);
+    for (long windowSize = GRANULARITY; windowSize <= TimeUnit.HOURS.toMillis(2); windowSize *= 2) {
+      long end = START + windowSize;
+      Assert.assertFalse(cache.isClosed(START, windowSize, end));
+      Assert.assertFalse(cache.isClosed(START, windowSize, end + Constants.TOPN_MAX_LATENESS));
+      for (long now = end; now <= end + 2 * Constants.TOPN_MAX_LATENESS; now += GRANULARITY / 4) {
+        if (cache.isClosed(START, windowSize, now)) {
+          // no bucket of the window is counted anymore, even by a flowlet with the clock a bucket behind
+          for (long bucketTs = START; bucketTs < end; bucketTs += GRANULARITY) {
+            Assert.assertTrue(TopNCounter.isLate(bucketTs, GRANULARITY, now - GRANULARITY));
+          }
+        }
+      }
+      Assert.assertTrue(cache.isClosed(START, windowSize, end + 2 * Constants.TOPN_MAX_LATENESS));
+    }
+  }
+
+  @Test
+  public void testLateValuesAreNotCounted() {
+    TopNCounter counter = new TopNCounter(new byte[0], GRANULARITY, 10, 0);
+    long now = START + GRANULARITY + Constants.TOPN_MAX_LATENESS;
+    // bucket is not loaded from the table for values that are too late
+    Assert.assertFalse(counter.add(null, "1.1.1.1", START, 1, now));
+    Assert.assertFalse(counter.add(null, "1.1.1.1", START + GRANULARITY - 1, 1, now));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeLimit() {
+    new TopNWindowCache(new byte[0], GRANULARITY, 10).get(null, START, GRANULARITY, -1, START);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testWindowTooLarge() {
+    new TopNWindowCache(new byte[0], GRANULARITY, 10).get(null, START, Constants.TOPN_MAX_WINDOW_SIZE + 1, 10, START);
+  }
+}
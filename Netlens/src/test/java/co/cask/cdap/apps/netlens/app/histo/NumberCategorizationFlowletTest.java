@@ -0,0 +1,48 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.histo;
+
+import com.google.gson.Gson;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class NumberCategorizationFlowletTest {
+  private static final Gson GSON = new Gson();
+
+  @Test
+  public void testValidConfig() {
+    config("{}").validate("rl");
+    config("{\"categories\":[\"low\",\"medium\",\"high\",\"huge\"],\"seedPointsPerBucket\":10}").validate("rl");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testTooFewCategories() {
+    // a histogram of 2 buckets would be seeded and tested for skew as one of 3
+    config("{\"categories\":[\"low\",\"high\"]}").validate("rl");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidHalfLife() {
+    config("{\"halfLife\":0}").validate("rl");
+  }
+
+  private static NumberCategorizationFlowlet.DimensionConfig config(String json) {
+    return GSON.fromJson(json, NumberCategorizationFlowlet.DimensionConfig.class);
+  }
+}
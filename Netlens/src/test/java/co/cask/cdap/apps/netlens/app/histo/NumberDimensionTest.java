@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.histo;
+
+import co.cask.cdap.api.dataset.table.Table;
+import co.cask.cdap.apps.netlens.app.Constants;
+import co.cask.cdap.apps.netlens.app.MemoryTable;
+import co.cask.cdap.apps.netlens.app.ServiceHandlers;
+import co.cask.cdap.apps.netlens.app.counter.CountersServiceHandler;
+import co.cask.lib.histo.DynamicHistogram;
+import co.cask.lib.histo.QuantileSketch;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class NumberDimensionTest {
+  private static final long INTERVAL = Constants.QUANTILE_INTERVAL_SIZE;
+  // an hour ago, facts are sketched by their own time, not by the time they are processed
+  private static final long BASE_TS = ((System.currentTimeMillis() - 60 * INTERVAL) / INTERVAL) * INTERVAL;
+  private static final byte[] PREFIX = QuantileTableUtil.getPrefix("rl");
+
+  @Test
+  public void testSketchesByFactInterval() {
+    Table table = MemoryTable.create();
+    NumberDimension dimension = newDimension(0);
+    for (int i = 0; i < 10; i++) {
+      dimension.categorize(table, Integer.toString(i), BASE_TS + i);
+    }
+    dimension.categorize(table, "10", BASE_TS + INTERVAL);
+    // late value of the previous interval
+    dimension.categorize(table, "11", BASE_TS + 1000);
+    dimension.flush(table, System.currentTimeMillis());
+    Assert.assertEquals(11, QuantileTableUtil.get(table, PREFIX, BASE_TS, 0).getCount());
+    Assert.assertEquals(1, QuantileTableUtil.get(table, PREFIX, BASE_TS + INTERVAL, 0).getCount());
+
+    // intervals still in memory are updated, not replaced
+    dimension.categorize(table, "12", BASE_TS + 2000);
+    dimension.flush(table, System.currentTimeMillis());
+    Assert.assertEquals(12, QuantileTableUtil.get(table, PREFIX, BASE_TS, 0).getCount());
+
+    // dropped intervals are read back
+    dimension.invalidate();
+    dimension.categorize(table, "13", BASE_TS + 3000);
+    dimension.flush(table, System.currentTimeMillis());
+    Assert.assertEquals(13, QuantileTableUtil.get(table, PREFIX, BASE_TS, 0).getCount());
+    Assert.assertNull(QuantileTableUtil.get(table, PREFIX, BASE_TS, 1));
+  }
+
+  @Test
+  public void testNewestIntervalWrittenAtMostOncePerAggInterval() {
+    Table table = MemoryTable.create();
+    NumberDimension dimension = newDimension(0);
+    long now = System.currentTimeMillis();
+    dimension.categorize(table, "1", BASE_TS);
+    dimension.flush(table, now);
+    Assert.assertEquals(1, QuantileTableUtil.get(table, PREFIX, BASE_TS, 0).getCount());
+
+    // the newest interval waits for the next write
+    dimension.categorize(table, "2", BASE_TS + 1);
+    dimension.flush(table, now + 1000);
+    Assert.assertEquals(1, QuantileTableUtil.get(table, PREFIX, BASE_TS, 0).getCount());
+    dimension.categorize(table, "3", BASE_TS + 2);
+    dimension.flush(table, now + Constants.AGG_INTERVAL_SIZE);
+    Assert.assertEquals(3, QuantileTableUtil.get(table, PREFIX, BASE_TS, 0).getCount());
+
+    // older intervals are written as soon as they change
+    dimension.categorize(table, "4", BASE_TS + INTERVAL);
+    dimension.flush(table, now + Constants.AGG_INTERVAL_SIZE + 1000);
+    Assert.assertNull(QuantileTableUtil.get(table, PREFIX, BASE_TS + INTERVAL, 0));
+    dimension.categorize(table, "5", BASE_TS + 3);
+    dimension.flush(table, now + Constants.AGG_INTERVAL_SIZE + 2000);
+    Assert.assertEquals(4, QuantileTableUtil.get(table, PREFIX, BASE_TS, 0).getCount());
+
+    // sketches not written yet are kept even if dropped from memory
+    for (int i = 2; i <= 4; i++) {
+      dimension.categorize(table, "6", BASE_TS - i * INTERVAL);
+    }
+    dimension.flush(table, now + Constants.AGG_INTERVAL_SIZE + 3000);
+    dimension.categorize(table, "7", BASE_TS + INTERVAL + 1);
+    dimension.flush(table, now + 2 * Constants.AGG_INTERVAL_SIZE);
+    Assert.assertEquals(2, QuantileTableUtil.get(table, PREFIX, BASE_TS + INTERVAL, 0).getCount());
+  }
+
+  @Test
+  public void testBoundariesByFactInterval() {
+    Table table = MemoryTable.create();
+    // sketches written by another instance for the intervals before the facts
+    for (int interval = 0; interval < 5; interval++) {
+      QuantileSketch sketch = new QuantileSketch(200);
+      for (int i = 0; i < 1000; i++) {
+        sketch.add(i);
+      }
+      QuantileTableUtil.put(table, PREFIX, BASE_TS + interval * INTERVAL, 1, sketch);
+    }
+    NumberDimension dimension = newDimension(0);
+    long ts = BASE_TS + 6 * INTERVAL;
+    dimension.categorize(table, "500", ts);
+    dimension.flush(table, System.currentTimeMillis());
+    Assert.assertEquals("low", dimension.categorize(table, "10", ts));
+    Assert.assertEquals("medium", dimension.categorize(table, "500", ts));
+    Assert.assertEquals("high", dimension.categorize(table, "990", ts));
+  }
+
+  @Test
+  public void testPercentilesOfPastFacts() throws Exception {
+    Table table = MemoryTable.create();
+    NumberDimension dimension = newDimension(0);
+    // facts processed now, but an hour or more after they were seen
+    for (int i = 1; i <= 100; i++) {
+      dimension.categorize(table, Integer.toString(i), BASE_TS + (i % 2) * INTERVAL + i);
+    }
+    dimension.categorize(table, "1000", BASE_TS + 2 * INTERVAL);
+    dimension.flush(table, System.currentTimeMillis());
+
+    CountersServiceHandler handler = new CountersServiceHandler();
+    ServiceHandlers.useDataset(handler, "quantiles", table);
+    ServiceHandlers.Response response = new ServiceHandlers.Response();
+    handler.percentiles(null, response.getResponder(), "rl", BASE_TS, BASE_TS + 2 * INTERVAL - 1, 3);
+    QuantileTableUtil.Distribution distribution = response.getBody();
+    Assert.assertEquals(100, distribution.getCount());
+    Assert.assertEquals(1.0, distribution.getMin(), 0);
+    Assert.assertEquals(100.0, distribution.getMax(), 0);
+
+    // only the facts of the second interval
+    handler.percentiles(null, response.getResponder(), "rl", BASE_TS + INTERVAL + 1, BASE_TS + 2 * INTERVAL - 1, 3);
+    distribution = response.getBody();
+    Assert.assertEquals(50, distribution.getCount());
+    Assert.assertEquals(1.0, distribution.getMin(), 0);
+    Assert.assertEquals(99.0, distribution.getMax(), 0);
+
+    // nothing was seen around the time the facts were processed
+    long now = System.currentTimeMillis();
+    handler.percentiles(null, response.getResponder(), "rl", now - INTERVAL, now + INTERVAL, 3);
+    distribution = response.getBody();
+    Assert.assertEquals(0, distribution.getCount());
+  }
+
+  private static NumberDimension newDimension(int instanceId) {
+    return new NumberDimension("rl", new String[] {"low", "medium", "high"}, instanceId,
+                               new DynamicHistogram(3, 300, 100));
+  }
+}
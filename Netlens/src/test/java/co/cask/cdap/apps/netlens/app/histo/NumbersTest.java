@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.cdap.apps.netlens.app.histo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ *
+ */
+public class NumbersTest {
+
+  @Test
+  public void testSameAsParseDouble() {
+    String[] values = {"0", "-0", "+7", "943", "0.5", ".5", "5.", "-12.34", "123456789012345", "1234567890123456789",
+      "0.000000000000001", "1e3", "-1.5E-3", "NaN", "Infinity", " 12"};
+    for (String value : values) {
+      Assert.assertEquals(value, Double.parseDouble(value), Numbers.parseDouble(value), 0);
+    }
+    Random random = new Random(0);
+    for (int i = 0; i < 100000; i++) {
+      String value = String.valueOf(random.nextInt(1000000)) + "." + random.nextInt(1000000);
+      Assert.assertEquals(value, Double.parseDouble(value), Numbers.parseDouble(value), 0);
+      value = String.valueOf(random.nextDouble() * 1000);
+      Assert.assertEquals(value, Double.parseDouble(value), Numbers.parseDouble(value), 0);
+    }
+  }
+
+  @Test
+  public void testInvalid() {
+    String[] values = {"", "-", ".", "1.2.3", "12a", "abc"};
+    for (String value : values) {
+      try {
+        Numbers.parseDouble(value);
+        Assert.fail("Expected NumberFormatException for " + value);
+      } catch (NumberFormatException e) {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.histo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ *
+ */
+public class DynamicHistogramTest {
+
+  @Test
+  public void testClassify() {
+    DynamicHistogram histogram = new DynamicHistogram(10, 30, 100);
+    Random random = new Random(0);
+    for (int i = 0; i < 299; i++) {
+      Assert.assertEquals(-1, histogram.addAndClassify(random.nextDouble()));
+    }
+    // the last seeding point is classified
+    Assert.assertTrue(histogram.addAndClassify(random.nextDouble()) >= 0);
+    for (int i = 0; i < 100000; i++) {
+      // distribution moves, so that buckets get repartitioned
+      double d = random.nextDouble() * (1 + i / 1000);
+      int index = histogram.addAndClassify(d);
+      Assert.assertEquals(histogram.findBucketIndex(d), index);
+    }
+  }
+
+  @Test
+  public void testDecay() {
+    int halfLife = 100;
+    DynamicHistogram histogram = new DynamicHistogram(3, 100, halfLife);
+    Random random = new Random(0);
+    // long enough for the counts to be renormalized many times
+    for (int i = 0; i < 1000000; i++) {
+      histogram.addDataPoint(random.nextGaussian());
+    }
+    double total = 0;
+    for (DynamicHistogram.Bucket bucket : histogram.getHistogram()) {
+      Assert.assertFalse(Double.isNaN(bucket.getCount()) || Double.isInfinite(bucket.getCount()));
+      total += bucket.getCount();
+    }
+    // sum of the decayed counts of all points, in the steady state
+    double expected = 1 / (1 - Math.exp(-1 / (1.44 * halfLife)));
+    Assert.assertEquals(expected, total, expected * 0.1);
+  }
+
+  @Test
+  public void testSerialization() {
+    DynamicHistogram histogram = new DynamicHistogram(10, 30, 100);
+    Random random = new Random(0);
+    for (int i = 0; i < 299; i++) {
+      histogram.addDataPoint(random.nextDouble());
+    }
+    Assert.assertFalse(histogram.isSeeded());
+    histogram.addDataPoint(random.nextDouble());
+    Assert.assertTrue(histogram.isSeeded());
+    for (int i = 0; i < 10000; i++) {
+      histogram.addDataPoint(random.nextDouble() * (1 + i / 1000));
+    }
+
+    DynamicHistogram restored = DynamicHistogram.fromBytes(histogram.toBytes());
+    Assert.assertEquals(10, restored.getNumBuckets());
+    DynamicHistogram.Bucket[] expected = histogram.getHistogram();
+    DynamicHistogram.Bucket[] actual = restored.getHistogram();
+    Assert.assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      Assert.assertEquals(expected[i].getHigh(), actual[i].getHigh(), 0);
+      Assert.assertEquals(expected[i].getCount(), actual[i].getCount(), expected[i].getCount() * 1e-9);
+      Assert.assertEquals(expected[i].getLastUpdateAt(), actual[i].getLastUpdateAt());
+    }
+    // restored histogram categorizes from the first point
+    for (int i = 0; i < 10000; i++) {
+      double d = random.nextDouble() * 20;
+      Assert.assertEquals(histogram.addAndClassify(d), restored.addAndClassify(d));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBytes() {
+    DynamicHistogram.fromBytes(new byte[13]);
+  }
+}
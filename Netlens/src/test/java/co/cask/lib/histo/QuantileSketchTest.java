@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.histo;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ *
+ */
+public class QuantileSketchTest {
+  private static final double[] FRACTIONS = {0.01, 0.1, 0.5, 0.9, 0.99};
+
+  @Test
+  public void testQuantiles() {
+    QuantileSketch sketch = new QuantileSketch(200);
+    Assert.assertTrue(Double.isNaN(sketch.getQuantile(0.5)));
+    Random random = new Random(0);
+    for (int i = 0; i < 1000000; i++) {
+      sketch.add(random.nextDouble());
+    }
+    Assert.assertEquals(1000000, sketch.getCount());
+    assertUniform(sketch);
+    Assert.assertEquals(sketch.getMin(), sketch.getQuantile(0), 0);
+    Assert.assertEquals(sketch.getMax(), sketch.getQuantile(1), 0);
+    Assert.assertTrue(sketch.toBytes().length < 200 * 8 * 20);
+  }
+
+  @Test
+  public void testMerge() {
+    Random random = new Random(0);
+    QuantileSketch merged = new QuantileSketch(200);
+    for (int i = 0; i < 10; i++) {
+      QuantileSketch sketch = new QuantileSketch(200);
+      // every sketch sees a different part of the range
+      for (int j = 0; j < 100000; j++) {
+        sketch.add((i + random.nextDouble()) / 10);
+      }
+      merged.merge(sketch);
+    }
+    Assert.assertEquals(1000000, merged.getCount());
+    assertUniform(merged);
+  }
+
+  @Test
+  public void testSerialization() {
+    Random random = new Random(0);
+    QuantileSketch sketch = new QuantileSketch(64);
+    for (int i = 0; i < 10000; i++) {
+      sketch.add(random.nextGaussian());
+    }
+    QuantileSketch copy = QuantileSketch.fromBytes(sketch.toBytes());
+    Assert.assertEquals(sketch.getCount(), copy.getCount());
+    Assert.assertEquals(sketch.getMin(), copy.getMin(), 0);
+    Assert.assertEquals(sketch.getMax(), copy.getMax(), 0);
+    Assert.assertArrayEquals(sketch.getQuantiles(FRACTIONS), copy.getQuantiles(FRACTIONS), 0);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeDifferentCapacity() {
+    new QuantileSketch(64).merge(new QuantileSketch(128));
+  }
+
+  private void assertUniform(QuantileSketch sketch) {
+    double[] quantiles = sketch.getQuantiles(FRACTIONS);
+    for (int i = 0; i < FRACTIONS.length; i++) {
+      Assert.assertEquals(FRACTIONS[i], quantiles[i], 0.01);
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.sketch;
+
+import co.cask.cdap.api.common.Bytes;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ */
+public class HyperLogLogTest {
+
+  @Test
+  public void testCardinality() {
+    HyperLogLog sketch = new HyperLogLog(10);
+    Assert.assertEquals(0, sketch.cardinality());
+    for (int n : new int[] {10, 100, 1000, 10000, 100000}) {
+      sketch.clear();
+      for (int i = 0; i < n; i++) {
+        sketch.add(Bytes.toBytes("10.0." + (i / 256) + "." + (i % 256)));
+        // duplicates are not counted
+        sketch.add(Bytes.toBytes("10.0." + (i / 256) + "." + (i % 256)));
+      }
+      // four standard errors
+      Assert.assertEquals(n, sketch.cardinality(), n * 0.13 + 1);
+    }
+  }
+
+  @Test
+  public void testMerge() {
+    HyperLogLog first = new HyperLogLog(10);
+    HyperLogLog second = new HyperLogLog(10);
+    HyperLogLog all = new HyperLogLog(10);
+    for (int i = 0; i < 3000; i++) {
+      byte[] item = Bytes.toBytes(i);
+      (i < 2000 ? first : second).add(item);
+      if (i >= 1000) {
+        second.add(item);
+      }
+      all.add(item);
+    }
+    Assert.assertTrue(first.merge(second));
+    Assert.assertFalse(first.merge(second));
+    Assert.assertArrayEquals(all.toBytes(), first.toBytes());
+
+    HyperLogLog restored = HyperLogLog.fromBytes(first.toBytes());
+    Assert.assertEquals(first.cardinality(), restored.cardinality());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testMergeDifferentPrecision() {
+    new HyperLogLog(10).merge(new HyperLogLog(12));
+  }
+}
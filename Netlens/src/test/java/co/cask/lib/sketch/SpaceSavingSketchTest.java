@@ -0,0 +1,71 @@
+/*
+ * Copyright © 2015 Cask Data, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package co.cask.lib.sketch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ */
+public class SpaceSavingSketchTest {
+
+  @Test
+  public void testExactUnderCapacity() {
+    SpaceSavingSketch<String> sketch = new SpaceSavingSketch<String>(10);
+    sketch.add("a", 1);
+    sketch.add("b", 5);
+    sketch.add("c", 3);
+    Assert.assertEquals(2, sketch.add("a", 1));
+    List<SpaceSavingSketch.Entry<String>> top = sketch.getTop(2);
+    Assert.assertEquals(2, top.size());
+    Assert.assertEquals("b", top.get(0).getItem());
+    Assert.assertEquals(5, top.get(0).getCount());
+    Assert.assertEquals("c", top.get(1).getItem());
+    Assert.assertEquals(0, top.get(1).getError());
+    Assert.assertEquals(0, sketch.estimate("d"));
+  }
+
+  @Test
+  public void testHeavyHitters() {
+    SpaceSavingSketch<Integer> sketch = new SpaceSavingSketch<Integer>(50);
+    Random random = new Random(0);
+    int total = 0;
+    for (int i = 0; i < 100000; i++) {
+      // few heavy hitters in a long tail
+      int item = i % 4 == 0 ? i % 5 : 5 + random.nextInt(10000);
+      sketch.add(item, 1);
+      total++;
+    }
+    List<SpaceSavingSketch.Entry<Integer>> top = sketch.getTop(5);
+    for (SpaceSavingSketch.Entry<Integer> entry : top) {
+      Assert.assertTrue(entry.getItem() < 5);
+      long real = 5000;
+      Assert.assertTrue(entry.getCount() >= real);
+      Assert.assertTrue(entry.getCount() - entry.getError() <= real);
+      Assert.assertTrue(entry.getError() <= total / 50);
+    }
+    Assert.assertEquals(50, sketch.size());
+
+    sketch.clear();
+    Assert.assertEquals(0, sketch.size());
+    Assert.assertTrue(sketch.getTop(5).isEmpty());
+  }
+}